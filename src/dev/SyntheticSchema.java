@@ -0,0 +1,177 @@
+package dev;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import main.annoter.meta.Glossary;
+import tap.metadata.TAPColumn;
+import tap.metadata.TAPTable;
+
+/**
+ * Generator of synthetic TAP schemas with mango: utypes, used to measure how
+ * the mapping cache scales beyond the two Simbad fixture tables.
+ *
+ * Each table is filled with blocks of columns picked at random according to
+ * a utype mix (relative weights), until the column count is reached:
+ * - EpochPosition: ra, dec, proper motions, parallax, radial velocity and the
+ *   position/proper motion error ellipses (12 columns, spaceSys frame and
+ *   epoch constant; the epoch changes from one block to the other),
+ * - Brightness: value and sigma error with a photCal frame on one of the
+ *   {@link Glossary.Filters} (2 columns),
+ * - Color: colour index between two filters (1 column),
+ * - Label: object type with a vocabulary constant (1 column),
+ * - none: column without utype (1 column).
+ *
+ * Tables are generated on demand from the seed and their index: the same
+ * table can be rebuilt without keeping the whole schema in memory.
+ */
+public class SyntheticSchema {
+	public static final String EPOCH_POSITION = "EpochPosition";
+	public static final String BRIGHTNESS = "Brightness";
+	public static final String COLOR = "Color";
+	public static final String LABEL = "Label";
+	public static final String NONE = "none";
+
+	/** Default mix: mostly photometry, as in large catalogues */
+	public static final String DEFAULT_MIX = "EpochPosition=10,Brightness=60,Color=10,Label=5,none=15";
+
+	private static final String[] EPOCHS = { "J2000", "J2016", "J1991.25", "J2015.5" };
+
+	private final int tableCount;
+	private final int columnCount;
+	private final String[] kinds;
+	private final int[] cumulatedWeights;
+	private final long seed;
+	private final List<String> filters = new ArrayList<String>(Glossary.Filters.map.keySet());
+
+	/**
+	 * @param tableCount number of tables
+	 * @param columnCount number of columns per table (the last block may be cut)
+	 * @param mix utype mix, e.g. {@value #DEFAULT_MIX}
+	 * @param seed random seed
+	 */
+	public SyntheticSchema(int tableCount, int columnCount, String mix, long seed) {
+		this.tableCount = tableCount;
+		this.columnCount = columnCount;
+		this.seed = seed;
+		Map<String, Integer> weights = parseMix(mix);
+		this.kinds = weights.keySet().toArray(new String[0]);
+		this.cumulatedWeights = new int[this.kinds.length];
+		int total = 0;
+		for (int i = 0; i < this.kinds.length; i++) {
+			total += weights.get(this.kinds[i]);
+			this.cumulatedWeights[i] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("The utype mix has no positive weight: " + mix);
+		}
+	}
+
+	/**
+	 * Parse a mix "kind=weight,kind=weight...".
+	 */
+	public static Map<String, Integer> parseMix(String mix) {
+		Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+		for (String item : mix.split(",")) {
+			String[] parts = item.trim().split("=");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Invalid mix item " + item);
+			}
+			String kind = parts[0].trim();
+			if (kind.equals(EPOCH_POSITION) == false && kind.equals(BRIGHTNESS) == false
+					&& kind.equals(COLOR) == false && kind.equals(LABEL) == false && kind.equals(NONE) == false) {
+				throw new IllegalArgumentException("Unknown column kind " + kind);
+			}
+			weights.put(kind, Integer.parseInt(parts[1].trim()));
+		}
+		return weights;
+	}
+
+	public int getTableCount() {
+		return this.tableCount;
+	}
+
+	public static String getTableName(int index) {
+		return "synthetic.table_" + index;
+	}
+
+	/**
+	 * Generate a table.
+	 *
+	 * @param index table index in [0, tableCount[
+	 * @return the table with its columns
+	 */
+	public TAPTable getTable(int index) {
+		Random random = new Random(this.seed * 31 + index);
+		TAPTable table = new TAPTable(getTableName(index), TAPTable.TableType.table);
+		int epochBlocks = 0;
+		int block = 0;
+		int count = 0;
+		while (count < this.columnCount) {
+			String kind = this.pickKind(random);
+			List<TAPColumn> columns = new ArrayList<TAPColumn>();
+			if (kind.equals(EPOCH_POSITION)) {
+				this.addEpochPosition(columns, block, EPOCHS[epochBlocks++ % EPOCHS.length]);
+			} else if (kind.equals(BRIGHTNESS)) {
+				String filter = this.pickFilter(random);
+				columns.add(column("mag_" + block, "mag", "mango:Brightness.value[CS.photCal=" + filter + "]"));
+				columns.add(column("mag_err_" + block, "mag",
+						"mango:Brightness.error/mango:error.PErrorSym1D.sigma[CS.photCal=" + filter + "]"));
+			} else if (kind.equals(COLOR)) {
+				columns.add(column("color_" + block, "mag", "mango:Color.value[CS.photFilterHigh="
+						+ this.pickFilter(random) + " CS.photFilterLow=" + this.pickFilter(random) + " CT.mode=colorindex]"));
+			} else if (kind.equals(LABEL)) {
+				columns.add(column("label_" + block, "",
+						"mango:Label.text[CT.vocabulary=https://www.ivoa.net/rdf/uat#classification]"));
+			} else {
+				columns.add(column("col_" + block, "", null));
+			}
+			for (TAPColumn tapColumn : columns) {
+				if (count++ < this.columnCount) {
+					table.addColumn(tapColumn);
+				}
+			}
+			block++;
+		}
+		return table;
+	}
+
+	private void addEpochPosition(List<TAPColumn> columns, int block, String epoch) {
+		String frames = "[CS.spaceSys=ICRS CT.epoch=" + epoch + "]";
+		columns.add(column("ra_" + block, "deg", "mango:EpochPosition.longitude" + frames));
+		columns.add(column("dec_" + block, "deg", "mango:EpochPosition.latitude" + frames));
+		columns.add(column("pmra_" + block, "mas / yr", "mango:EpochPosition.pmLongitude" + frames));
+		columns.add(column("pmdec_" + block, "mas / yr", "mango:EpochPosition.pmLatitude" + frames));
+		columns.add(column("plx_" + block, "mas", "mango:EpochPosition.parallax" + frames));
+		columns.add(column("rv_" + block, "km / s", "mango:EpochPosition.radialVelocity" + frames));
+		for (String error : new String[] { "position", "properMotion" }) {
+			String prefix = error.equals("position") ? "coo_err_" : "pm_err_";
+			String unit = error.equals("position") ? "mas" : "mas / yr";
+			String utype = "mango:EpochPosition.errors." + error + "/mango:error.PErrorEllipse.";
+			columns.add(column(prefix + "maj_" + block, unit, utype + "semiMajorAxis" + frames));
+			columns.add(column(prefix + "min_" + block, unit, utype + "semiMinorAxis" + frames));
+			columns.add(column(prefix + "angle_" + block, "deg", utype + "angle" + frames));
+		}
+	}
+
+	private String pickKind(Random random) {
+		int draw = random.nextInt(this.cumulatedWeights[this.cumulatedWeights.length - 1]);
+		for (int i = 0; i < this.kinds.length; i++) {
+			if (draw < this.cumulatedWeights[i]) {
+				return this.kinds[i];
+			}
+		}
+		return this.kinds[this.kinds.length - 1];
+	}
+
+	private String pickFilter(Random random) {
+		return this.filters.get(random.nextInt(this.filters.size()));
+	}
+
+	private static TAPColumn column(String name, String unit, String utype) {
+		return new TAPColumn(name, "synthetic column", unit, "", utype);
+	}
+}
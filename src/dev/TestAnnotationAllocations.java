@@ -0,0 +1,98 @@
+package dev;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import main.annoter.cache.MappingCache;
+import main.annoter.mivot.MivotAnnotations;
+
+/**
+ * Measure the memory allocated by the annotation of a query.
+ *
+ * The allocations of the current thread are read with the HotSpot
+ * com.sun.management.ThreadMXBean, which gives the bytes allocated per
+ * annotation without any profiler. Three selections are measured: the full
+ * "basic" table, the given "allfluxes" columns and both tables together.
+ *
+ * Usage: TestAnnotationAllocations [iterations [fluxColumns]]
+ *   iterations  number of measured annotations per selection (default 20000)
+ *   fluxColumns comma separated allfluxes columns (default U,B,V,R,I, resolved
+ *               from the local snippets)
+ *
+ * The mapper logs on System.out when no TAP logger is set; that output is
+ * discarded while measuring.
+ */
+public class TestAnnotationAllocations {
+	private static final PrintStream STDOUT = System.out;
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		List<String> fluxColumns = Arrays.asList(((args.length > 1) ? args[1] : "U,B,V,R,I").split(","));
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if ((bean instanceof com.sun.management.ThreadMXBean) == false) {
+			STDOUT.println("Thread allocation counters are not supported by this JVM");
+			System.exit(1);
+		}
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		MappingCache mappingCache = MappingCache.getCache();
+		mappingCache.getFakeMappingCacheForBasic();
+		mappingCache.getFakeMappingCacheForFlux();
+
+		Map<String, Map<String, Set<String>>> selections = new LinkedHashMap<String, Map<String, Set<String>>>();
+		selections.put("basic", selection("basic", Arrays.asList(
+				"main_id", "ra", "dec", "pmra", "pmdec", "parallax", "rvz_radvel",
+				"coo_err_maj", "coo_err_min", "coo_err_angle",
+				"pm_err_maj", "pm_err_min", "pm_err_angle", "otype"), null));
+		selections.put("allfluxes", selection("allfluxes", fluxColumns, null));
+		selections.put("both", selection("allfluxes", fluxColumns, selections.get("basic")));
+
+		STDOUT.println(String.format("%-10s %12s %14s %12s", "selection", "annotations", "bytes/annot", "us/annot"));
+		long threadId = Thread.currentThread().getId();
+		for (Map.Entry<String, Map<String, Set<String>>> entry : selections.entrySet()) {
+			System.setOut(DISCARD);
+			// Warm up: frame cache, JIT and the pooled buffers
+			for (int i = 0; i < iterations / 4 + 1; i++) {
+				new MivotAnnotations().mapMango(entry.getValue());
+			}
+			long allocated = threadBean.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			int length = 0;
+			for (int i = 0; i < iterations; i++) {
+				length += new MivotAnnotations().mapMango(entry.getValue()).length();
+			}
+			long elapsed = System.nanoTime() - start;
+			allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+			System.setOut(STDOUT);
+			STDOUT.println(String.format("%-10s %12d %14d %12.1f   (%d chars/annot)", entry.getKey(), iterations,
+					allocated / iterations, (elapsed / 1e3) / iterations, length / iterations));
+		}
+	}
+
+	/**
+	 * Build a selection (table -> columns), optionally extending another one.
+	 */
+	private static Map<String, Set<String>> selection(String table, List<String> columns, Map<String, Set<String>> base) {
+		Map<String, Set<String>> selection = new LinkedHashMap<String, Set<String>>();
+		if (base != null) {
+			selection.putAll(base);
+		}
+		selection.put(table, new LinkedHashSet<String>(columns));
+		return selection;
+	}
+}
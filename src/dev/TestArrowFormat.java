@@ -0,0 +1,148 @@
+package dev;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+
+import adql.db.DBColumn;
+import adql.db.DBType;
+import adql.db.DBType.DBDatatype;
+import main.vollt_tuning.MivotArrowFormat;
+import tap.data.TableIterator;
+import tap.metadata.TAPColumn;
+
+/**
+ * Write synthetic results with {@link MivotArrowFormat#writeStream} and read
+ * them back with the Arrow stream reader.
+ *
+ * Each case streams a number of rows (id BIGINT, mag DOUBLE, name VARCHAR
+ * with some nulls) under a MAXREC limit, then checks:
+ * - the number and the values of the rows read back,
+ * - the MIVOT block and the query status (OK or OVERFLOW) of the schema metadata,
+ * - that the output stream has been left open.
+ * The cases cover results smaller than a batch, truncated or not, and results
+ * spanning several batches, with and without limit (spooled batches).
+ *
+ * Usage: TestArrowFormat
+ *
+ * Exits with status 1 if a case fails.
+ */
+public class TestArrowFormat {
+	private static final String ANNOTATIONS = "<RESOURCE type=\"meta\"><VODML/></RESOURCE>";
+	private static final int BATCH = MivotArrowFormat.BATCH_SIZE;
+
+	/** Output stream recording whether it has been closed */
+	private static class CheckedOutputStream extends ByteArrayOutputStream {
+		boolean closed = false;
+		@Override
+		public void close() {
+			this.closed = true;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long[][] cases = {
+				{10, 0}, {10, 5}, {10, 10}, {10, 11},
+				{3 * BATCH + 7, 0}, {3 * BATCH + 7, 2 * BATCH + 1}, {2 * BATCH, 2 * BATCH}};
+		DBColumn[] columns = {
+				new TAPColumn("id", new DBType(DBDatatype.BIGINT), "row number", "", "", ""),
+				new TAPColumn("mag", new DBType(DBDatatype.DOUBLE), "half the row number", "mag", "", ""),
+				new TAPColumn("name", new DBType(DBDatatype.VARCHAR), "row name", "", "", "")};
+
+		System.out.println(String.format("%8s %8s %8s %10s %8s", "rows", "maxrec", "read", "status", "result"));
+		int failures = 0;
+		try (BufferAllocator allocator = new RootAllocator(Long.MAX_VALUE)) {
+			for (long[] c : cases) {
+				long rows = c[0];
+				long maxRec = c[1];
+				long expected = (maxRec > 0) ? Math.min(rows, maxRec) : rows;
+				String expectedStatus = (maxRec > 0 && rows > maxRec) ? "OVERFLOW" : "OK";
+
+				CheckedOutputStream output = new CheckedOutputStream();
+				long written = MivotArrowFormat.writeStream(getRows(rows, columns.length), columns, ANNOTATIONS, maxRec,
+						output, Thread.currentThread());
+
+				long read = 0;
+				boolean valid = (written == expected) && !output.closed;
+				String status = null;
+				try (ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(output.toByteArray()), allocator)) {
+					VectorSchemaRoot root = reader.getVectorSchemaRoot();
+					Map<String, String> metadata = root.getSchema().getCustomMetadata();
+					status = metadata.get(MivotArrowFormat.QUERY_STATUS_METADATA_KEY);
+					valid &= ANNOTATIONS.equals(metadata.get(MivotArrowFormat.MIVOT_METADATA_KEY));
+					valid &= expectedStatus.equals(status);
+					while (reader.loadNextBatch()) {
+						BigIntVector ids = (BigIntVector) root.getVector("id");
+						Float8Vector mags = (Float8Vector) root.getVector("mag");
+						VarCharVector names = (VarCharVector) root.getVector("name");
+						for (int i = 0; i < root.getRowCount(); i++) {
+							valid &= ids.get(i) == read && mags.get(i) == read / 2.0;
+							valid &= (read % 7 == 0) ? names.isNull(i) : ("s" + read).equals(names.getObject(i).toString());
+							read++;
+						}
+					}
+				}
+				valid &= (read == expected);
+				if (!valid) {
+					failures++;
+				}
+				System.out.println(String.format("%8d %8d %8d %10s %8s", rows, maxRec, read, status, valid ? "ok" : "FAILED"));
+			}
+		}
+		if (failures > 0) {
+			System.out.println("FAILED: " + failures + " case(s)");
+			System.exit(1);
+		}
+		System.out.println("OK: all streams read back as written");
+	}
+
+	/**
+	 * Build a result of synthetic rows. The iterator is a dynamic proxy: only
+	 * the methods read by the output format are implemented.
+	 *
+	 * @param rows number of rows
+	 * @param nbColumns number of columns (id, mag, name)
+	 * @return the row iterator
+	 */
+	private static TableIterator getRows(final long rows, final int nbColumns) {
+		return (TableIterator) Proxy.newProxyInstance(TestArrowFormat.class.getClassLoader(),
+				new Class<?>[] { TableIterator.class }, new InvocationHandler() {
+					private long row = -1;
+					private int col = nbColumns;
+
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "nextRow":
+							this.col = 0;
+							return ++this.row < rows;
+						case "hasNextCol":
+							return this.col < nbColumns;
+						case "nextCol":
+							switch (this.col++) {
+							case 0:
+								return this.row;
+							case 1:
+								return this.row / 2.0;
+							default:
+								return (this.row % 7 == 0) ? null : "s" + this.row;
+							}
+						case "close":
+							return null;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+						}
+					}
+				});
+	}
+}
@@ -0,0 +1,200 @@
+package dev;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import main.annoter.cache.MappingCache;
+import main.annoter.mivot.MivotAnnotations;
+
+/**
+ * Concurrency stress test and scaling benchmark of the annotation pipeline.
+ *
+ * - Builds a set of random column selections over the fake "basic" and
+ *   "allfluxes" mappings.
+ * - Annotates them once in a single thread to get the reference outputs,
+ *   which must be well-formed XML.
+ * - Annotates them again from 1, 2, 4... up to maxThreads threads, checks that
+ *   every output is identical to its reference, and reports the throughput.
+ *
+ * Usage: TestConcurrentAnnotations [maxThreads [selections [rounds [seed [fluxColumns]]]]]
+ *   maxThreads  largest number of threads (default 64)
+ *   selections  number of random selections (default 200)
+ *   rounds      number of times each selection is annotated per run (default 20)
+ *   seed        random seed (default 42)
+ *   fluxColumns comma separated allfluxes columns to pick from (default all);
+ *               e.g. U,B,V,R,I to only use the local snippets when the FPS is unreachable
+ *
+ * The mapper logs on System.out when no TAP logger is set; that output is
+ * discarded while the benchmark runs.
+ * Exits with status 1 if any output differs from its reference.
+ */
+public class TestConcurrentAnnotations {
+	private static final List<String> BASIC_COLUMNS = Arrays.asList(
+			"main_id", "ra", "dec", "pmra", "pmdec", "parallax", "rvz_radvel",
+			"coo_err_maj", "coo_err_min", "coo_err_angle",
+			"pm_err_maj", "pm_err_min", "pm_err_angle", "otype");
+	private static final List<String> FLUX_COLUMNS = Arrays.asList(
+			"U", "B", "V", "G", "R", "I", "J", "H", "K", "F150W", "F200W", "F444W",
+			"u_", "g_", "r_", "z_", "i_");
+
+	private static final PrintStream STDOUT = System.out;
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+		int nbSelections = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+		int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+		long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42;
+		List<String> fluxColumns = (args.length > 4) ? Arrays.asList(args[4].split(",")) : FLUX_COLUMNS;
+
+		MappingCache mappingCache = MappingCache.getCache();
+		mappingCache.getFakeMappingCacheForBasic();
+		mappingCache.getFakeMappingCacheForFlux();
+
+		List<Map<String, Set<String>>> selections = buildSelections(nbSelections, fluxColumns, new Random(seed));
+
+		// Single-threaded references (the first pass also warms up the frame cache)
+		System.setOut(DISCARD);
+		List<String> references = new ArrayList<String>();
+		for (Map<String, Set<String>> selection : selections) {
+			references.add(new MivotAnnotations().mapMango(selection));
+		}
+		System.setOut(STDOUT);
+		int malformed = 0;
+		for (int i = 0; i < references.size(); i++) {
+			if (isWellFormed(references.get(i)) == false) {
+				STDOUT.println("Malformed reference for " + selections.get(i));
+				malformed++;
+			}
+			if (references.get(i).contains("status=\"FAILED\"")) {
+				STDOUT.println("Annotation failure for " + selections.get(i));
+			}
+		}
+
+		STDOUT.println(String.format("%8s %12s %12s %10s %10s", "threads", "annot/s", "ms/annot", "speedup", "mismatch"));
+		double singleThreadRate = 0;
+		int totalMismatches = 0;
+		for (int nbThreads = 1; nbThreads <= maxThreads; nbThreads *= 2) {
+			System.setOut(DISCARD);
+			long start = System.nanoTime();
+			int mismatches = run(nbThreads, selections, references, rounds);
+			long elapsed = System.nanoTime() - start;
+			System.setOut(STDOUT);
+
+			int nbAnnotations = selections.size() * rounds;
+			double rate = nbAnnotations / (elapsed / 1e9);
+			if (nbThreads == 1) {
+				singleThreadRate = rate;
+			}
+			STDOUT.println(String.format("%8d %12.1f %12.3f %10.2f %10d",
+					nbThreads, rate, (elapsed / 1e6) / nbAnnotations, rate / singleThreadRate, mismatches));
+			totalMismatches += mismatches;
+		}
+
+		if (malformed > 0 || totalMismatches > 0) {
+			STDOUT.println("FAILED: " + malformed + " malformed references, " + totalMismatches + " mismatches");
+			System.exit(1);
+		}
+		STDOUT.println("OK: all outputs are well-formed and identical to the single-threaded ones");
+	}
+
+	/**
+	 * Annotate each selection rounds times from nbThreads threads.
+	 *
+	 * @return the number of outputs differing from their reference
+	 */
+	private static int run(int nbThreads, final List<Map<String, Set<String>>> selections,
+			final List<String> references, int rounds) throws Exception {
+		final int nbTasks = selections.size() * rounds;
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger mismatches = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < nbThreads; t++) {
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					int task;
+					while ((task = next.getAndIncrement()) < nbTasks) {
+						int index = task % selections.size();
+						String output = new MivotAnnotations().mapMango(selections.get(index));
+						if (output.equals(references.get(index)) == false) {
+							if (mismatches.incrementAndGet() <= 5) {
+								STDOUT.println("Mismatch for " + selections.get(index)
+										+ (isWellFormed(output) ? "" : " (malformed)"));
+								TestMivotAnnotations.diffLines(references.get(index), output);
+							}
+						}
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		return mismatches.get();
+	}
+
+	/**
+	 * Build random selections; each column is selected with a probability of 1/2.
+	 */
+	private static List<Map<String, Set<String>>> buildSelections(int nbSelections, List<String> fluxColumns, Random random) {
+		List<Map<String, Set<String>>> selections = new ArrayList<Map<String, Set<String>>>();
+		while (selections.size() < nbSelections) {
+			Map<String, Set<String>> selection = new LinkedHashMap<String, Set<String>>();
+			Set<String> basic = pick(BASIC_COLUMNS, random);
+			Set<String> fluxes = pick(fluxColumns, random);
+			if (basic.isEmpty() == false) {
+				selection.put("basic", basic);
+			}
+			if (fluxes.isEmpty() == false) {
+				selection.put("allfluxes", fluxes);
+			}
+			if (selection.isEmpty() == false) {
+				selections.add(selection);
+			}
+		}
+		return selections;
+	}
+
+	private static Set<String> pick(List<String> columns, Random random) {
+		Set<String> picked = new LinkedHashSet<String>();
+		for (String column : columns) {
+			if (random.nextBoolean()) {
+				picked.add(column);
+			}
+		}
+		return picked;
+	}
+
+	private static boolean isWellFormed(String xml) {
+		try {
+			DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package dev;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import main.annoter.cache.MappingCache;
+import tap.metadata.TAPTable;
+
+/**
+ * Measure how the MappingCache scales with the number of mapped tables.
+ *
+ * Synthetic tables (see {@link SyntheticSchema}) are ingested in steps with
+ * {@link MappingCache#addTAPTable(TAPTable)}. After each step the program
+ * prints:
+ * - the ingestion time per table of the step (column decoding and plan compilation),
+ * - the heap retained by the cache per table (used heap after GC, minus the
+ *   heap used before the first ingestion),
+ * - the latency of getTableMapping(table, hostClass) and of
+ *   getTableMapping(table, hostClass, selectedColumns) on random ingested
+ *   tables, selecting 10 columns.
+ * Flat columns mean that ingestion and lookups do not depend on the number
+ * of tables already cached.
+ *
+ * Usage: TestMappingCacheScaling [tables [columns [steps [lookups [mix]]]]]
+ *   tables   total number of tables (default 9000)
+ *   columns  columns per table (default 400)
+ *   steps    number of measurement steps (default 9)
+ *   lookups  lookups per step and per method (default 20000)
+ *   mix      utype mix (default {@value SyntheticSchema#DEFAULT_MIX})
+ *
+ * Run with a heap large enough for the whole schema (e.g. -Xmx8g for the
+ * defaults). The mapper logs are discarded.
+ */
+public class TestMappingCacheScaling {
+	private static final PrintStream STDOUT = System.out;
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+	private static final String[] HOST_CLASSES = {
+			"mango:EpochPosition", "mango:Brightness", "mango:Color", "mango:Label" };
+
+	public static void main(String[] args) throws Exception {
+		int tables = (args.length > 0) ? Integer.parseInt(args[0]) : 9000;
+		int columns = (args.length > 1) ? Integer.parseInt(args[1]) : 400;
+		int steps = (args.length > 2) ? Integer.parseInt(args[2]) : 9;
+		int lookups = (args.length > 3) ? Integer.parseInt(args[3]) : 20000;
+		String mix = (args.length > 4) ? args[4] : SyntheticSchema.DEFAULT_MIX;
+
+		SyntheticSchema schema = new SyntheticSchema(tables, columns, mix, 42);
+		MappingCache mappingCache = MappingCache.getCache();
+		Random random = new Random(7);
+		long baseHeap = usedHeap();
+
+		STDOUT.println("Synthetic schema: " + tables + " tables x " + columns + " columns, mix " + mix);
+		STDOUT.println(String.format("%8s %10s %14s %12s %16s %16s",
+				"tables", "mapped", "us/table", "KB/table", "ns/lookup(host)", "ns/lookup(sel)"));
+		int ingested = 0;
+		long mappedColumns = 0;
+		for (int step = 1; step <= steps; step++) {
+			int target = (int) ((long) tables * step / steps);
+			List<TAPTable> batch = new ArrayList<TAPTable>();
+			for (int i = ingested; i < target; i++) {
+				batch.add(schema.getTable(i));
+			}
+
+			System.setOut(DISCARD);
+			long start = System.nanoTime();
+			for (TAPTable table : batch) {
+				mappingCache.addTAPTable(table);
+			}
+			long ingestion = System.nanoTime() - start;
+			System.setOut(STDOUT);
+			for (TAPTable table : batch) {
+				if (mappingCache.getTableMapping(table.getADQLName()) != null) {
+					mappedColumns += mappingCache.getTableMapping(table.getADQLName()).size();
+				}
+			}
+			int stepTables = target - ingested;
+			ingested = target;
+			batch = null;
+
+			long retained = usedHeap() - baseHeap;
+
+			// Lookup samples prepared out of the timed loops
+			String[] sampleTables = new String[lookups];
+			String[] sampleHosts = new String[lookups];
+			List<List<String>> sampleSelections = new ArrayList<List<String>>();
+			for (int i = 0; i < lookups; i++) {
+				sampleTables[i] = SyntheticSchema.getTableName(random.nextInt(ingested));
+				sampleHosts[i] = HOST_CLASSES[random.nextInt(HOST_CLASSES.length)];
+				sampleSelections.add(selection(mappingCache, sampleTables[i], random, 10));
+			}
+			long hostLookup = timeHostLookups(mappingCache, sampleTables, sampleHosts);
+			long selectionLookup = timeSelectionLookups(mappingCache, sampleTables, sampleHosts, sampleSelections);
+
+			STDOUT.println(String.format("%8d %10d %14.1f %12.1f %16d %16d",
+					ingested, mappedColumns,
+					(stepTables == 0) ? 0 : ingestion / 1e3 / stepTables,
+					retained / 1024.0 / ingested,
+					hostLookup / lookups, selectionLookup / lookups));
+		}
+	}
+
+	private static long timeHostLookups(MappingCache mappingCache, String[] tables, String[] hosts) {
+		int found = 0;
+		// Warm up on the same samples
+		for (int i = 0; i < tables.length; i++) {
+			found += mappingCache.getTableMapping(tables[i], hosts[i]).size();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < tables.length; i++) {
+			found += mappingCache.getTableMapping(tables[i], hosts[i]).size();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (found < 0) {
+			STDOUT.println(found);
+		}
+		return elapsed;
+	}
+
+	private static long timeSelectionLookups(MappingCache mappingCache, String[] tables, String[] hosts,
+			List<List<String>> selections) {
+		int found = 0;
+		for (int i = 0; i < tables.length; i++) {
+			found += mappingCache.getTableMapping(tables[i], hosts[i], selections.get(i)).size();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < tables.length; i++) {
+			found += mappingCache.getTableMapping(tables[i], hosts[i], selections.get(i)).size();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (found < 0) {
+			STDOUT.println(found);
+		}
+		return elapsed;
+	}
+
+	/**
+	 * Pick mapped columns of a table at random.
+	 */
+	private static List<String> selection(MappingCache mappingCache, String table, Random random, int size) {
+		List<String> selection = new ArrayList<String>();
+		if (mappingCache.getTableMapping(table) == null) {
+			return selection;
+		}
+		List<String> mapped = new ArrayList<String>(mappingCache.getTableMapping(table).keySet());
+		for (int i = 0; i < size; i++) {
+			selection.add(mapped.get(random.nextInt(mapped.size())));
+		}
+		return selection;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
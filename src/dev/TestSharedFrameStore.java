@@ -0,0 +1,144 @@
+package dev;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.annoter.cache.Cache;
+import main.annoter.cache.DirectoryFrameStore;
+import main.annoter.cache.FrameStore;
+import main.annoter.cache.LocalFrameStore;
+import main.annoter.cache.MappingCache;
+import main.annoter.cache.TieredFrameStore;
+import main.annoter.mivot.FrameHolder;
+import main.annoter.mivot.MivotAnnotations;
+
+/**
+ * Simulate the cold start of the nodes of a cluster sharing their frames
+ * through a {@link DirectoryFrameStore} (a temporary directory stands for the
+ * shared mount).
+ *
+ * Each node is simulated in turn by installing a fresh in-process store tiered
+ * over the shared directory, then annotating a selection of all the "basic"
+ * and "allfluxes" columns. For each node the program prints the number of
+ * frames it built with the shared directory and without it (in-process store
+ * only), and checks that its block is identical to the one of the first node.
+ *
+ * Usage: TestSharedFrameStore [nodes [fluxColumns]]
+ *   nodes       number of simulated nodes (default 6)
+ *   fluxColumns comma separated allfluxes columns (default U,B,V,R,I, served by
+ *               the local snippets when the FPS is unreachable)
+ *
+ * Exits with status 1 if a block differs or if a node other than the first
+ * one builds a frame while sharing.
+ */
+public class TestSharedFrameStore {
+	private static final List<String> BASIC_COLUMNS = Arrays.asList(
+			"main_id", "ra", "dec", "pmra", "pmdec", "parallax", "rvz_radvel",
+			"coo_err_maj", "coo_err_min", "coo_err_angle",
+			"pm_err_maj", "pm_err_min", "pm_err_angle", "otype");
+
+	private static final PrintStream STDOUT = System.out;
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	public static void main(String[] args) throws Exception {
+		int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 6;
+		List<String> fluxColumns = Arrays.asList(((args.length > 1) ? args[1] : "U,B,V,R,I").split(","));
+
+		MappingCache mappingCache = MappingCache.getCache();
+		mappingCache.getFakeMappingCacheForBasic();
+		mappingCache.getFakeMappingCacheForFlux();
+		Map<String, Set<String>> selection = new LinkedHashMap<String, Set<String>>();
+		selection.put("basic", new LinkedHashSet<String>(BASIC_COLUMNS));
+		selection.put("allfluxes", new LinkedHashSet<String>(fluxColumns));
+
+		File directory = Files.createTempDirectory("mivot-frames-").toFile();
+		FrameStore shared = new DirectoryFrameStore(directory);
+		STDOUT.println("Shared frame directory: " + directory);
+		STDOUT.println(String.format("%6s %16s %16s %10s", "node", "built(shared)", "built(isolated)", "identical"));
+
+		String reference = null;
+		int failures = 0;
+		int totalShared = 0;
+		int totalIsolated = 0;
+		for (int node = 1; node <= nodes; node++) {
+			CountingStore sharedBuilds = new CountingStore(shared);
+			Cache.setFrameStore(new TieredFrameStore(new LocalFrameStore(), sharedBuilds));
+			String block = annotate(selection);
+
+			CountingStore isolatedBuilds = new CountingStore(new LocalFrameStore());
+			Cache.setFrameStore(isolatedBuilds);
+			String isolatedBlock = annotate(selection);
+
+			if (reference == null) {
+				reference = block;
+			}
+			boolean identical = block.equals(reference) && isolatedBlock.equals(reference);
+			STDOUT.println(String.format("%6d %16d %16d %10s",
+					node, sharedBuilds.getPuts(), isolatedBuilds.getPuts(), identical));
+			if (identical == false || (node > 1 && sharedBuilds.getPuts() > 0)) {
+				failures++;
+			}
+			totalShared += sharedBuilds.getPuts();
+			totalIsolated += isolatedBuilds.getPuts();
+		}
+		STDOUT.println("Frames built by the cluster: " + totalShared + " shared, " + totalIsolated + " isolated");
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+		if (failures > 0) {
+			STDOUT.println("FAILED: " + failures + " nodes");
+			System.exit(1);
+		}
+		STDOUT.println("OK");
+	}
+
+	private static String annotate(Map<String, Set<String>> selection) {
+		System.setOut(DISCARD);
+		try {
+			return new MivotAnnotations().mapMango(selection);
+		} finally {
+			System.setOut(STDOUT);
+		}
+	}
+
+	/**
+	 * Store counting the frames written into it: only built frames are written.
+	 */
+	private static class CountingStore implements FrameStore {
+		private final FrameStore store;
+		private final AtomicInteger puts = new AtomicInteger();
+
+		CountingStore(FrameStore store) {
+			this.store = store;
+		}
+
+		public FrameHolder get(String frameId) {
+			return this.store.get(frameId);
+		}
+
+		public FrameHolder putIfAbsent(FrameHolder frameHolder) {
+			this.puts.incrementAndGet();
+			return this.store.putIfAbsent(frameHolder);
+		}
+
+		int getPuts() {
+			return this.puts.get();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package main.annoter.batch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import main.annoter.cache.MappingCache;
+import main.annoter.mivot.MappingError;
+
+/**
+ * Command line tool adding MIVOT annotations to existing VOTable files.
+ *
+ * Usage:
+ *   BatchAnnotator -mapping FILE [-mapping FILE...] -out DIR [-threads N] [-table NAME...] INPUT...
+ *
+ *   -mapping  TAP_SCHEMA.columns dump or mapping file (see {@link MappingLoader}); repeatable
+ *   -out      directory receiving the annotated files (same file names as the inputs)
+ *   -threads  number of files processed concurrently (default: number of processors)
+ *   -table    restrict the FIELD matching to this mapped table; repeatable
+ *   INPUT     VOTable files or directories (their *.vot, *.votable and *.xml files)
+ *
+ * The mappings are loaded and their annotation plans compiled before any file
+ * is read. The files are then dispatched on a fixed pool of workers sharing
+ * one {@link VOTableAnnotator}. Files without mapped columns or already
+ * annotated are copied unchanged. The exit status is 1 if a file failed.
+ */
+public class BatchAnnotator {
+
+	public static void main(String[] args) throws Exception {
+		List<String> mappings = new ArrayList<String>();
+		List<String> restriction = new ArrayList<String>();
+		List<File> inputs = new ArrayList<File>();
+		File outDir = null;
+		int nbThreads = Runtime.getRuntime().availableProcessors();
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && i == args.length - 1) {
+				usage("Missing value for " + arg);
+			}
+			if ("-mapping".equals(arg)) {
+				mappings.add(args[++i]);
+			} else if ("-out".equals(arg)) {
+				outDir = new File(args[++i]);
+			} else if ("-threads".equals(arg)) {
+				nbThreads = Integer.parseInt(args[++i]);
+			} else if ("-table".equals(arg)) {
+				restriction.add(args[++i]);
+			} else if (arg.startsWith("-")) {
+				usage("Unknown option " + arg);
+			} else {
+				addInputs(new File(arg), inputs);
+			}
+		}
+		if (mappings.isEmpty() || outDir == null || inputs.isEmpty() || nbThreads < 1) {
+			usage(null);
+		}
+		if (outDir.isDirectory() == false && outDir.mkdirs() == false) {
+			usage("Cannot create the output directory " + outDir);
+		}
+
+		// Load the mappings
+		List<String> tables = new ArrayList<String>();
+		try {
+			for (String mapping : mappings) {
+				for (String table : MappingLoader.load(mapping)) {
+					if (tables.contains(table) == false) {
+						tables.add(table);
+					}
+				}
+			}
+		} catch (MappingError e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		if (restriction.isEmpty() == false) {
+			for (String table : restriction) {
+				if (tables.contains(table) == false) {
+					usage("Table " + table + " is not mapped, mapped tables: " + tables);
+				}
+			}
+			tables = restriction;
+		}
+		MappingCache.getCache().compileAnnotationPlans();
+		System.out.println("Mapped tables: " + tables);
+
+		// Process the files
+		final VOTableAnnotator annotator = new VOTableAnnotator(tables);
+		ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		List<Future<VOTableAnnotator.Status>> futures = new ArrayList<Future<VOTableAnnotator.Status>>();
+		long start = System.nanoTime();
+		for (final File input : inputs) {
+			final File output = new File(outDir, input.getName());
+			futures.add(executor.submit(new Callable<VOTableAnnotator.Status>() {
+				public VOTableAnnotator.Status call() throws Exception {
+					return annotator.annotate(input, output);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		int[] counts = new int[VOTableAnnotator.Status.values().length];
+		int failures = 0;
+		long bytes = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			try {
+				counts[futures.get(i).get().ordinal()]++;
+				bytes += inputs.get(i).length();
+			} catch (ExecutionException e) {
+				failures++;
+				System.err.println("FAILED " + inputs.get(i) + ": " + e.getCause().getMessage());
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d files in %.1f s (%.1f MB/s): %d annotated, %d already annotated, %d not mapped, %d failed",
+				inputs.size(), seconds, bytes / 1e6 / seconds,
+				counts[VOTableAnnotator.Status.ANNOTATED.ordinal()],
+				counts[VOTableAnnotator.Status.ALREADY_ANNOTATED.ordinal()],
+				counts[VOTableAnnotator.Status.NOT_MAPPED.ordinal()],
+				failures));
+		System.exit(failures > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Add a file, or the VOTable files of a directory, to the inputs.
+	 */
+	private static void addInputs(File file, List<File> inputs) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			if (files == null) {
+				return;
+			}
+			Arrays.sort(files);
+			for (File child : files) {
+				String name = child.getName().toLowerCase();
+				if (child.isFile() && (name.endsWith(".vot") || name.endsWith(".votable") || name.endsWith(".xml"))) {
+					inputs.add(child);
+				}
+			}
+		} else if (file.isFile()) {
+			inputs.add(file);
+		} else {
+			usage("No such file " + file);
+		}
+	}
+
+	private static void usage(String message) {
+		if (message != null) {
+			System.err.println(message);
+		}
+		System.err.println("Usage: BatchAnnotator -mapping FILE [-mapping FILE...] -out DIR [-threads N] [-table NAME...] INPUT...");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,129 @@
+package main.annoter.batch;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import main.annoter.cache.SnippetIndex;
+import main.annoter.meta.Glossary;
+import main.annoter.mivot.MappingError;
+import main.annoter.mivot.PhotCalFactory;
+import main.annoter.mivot.PhotCalTransformer;
+
+/**
+ * Command line tool baking the PhotCal frames of the filters known by SVO
+ * into snippet files, so that the service never calls the FPS at runtime.
+ *
+ * Usage:
+ *   FilterBakeTool -out DIR [-record DIR | -replay DIR] [FILTER...]
+ *       -out     directory of the baked frames (src/snippets in the build)
+ *       -record  also save the raw FPS responses in that directory
+ *       -replay  read the FPS responses saved with -record instead of calling
+ *                the FPS (offline mode)
+ *       FILTER   short names of {@link Glossary.Filters} (default: all the
+ *                filters having an SVO identifier)
+ *
+ * Each FPS response runs through the same {@link PhotCalTransformer} as at
+ * runtime, the frame being written as DIR/mango.baked.FILTER.xml with the ids
+ * the frame factory gives to a "photCal=FILTER" frame. The files are run by
+ * the gradle task bakeFilterFrames and loaded by the {@link SnippetIndex}.
+ */
+public class FilterBakeTool {
+
+	public static void main(String[] args) throws Exception {
+		File out = null;
+		File record = null;
+		File replay = null;
+		List<String> filters = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("-") == false) {
+				filters.add(args[i]);
+				continue;
+			}
+			if (i == args.length - 1) {
+				usage("Missing value for " + args[i]);
+			}
+			if ("-out".equals(args[i])) {
+				out = new File(args[++i]);
+			} else if ("-record".equals(args[i])) {
+				record = new File(args[++i]);
+			} else if ("-replay".equals(args[i])) {
+				replay = new File(args[++i]);
+			} else {
+				usage("Unknown option " + args[i]);
+			}
+		}
+		if (out == null || (record != null && replay != null)) {
+			usage(null);
+		}
+		if (filters.isEmpty()) {
+			for (Map.Entry<String, String> filter : Glossary.Filters.map.entrySet()) {
+				if (filter.getValue() != null && filter.getValue().isEmpty() == false) {
+					filters.add(filter.getKey());
+				}
+			}
+		}
+
+		try {
+			Files.createDirectories(out.toPath());
+			if (record != null) {
+				Files.createDirectories(record.toPath());
+			}
+			for (String filter : filters) {
+				bake(filter, out, record, replay);
+			}
+		} catch (MappingError | IOException | XMLStreamException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void bake(String filter, File out, File record, File replay)
+			throws MappingError, IOException, XMLStreamException {
+		String svoId = Glossary.Filters.map.get(filter);
+		if (svoId == null || svoId.isEmpty()) {
+			throw new MappingError("No SVO filter identifier found for abreviation " + filter);
+		}
+		byte[] response;
+		if (replay != null) {
+			File recorded = getRecordFile(replay, svoId);
+			if (recorded.exists() == false) {
+				throw new MappingError("No recorded FPS response for " + svoId + ": " + recorded);
+			}
+			response = Files.readAllBytes(recorded.toPath());
+		} else {
+			response = PhotCalFactory.getFPSResponse(svoId).getBytes(StandardCharsets.UTF_8);
+			if (record != null) {
+				Files.write(getRecordFile(record, svoId).toPath(), response);
+			}
+		}
+		String frame = PhotCalTransformer.transform(new ByteArrayInputStream(response),
+				SnippetIndex.getBakedPhotCalId(filter), SnippetIndex.getBakedFilterId(filter));
+		File file = new File(out, SnippetIndex.BAKED_PREFIX + filter + SnippetIndex.SUFFIX);
+		Files.write(file.toPath(), frame.getBytes(StandardCharsets.UTF_8));
+		System.out.println(svoId + " baked in " + file);
+	}
+
+	/**
+	 * Recorded FPS response: the SVO id is URL-encoded so that it gives a valid file name.
+	 */
+	private static File getRecordFile(File directory, String svoId) throws IOException {
+		return new File(directory, URLEncoder.encode(svoId, "UTF-8") + ".xml");
+	}
+
+	private static void usage(String message) {
+		if (message != null) {
+			System.err.println(message);
+		}
+		System.err.println("Usage: FilterBakeTool -out DIR [-record DIR | -replay DIR] [FILTER...]");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,184 @@
+package main.annoter.batch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import main.annoter.cache.MappingCache;
+import main.annoter.mivot.MappingError;
+import tap.metadata.TAPColumn;
+import tap.metadata.TAPTable;
+import uk.ac.starlink.table.RowSequence;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StarTableFactory;
+
+/**
+ * Load mapping rules into the {@link MappingCache} outside of any TAP service.
+ *
+ * The input is a table with one row per column, having at least the
+ * TAP_SCHEMA.columns fields table_name, column_name and utype (unit, ucd and
+ * description are read when present). This is either:
+ * - a dump of TAP_SCHEMA.columns (e.g. the VOTable returned by
+ *   SELECT * FROM TAP_SCHEMA.columns),
+ * - a hand-written mapping file with the same columns (CSV, or whitespace
+ *   separated ASCII with a header line).
+ *
+ * The file is read with STIL; the format is guessed from the file extension
+ * (.csv, .txt/.tsv/.ascii) or detected by STIL for VOTable and FITS.
+ * Only the columns with a mango: utype are ingested, as in the TAP service.
+ */
+public class MappingLoader {
+	private static final String TABLE_NAME = "table_name";
+	private static final String COLUMN_NAME = "column_name";
+	private static final String UTYPE = "utype";
+	private static final String UNIT = "unit";
+	private static final String UCD = "ucd";
+	private static final String DESCRIPTION = "description";
+
+	/**
+	 * Read a mapping file and ingest its tables.
+	 *
+	 * @param location path or URL of the file
+	 * @return ADQL names of the tables having at least one mapped column, in file order
+	 * @throws MappingError when the file cannot be read or misses a required column
+	 */
+	public static List<String> load(String location) throws MappingError {
+		StarTable starTable;
+		try {
+			starTable = new StarTableFactory(false).makeStarTable(location, getHandler(location));
+		} catch (IOException e) {
+			throw new MappingError("Cannot read the mapping file " + location + ": " + e.getMessage());
+		}
+
+		List<String> columnNames = new ArrayList<String>();
+		for (int i = 0; i < starTable.getColumnCount(); i++) {
+			columnNames.add(starTable.getColumnInfo(i).getName());
+		}
+		// STIL only takes the first CSV/ASCII line as header when the data
+		// look different (e.g. numeric); with text only columns, the header is
+		// the first row
+		boolean headerRow = false;
+		if (getColumnIndex(columnNames, TABLE_NAME, false) < 0) {
+			List<String> firstRow = readFirstRow(starTable);
+			if (getColumnIndex(firstRow, TABLE_NAME, false) >= 0) {
+				columnNames = firstRow;
+				headerRow = true;
+			}
+		}
+		int tableIndex = getColumnIndex(columnNames, TABLE_NAME, true);
+		int columnIndex = getColumnIndex(columnNames, COLUMN_NAME, true);
+		int utypeIndex = getColumnIndex(columnNames, UTYPE, true);
+		int unitIndex = getColumnIndex(columnNames, UNIT, false);
+		int ucdIndex = getColumnIndex(columnNames, UCD, false);
+		int descriptionIndex = getColumnIndex(columnNames, DESCRIPTION, false);
+
+		// table name -> TAP table, in file order
+		Map<String, TAPTable> tapTables = new LinkedHashMap<String, TAPTable>();
+		try {
+			RowSequence rowSequence = starTable.getRowSequence();
+			try {
+				if (headerRow) {
+					rowSequence.next();
+				}
+				while (rowSequence.next()) {
+					String utype = getString(rowSequence, utypeIndex);
+					if (utype == null || utype.startsWith("mango:") == false) {
+						continue;
+					}
+					String tableName = getString(rowSequence, tableIndex);
+					String columnName = getString(rowSequence, columnIndex);
+					if (tableName == null || columnName == null) {
+						throw new MappingError("Mapping file " + location + ": row without table_name or column_name");
+					}
+					if (tapTables.containsKey(tableName) == false) {
+						tapTables.put(tableName, new TAPTable(tableName, TAPTable.TableType.table));
+					}
+					tapTables.get(tableName).addColumn(new TAPColumn(columnName,
+							getOptionalString(rowSequence, descriptionIndex),
+							getOptionalString(rowSequence, unitIndex),
+							getOptionalString(rowSequence, ucdIndex),
+							utype));
+				}
+			} finally {
+				rowSequence.close();
+			}
+		} catch (IOException e) {
+			throw new MappingError("Cannot read the mapping file " + location + ": " + e.getMessage());
+		}
+
+		MappingCache mappingCache = MappingCache.getCache();
+		for (TAPTable tapTable : tapTables.values()) {
+			mappingCache.addTAPTable(tapTable);
+		}
+		return new ArrayList<String>(tapTables.keySet());
+	}
+
+	/**
+	 * STIL input handler from the file extension, auto-detection otherwise.
+	 */
+	private static String getHandler(String location) {
+		String name = location.toLowerCase();
+		if (name.endsWith(".csv")) {
+			return "csv";
+		} else if (name.endsWith(".txt") || name.endsWith(".tsv") || name.endsWith(".ascii")) {
+			return "ascii";
+		}
+		return StarTableFactory.AUTO_HANDLER;
+	}
+
+	/**
+	 * @return the cell values of the first row (empty list if the table is empty)
+	 */
+	private static List<String> readFirstRow(StarTable starTable) throws MappingError {
+		List<String> values = new ArrayList<String>();
+		try {
+			RowSequence rowSequence = starTable.getRowSequence();
+			try {
+				if (rowSequence.next()) {
+					for (int i = 0; i < starTable.getColumnCount(); i++) {
+						values.add(getOptionalString(rowSequence, i));
+					}
+				}
+			} finally {
+				rowSequence.close();
+			}
+		} catch (IOException e) {
+			throw new MappingError("Cannot read the mapping file header: " + e.getMessage());
+		}
+		return values;
+	}
+
+	private static int getColumnIndex(List<String> columnNames, String name, boolean required) throws MappingError {
+		for (int i = 0; i < columnNames.size(); i++) {
+			if (name.equalsIgnoreCase(columnNames.get(i))) {
+				return i;
+			}
+		}
+		if (required) {
+			throw new MappingError("The mapping file has no " + name + " column");
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the trimmed cell value, null when empty
+	 */
+	private static String getString(RowSequence rowSequence, int index) throws IOException {
+		Object cell = rowSequence.getCell(index);
+		if (cell == null) {
+			return null;
+		}
+		String value = cell.toString().trim();
+		return value.isEmpty() ? null : value;
+	}
+
+	/**
+	 * @return the trimmed cell value, an empty string when empty or when the column is absent (index < 0)
+	 */
+	private static String getOptionalString(RowSequence rowSequence, int index) throws IOException {
+		String value = (index < 0) ? null : getString(rowSequence, index);
+		return (value == null) ? "" : value;
+	}
+}
@@ -0,0 +1,94 @@
+package main.annoter.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import main.annoter.cache.MappingCache;
+import main.annoter.cache.MappingSnapshot;
+import main.annoter.mivot.MappingError;
+
+/**
+ * Command line tool writing and inspecting mapping snapshots.
+ *
+ * Usage:
+ *   MappingSnapshotTool -mapping FILE [-mapping FILE...] -out SNAPSHOT
+ *       load TAP_SCHEMA.columns dumps or mapping files (see {@link MappingLoader})
+ *       and write their snapshot
+ *   MappingSnapshotTool -dump SNAPSHOT
+ *       load a snapshot (checking it against the current utype decoder) and
+ *       print its tables, columns and frames
+ *
+ * The test fixture src/fixtures/simbad.mapping is generated from
+ * src/fixtures/simbad.mapping.csv with the first form.
+ */
+public class MappingSnapshotTool {
+
+	public static void main(String[] args) throws Exception {
+		List<String> mappings = new ArrayList<String>();
+		File out = null;
+		File dump = null;
+		for (int i = 0; i < args.length; i++) {
+			if (i == args.length - 1) {
+				usage("Missing value for " + args[i]);
+			}
+			if ("-mapping".equals(args[i])) {
+				mappings.add(args[++i]);
+			} else if ("-out".equals(args[i])) {
+				out = new File(args[++i]);
+			} else if ("-dump".equals(args[i])) {
+				dump = new File(args[++i]);
+			} else {
+				usage("Unknown option " + args[i]);
+			}
+		}
+
+		try {
+			if (dump != null && mappings.isEmpty() && out == null) {
+				dump(dump);
+			} else if (dump == null && mappings.isEmpty() == false && out != null) {
+				write(mappings, out);
+			} else {
+				usage(null);
+			}
+		} catch (MappingError | IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void write(List<String> mappings, File out) throws MappingError, IOException {
+		for (String mapping : mappings) {
+			MappingLoader.load(mapping);
+		}
+		MappingSnapshot snapshot = MappingSnapshot.fromCache(MappingCache.getCache());
+		snapshot.write(out);
+		System.out.println("Snapshot of " + snapshot.getTableNames() + " written in " + out
+				+ " (fingerprint " + Long.toHexString(snapshot.getFingerprint()) + ")");
+	}
+
+	private static void dump(File file) throws MappingError {
+		MappingSnapshot snapshot = MappingSnapshot.read(file);
+		MappingCache.getCache().loadSnapshot(snapshot, null);
+		System.out.println("Format version " + MappingSnapshot.FORMAT_VERSION
+				+ ", fingerprint " + Long.toHexString(snapshot.getFingerprint()));
+		for (String tableName : snapshot.getTableNames()) {
+			System.out.println(tableName + ": " + snapshot.getColumns(tableName).size() + " columns, frames "
+					+ snapshot.getFrames(tableName));
+			for (int i = 0; i < snapshot.getColumns(tableName).size(); i++) {
+				System.out.println("  " + snapshot.getColumns(tableName).get(i).getADQLName()
+						+ " -> " + snapshot.getDecodedUtypes(tableName).get(i));
+			}
+		}
+	}
+
+	private static void usage(String message) {
+		if (message != null) {
+			System.err.println(message);
+		}
+		System.err.println("Usage: MappingSnapshotTool -mapping FILE [-mapping FILE...] -out SNAPSHOT");
+		System.err.println("       MappingSnapshotTool -dump SNAPSHOT");
+		System.exit(2);
+	}
+}
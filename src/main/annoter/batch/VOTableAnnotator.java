@@ -0,0 +1,256 @@
+package main.annoter.batch;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.annoter.cache.AnnotationPlan;
+import main.annoter.cache.MappingCache;
+import main.annoter.mivot.MivotAnnotations;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.TableFormatException;
+import uk.ac.starlink.table.TableSink;
+import uk.ac.starlink.votable.VOTableBuilder;
+
+/**
+ * Add a MIVOT block to an existing VOTable file.
+ *
+ * Processing of one file:
+ * - STIL streams the file until the metadata of the first table are known
+ *   (the rows are never read); the FIELD names give the selected columns.
+ * - The selection is matched against the loaded mappings and annotated with
+ *   {@link MivotAnnotations#mapMango(Map)}. Annotations are memoized by
+ *   selection: files with the same columns share the same block.
+ * - The output is the input with the <RESOURCE type="meta"> block spliced in
+ *   front of the first <TABLE> element. Both parts of the input are copied
+ *   as raw bytes with {@link FileChannel#transferTo}, so the rows are neither
+ *   parsed nor buffered again, whatever their serialization (TABLEDATA,
+ *   BINARY, BINARY2 or FITS).
+ *
+ * The output file is written next to its final location and moved in place
+ * once complete. Instances are thread-safe: one annotator serves all the
+ * workers of a batch.
+ */
+public class VOTableAnnotator {
+	/** Outcome of the processing of one file */
+	public enum Status {
+		/** The MIVOT block has been added */
+		ANNOTATED,
+		/** The file already contains a MIVOT block: copied as is */
+		ALREADY_ANNOTATED,
+		/** No FIELD matches a mapped column: copied as is */
+		NOT_MAPPED
+	}
+
+	private static final String MIVOT_NAMESPACE = "http://www.ivoa.net/xml/mivot";
+
+	/** Mapped tables the FIELDs are matched against */
+	private final List<String> tables;
+
+	/** Selection -> RESOURCE block */
+	private final Map<String, String> annotations = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param tables ADQL names of the mapped tables the VOTable columns may come from
+	 */
+	public VOTableAnnotator(List<String> tables) {
+		this.tables = Collections.unmodifiableList(new ArrayList<String>(tables));
+	}
+
+	/**
+	 * Annotate one file.
+	 *
+	 * @param input VOTable to annotate
+	 * @param output file to write (replaced if it exists), must differ from input
+	 * @return what has been done
+	 * @throws IOException when the input cannot be read as a VOTable, when the
+	 *         annotation fails or when the output cannot be written
+	 */
+	public Status annotate(File input, File output) throws IOException {
+		if (input.getCanonicalFile().equals(output.getCanonicalFile())) {
+			throw new IOException("Output " + output + " would overwrite the input");
+		}
+		List<String> fieldNames = this.readFieldNames(input);
+
+		// Locate the first TABLE and check there is no MIVOT block before it
+		StringBuilder header = new StringBuilder();
+		long tableOffset;
+		try (InputStream is = new BufferedInputStream(new FileInputStream(input))) {
+			tableOffset = findTableOffset(is, header);
+		}
+		if (tableOffset < 0) {
+			throw new IOException("No TABLE element found in " + input);
+		}
+		if (header.indexOf(MIVOT_NAMESPACE) >= 0) {
+			this.write(input, output, tableOffset, null);
+			return Status.ALREADY_ANNOTATED;
+		}
+
+		Map<String, Set<String>> selection = this.getSelection(fieldNames);
+		if (selection.isEmpty()) {
+			this.write(input, output, tableOffset, null);
+			return Status.NOT_MAPPED;
+		}
+		String annotation = this.getAnnotation(selection);
+		this.write(input, output, tableOffset, annotation.getBytes(StandardCharsets.UTF_8));
+		return Status.ANNOTATED;
+	}
+
+	/**
+	 * Read the FIELD names of the first table with STIL, stopping before the data.
+	 */
+	private List<String> readFieldNames(File input) throws IOException {
+		final List<String> fieldNames = new ArrayList<String>();
+		final boolean[] headerRead = new boolean[] { false };
+		TableSink sink = new TableSink() {
+			public void acceptMetadata(StarTable meta) throws TableFormatException {
+				for (int i = 0; i < meta.getColumnCount(); i++) {
+					fieldNames.add(meta.getColumnInfo(i).getName());
+				}
+				headerRead[0] = true;
+				// Nothing else to read: stop the parsing before the rows
+				throw new TableFormatException("header read");
+			}
+			public void acceptRow(Object[] row) {
+			}
+			public void endRows() {
+			}
+		};
+		try (InputStream is = new BufferedInputStream(new FileInputStream(input))) {
+			new VOTableBuilder().streamStarTable(is, sink, null);
+		} catch (IOException | RuntimeException e) {
+			// STIL may wrap the exception stopping the parsing in various ways:
+			// only the flag tells whether the header was read
+			if (headerRead[0] == false) {
+				throw new IOException("Cannot read " + input + " as a VOTable: " + e.getMessage(), e);
+			}
+		}
+		if (headerRead[0] == false) {
+			throw new IOException("No table found in " + input);
+		}
+		return fieldNames;
+	}
+
+	/**
+	 * Match the FIELD names against the columns of the mapped tables.
+	 *
+	 * @return table name -> selected columns, only for tables with at least one match
+	 */
+	private Map<String, Set<String>> getSelection(List<String> fieldNames) {
+		MappingCache mappingCache = MappingCache.getCache();
+		Map<String, Set<String>> selection = new LinkedHashMap<String, Set<String>>();
+		for (String table : this.tables) {
+			AnnotationPlan annotationPlan = mappingCache.getAnnotationPlan(table);
+			if (annotationPlan == null) {
+				continue;
+			}
+			Set<String> columns = new LinkedHashSet<String>();
+			for (String fieldName : fieldNames) {
+				if (annotationPlan.getOrdinal(fieldName) >= 0) {
+					columns.add(fieldName);
+				}
+			}
+			if (columns.isEmpty() == false) {
+				selection.put(table, columns);
+			}
+		}
+		return selection;
+	}
+
+	/**
+	 * Return the RESOURCE block of a selection, building it on the first request.
+	 *
+	 * @throws IOException when the mapper reports a failure
+	 */
+	private String getAnnotation(Map<String, Set<String>> selection) throws IOException {
+		String key = selection.toString();
+		String annotation = this.annotations.get(key);
+		if (annotation == null) {
+			annotation = new MivotAnnotations().mapMango(selection);
+			// mapMango returns an empty RESOURCE when the annotation fails
+			if (annotation.contains("<VODML") == false) {
+				throw new IOException("Annotation failure for " + selection);
+			}
+			this.annotations.put(key, annotation);
+		}
+		return annotation;
+	}
+
+	/**
+	 * Write the output: input[0, offset[ + block + input[offset, end[.
+	 * A null block produces a plain copy.
+	 */
+	private void write(File input, File output, long offset, byte[] block) throws IOException {
+		File tmp = new File(output.getParentFile(), "." + output.getName() + ".tmp");
+		try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = in.size();
+			if (block == null) {
+				transfer(in, 0, size, out);
+			} else {
+				transfer(in, 0, offset, out);
+				ByteBuffer buffer = ByteBuffer.wrap(block);
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				transfer(in, offset, size - offset, out);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Copy count bytes from position, transferTo may move less than asked.
+	 */
+	private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+		long done = 0;
+		while (done < count) {
+			long n = in.transferTo(position + done, count - done, out);
+			if (n <= 0 && in.size() <= position + done) {
+				throw new IOException("Input truncated while copied");
+			}
+			done += n;
+		}
+	}
+
+	/**
+	 * Find the byte offset of the first <TABLE> start tag.
+	 *
+	 * @param is input positioned at the beginning of the file
+	 * @param header receives the bytes read before and including the tag name (Latin-1 decoded)
+	 * @return the offset of the '<' of the tag or -1 when there is none
+	 */
+	static long findTableOffset(InputStream is, StringBuilder header) throws IOException {
+		int b;
+		while ((b = is.read()) != -1) {
+			int length = header.length();
+			// "<TABLE" followed by a blank, '>' or '/' (rejects <TABLEDATA>)
+			if (length >= 6 && (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '>' || b == '/')
+					&& header.charAt(length - 6) == '<' && header.indexOf("TABLE", length - 5) == length - 5) {
+				return length - 6;
+			}
+			header.append((char) b);
+		}
+		return -1;
+	}
+}
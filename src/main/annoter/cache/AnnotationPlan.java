@@ -0,0 +1,266 @@
+package main.annoter.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import main.annoter.meta.UtypeDecoder;
+import tap.metadata.TAPColumn;
+
+/**
+ * Precompiled, immutable annotation plan of one table.
+ *
+ * The plan is built once from the decoders stored in the {@link MappingCache}
+ * (see {@link MappingCache#getAnnotationPlan(String)}) and gives, for each host
+ * class, the list of {@link PropertyTemplate} the table can produce. Grouping
+ * the decoders by constant/frames descriptor and collecting the frame
+ * dependencies is thus done at mapping-load time instead of for every query.
+ *
+ * Each mapped column gets an ordinal (its rank in the table mapping). A query
+ * selection is turned once into a {@link BitSet} of ordinals with
+ * {@link #select(Collection)}, then templates are projected on it with
+ * word-wise operations instead of name lookups.
+ *
+ * The error components of the properties (e.g. the position, properMotion and
+ * parallax errors of mango:EpochPosition) are grouped and validated here as
+ * well, see {@link ErrorGroup}.
+ *
+ * The plan is never modified: ingesting new columns for the table discards
+ * it and a new one is compiled on the next request. Ordinals are only valid
+ * for the plan that assigned them.
+ */
+public class AnnotationPlan {
+	/** ADQL name of the table */
+	private final String tableName;
+
+	/** host class -> templates in column order */
+	private final Map<String, List<PropertyTemplate>> templates;
+
+	/** host class -> inner role -> error group, in column order of the first decoder */
+	private final Map<String, Map<String, ErrorGroup>> errorGroups;
+
+	/** Column mapped on mango:MangoObject.identifier (may be null) */
+	private final String identifierColumn;
+
+	/** ADQL column name -> ordinal of the mapped columns */
+	private final Map<String, Integer> ordinals;
+
+	/** Fingerprint of the mapped columns, see {@link MappingSnapshot#computeFingerprint(Collection)} */
+	private final long fingerprint;
+
+	/**
+	 * Compile the plan of a table.
+	 *
+	 * @param tableName ADQL table name
+	 * @param tableMapping column name -> decoder map of the table, in column order
+	 */
+	AnnotationPlan(String tableName, Map<String, UtypeDecoder> tableMapping) {
+		this.tableName = tableName;
+		Map<String, Integer> columnOrdinals = new HashMap<String, Integer>();
+		List<TAPColumn> tapColumns = new ArrayList<TAPColumn>();
+		for (UtypeDecoder utypeDecoder : tableMapping.values()) {
+			String columnName = utypeDecoder.getTapColumn().getADQLName();
+			if (columnOrdinals.containsKey(columnName) == false) {
+				columnOrdinals.put(columnName, columnOrdinals.size());
+			}
+			tapColumns.add(utypeDecoder.getTapColumn());
+		}
+		this.ordinals = Collections.unmodifiableMap(columnOrdinals);
+		this.fingerprint = MappingSnapshot.computeFingerprint(tapColumns);
+		String identifier = null;
+		// hostClass -> key -> decoders
+		Map<String, Map<String, List<UtypeDecoder>>> groups = new LinkedHashMap<String, Map<String, List<UtypeDecoder>>>();
+		for (UtypeDecoder utypeDecoder : tableMapping.values()) {
+			if (identifier == null && "mango:MangoObject.identifier".equals(utypeDecoder.getUtype())) {
+				identifier = utypeDecoder.getTapColumn().getADQLName();
+			}
+			String hostClass = utypeDecoder.getHostClass();
+			String key = utypeDecoder.getConstantAndFrames();
+			if (key == null) key = "default";
+			if (groups.containsKey(hostClass) == false) {
+				groups.put(hostClass, new LinkedHashMap<String, List<UtypeDecoder>>());
+			}
+			Map<String, List<UtypeDecoder>> keyGroups = groups.get(hostClass);
+			if (keyGroups.containsKey(key) == false) {
+				keyGroups.put(key, new ArrayList<UtypeDecoder>());
+			}
+			keyGroups.get(key).add(utypeDecoder);
+		}
+		this.identifierColumn = identifier;
+
+		Map<String, List<PropertyTemplate>> compiled = new LinkedHashMap<String, List<PropertyTemplate>>();
+		for (Map.Entry<String, Map<String, List<UtypeDecoder>>> hostEntry : groups.entrySet()) {
+			List<PropertyTemplate> hostTemplates = new ArrayList<PropertyTemplate>();
+			for (Map.Entry<String, List<UtypeDecoder>> keyEntry : hostEntry.getValue().entrySet()) {
+				hostTemplates.add(new PropertyTemplate(hostEntry.getKey(), keyEntry.getKey(), keyEntry.getValue(), columnOrdinals));
+			}
+			compiled.put(hostEntry.getKey(), Collections.unmodifiableList(hostTemplates));
+		}
+		this.templates = Collections.unmodifiableMap(compiled);
+
+		// Error components: <hostClass>.errors.<innerRole>/<errorClass>.<attribute>
+		Map<String, Map<String, List<UtypeDecoder>>> errorDecoders = new LinkedHashMap<String, Map<String, List<UtypeDecoder>>>();
+		for (UtypeDecoder utypeDecoder : tableMapping.values()) {
+			if ("errors".equals(utypeDecoder.getHostAttribute()) == false || utypeDecoder.getInnerRole() == null) {
+				continue;
+			}
+			String hostClass = utypeDecoder.getHostClass();
+			if (errorDecoders.containsKey(hostClass) == false) {
+				errorDecoders.put(hostClass, new LinkedHashMap<String, List<UtypeDecoder>>());
+			}
+			Map<String, List<UtypeDecoder>> roleDecoders = errorDecoders.get(hostClass);
+			if (roleDecoders.containsKey(utypeDecoder.getInnerRole()) == false) {
+				roleDecoders.put(utypeDecoder.getInnerRole(), new ArrayList<UtypeDecoder>());
+			}
+			roleDecoders.get(utypeDecoder.getInnerRole()).add(utypeDecoder);
+		}
+		Map<String, Map<String, ErrorGroup>> compiledErrors = new LinkedHashMap<String, Map<String, ErrorGroup>>();
+		for (Map.Entry<String, Map<String, List<UtypeDecoder>>> hostEntry : errorDecoders.entrySet()) {
+			Map<String, ErrorGroup> hostGroups = new LinkedHashMap<String, ErrorGroup>();
+			for (Map.Entry<String, List<UtypeDecoder>> roleEntry : hostEntry.getValue().entrySet()) {
+				ErrorGroup errorGroup = new ErrorGroup(hostEntry.getKey(), roleEntry.getKey(), roleEntry.getValue(), columnOrdinals);
+				if (errorGroup.getInconsistency() != null) {
+					Cache.logWarning("Table", tableName, errorGroup.toString(), "cannot be annotated:", errorGroup.getInconsistency());
+				}
+				hostGroups.put(roleEntry.getKey(), errorGroup);
+			}
+			compiledErrors.put(hostEntry.getKey(), Collections.unmodifiableMap(hostGroups));
+		}
+		this.errorGroups = Collections.unmodifiableMap(compiledErrors);
+	}
+
+	public String getTableName() {
+		return this.tableName;
+	}
+
+	/**
+	 * @return the column mapped on mango:MangoObject.identifier or null
+	 */
+	public String getIdentifierColumn() {
+		return this.identifierColumn;
+	}
+
+	/**
+	 * Return the fingerprint of the table mapping. It only changes when the
+	 * mapped columns of the table change and it is the same from one service
+	 * start to another: annotation builds can be keyed by it.
+	 *
+	 * @return the 64 bits hash of the mapped columns (the snapshot fingerprint restricted to the table)
+	 */
+	public long getFingerprint() {
+		return this.fingerprint;
+	}
+
+	/**
+	 * @return the number of mapped columns, i.e. the upper bound of the ordinals
+	 */
+	public int getColumnCount() {
+		return this.ordinals.size();
+	}
+
+	/**
+	 * Return the ordinal of a mapped column.
+	 *
+	 * @param columnName ADQL column name
+	 * @return the ordinal or -1 when the column is not mapped
+	 */
+	public int getOrdinal(String columnName) {
+		Integer ordinal = this.ordinals.get(columnName);
+		return (ordinal == null) ? -1 : ordinal;
+	}
+
+	/**
+	 * Turn a query selection into the set of the ordinals of the selected
+	 * mapped columns. Unmapped columns are ignored.
+	 *
+	 * @param selectedColumns ADQL names of the columns selected by the query
+	 * @return the selection to give to {@link PropertyTemplate#project(BitSet, List)}
+	 */
+	public BitSet select(Collection<String> selectedColumns) {
+		BitSet selection = new BitSet(this.ordinals.size());
+		for (String columnName : selectedColumns) {
+			Integer ordinal = this.ordinals.get(columnName);
+			if (ordinal != null) {
+				selection.set(ordinal);
+			}
+		}
+		return selection;
+	}
+
+	/**
+	 * @param selection selection built by {@link #select(Collection)}
+	 * @return true if the identifier column exists and is selected
+	 */
+	public boolean isIdentifierSelected(BitSet selection) {
+		return this.identifierColumn != null && selection.get(this.ordinals.get(this.identifierColumn));
+	}
+
+	/**
+	 * Return the templates of the given host class.
+	 *
+	 * @param hostClass host class (e.g. "mango:Brightness")
+	 * @return the templates, empty list when the table does not map the class
+	 */
+	public List<PropertyTemplate> getPropertyTemplates(String hostClass) {
+		List<PropertyTemplate> hostTemplates = this.templates.get(hostClass);
+		return (hostTemplates == null) ? Collections.<PropertyTemplate>emptyList() : hostTemplates;
+	}
+
+	/**
+	 * Return the error group of the given host class and inner role.
+	 *
+	 * @param hostClass host class (e.g. "mango:EpochPosition")
+	 * @param innerRole error component (e.g. "position")
+	 * @return the group or null when the table does not map that error
+	 */
+	public ErrorGroup getErrorGroup(String hostClass, String innerRole) {
+		Map<String, ErrorGroup> hostGroups = this.errorGroups.get(hostClass);
+		return (hostGroups == null) ? null : hostGroups.get(innerRole);
+	}
+
+	/**
+	 * Same as {@link #select(Collection)} for the columns of a list of decoders
+	 * (e.g. the decoders projected for a property).
+	 *
+	 * @param utypeDecoders decoders of the selected columns
+	 * @return the ordinals of their columns
+	 */
+	public BitSet selectDecoders(Collection<UtypeDecoder> utypeDecoders) {
+		BitSet selection = new BitSet(this.ordinals.size());
+		for (UtypeDecoder utypeDecoder : utypeDecoders) {
+			Integer ordinal = this.ordinals.get(utypeDecoder.getTapColumn().getADQLName());
+			if (ordinal != null) {
+				selection.set(ordinal);
+			}
+		}
+		return selection;
+	}
+
+	/**
+	 * Collect all the frame specifications the table may require.
+	 *
+	 * @return distinct frame specs (e.g. "photCal=K") in mapping order
+	 */
+	public List<String> getFrames() {
+		List<String> frames = new ArrayList<String>();
+		for (List<PropertyTemplate> hostTemplates : this.templates.values()) {
+			for (PropertyTemplate template : hostTemplates) {
+				for (String frame : template.getFrames()) {
+					if (frames.contains(frame) == false) {
+						frames.add(frame);
+					}
+				}
+			}
+		}
+		return frames;
+	}
+
+	public String toString() {
+		return "AnnotationPlan " + this.tableName + " " + this.templates.values();
+	}
+}
@@ -1,9 +1,18 @@
 package main.annoter.cache;
 
+import java.io.InterruptedIOException;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import main.annoter.mivot.FrameHolder;
 import tap.log.TAPLog;
@@ -16,15 +25,24 @@ import uws.service.log.UWSLog.LogLevel;
  * - Provide a lookup cache for property implementation classes so reflection
  *   is only done once per property name (see {@link #getPropertyClass}).
  * - Cache constructed {@link FrameHolder} objects so identical frames are
- *   reused across mapping runs and avoid duplicate XML emission.
+ *   reused across mapping runs and avoid duplicate XML emission. The frames
+ *   are kept in a {@link FrameStore}: in-process by default, or tiered over
+ *   a store shared by the nodes of a cluster.
+ * - Coalesce concurrent builds of the same frame (see {@link #buildFrameHolder}):
+ *   the remote services are called once per frame, whatever the number of
+ *   requests asking for it at the same time. Builds can also be started in
+ *   background (see {@link #startFrameBuild}) by requests that cannot wait.
+ * - Optionally keep the rendered annotation blocks off-heap, keyed by the
+ *   entity tag of the query selection (see {@link #setBlockStore}), so that
+ *   a large warm cache does not weigh on the garbage collector.
  * - Provide a simple logging facade that delegates to an optional TAPLog
  *   instance or falls back to System.out when no logger is configured.
  *
  * Thread-safety / lifetime:
- * - The class uses synchronized methods for mutation of the property and
- *   frame caches where needed, but the logger may be set once via
- *   {@link #setLogger}. The cache maps use LinkedHashMap to preserve
- *   deterministic insertion order when iterating (useful for debugging).
+ * - The property cache and the local frame store are ConcurrentHashMaps:
+ *   lookups are lock-free and inserts are atomic (first writer wins), so
+ *   concurrent requests neither block each other nor read a map being resized. The logger may be set once via
+ *   {@link #setLogger}.
  *
  * Note: This is an in-memory, process-local cache intended for short-lived
  * annotation processes; it does not implement eviction and is not suitable
@@ -32,9 +50,22 @@ import uws.service.log.UWSLog.LogLevel;
  */
 public class Cache {
     // Map property short-name -> loaded Class object (main.annoter.dm.<Name>)
-    static private Map<String, Class<?> > propertyInstanceCache = new LinkedHashMap<String, Class<?> >();
-    // Map frameId -> FrameHolder used to share created frames across requests
-    static private Map<String, FrameHolder> frameCache = new LinkedHashMap<String, FrameHolder>();
+    static private Map<String, Class<?> > propertyInstanceCache = new ConcurrentHashMap<String, Class<?> >();
+    // Store of the created frames, shared across requests (and nodes when tiered)
+    static private volatile FrameStore frameStore = new LocalFrameStore();
+    // Map frameId -> build in progress, shared by all the requests waiting for that frame
+    static private Map<String, CompletableFuture<FrameHolder>> inFlightFrames = new ConcurrentHashMap<String, CompletableFuture<FrameHolder>>();
+    // Threads running the frame builds started by requests with a time budget
+    static private final ExecutorService FRAME_EXECUTOR = Executors.newFixedThreadPool(4, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mivot-frame-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // Off-heap tier of the rendered annotation blocks, disabled when null
+    static private volatile SlabStore blockStore = null;
     // Optional external logger (can be set once by the embedding application)
     public static TAPLog logger = null;
     
@@ -50,6 +81,40 @@ public class Cache {
         }
     }
     
+    /**
+     * Replace the frame store, e.g. by a {@link TieredFrameStore} sharing the
+     * frames with the other nodes. To be called at startup: the frames of the
+     * previous store are not copied.
+     *
+     * @param store the new frame store
+     */
+    public static void setFrameStore(FrameStore store) {
+        Cache.frameStore = store;
+    }
+
+    /**
+     * @return the frame store
+     */
+    public static FrameStore getFrameStore() {
+        return Cache.frameStore;
+    }
+
+    /**
+     * Enable (or disable with null) the off-heap store of the annotation blocks.
+     *
+     * @param slabStore store receiving the blocks, replacing the previous one
+     */
+    public static void setBlockStore(SlabStore slabStore) {
+        Cache.blockStore = slabStore;
+    }
+
+    /**
+     * @return the off-heap store of the annotation blocks, null when disabled
+     */
+    public static SlabStore getBlockStore() {
+        return Cache.blockStore;
+    }
+
     /**
      * Log a debug-level message. Accepts varargs strings which are joined
      * with spaces into the final message. If no TAPLog is configured the
@@ -111,53 +176,152 @@ public class Cache {
      * (for example "Brightness"). When the class is not yet cached it is
      * loaded via Class.forName("main.annoter.dm." + propertyClassName).
      *
-     * This method is synchronized to avoid racing two threads attempting to
-     * load the same class simultaneously.
+     * This method is not synchronized: it is called for each mapped property
+     * of each request. Two threads may load the same class simultaneously,
+     * which is harmless since Class.forName returns the same object.
      *
      * @param propertyClassName simple class name (without package)
      * @return the loaded Class object
      * @throws ClassNotFoundException if the class cannot be found
      */
-    public static synchronized Class<?> getPropertyClass(String propertyClassName) throws ClassNotFoundException{
-        if( Cache.propertyInstanceCache.containsKey(propertyClassName) == false ) {
-            Cache.propertyInstanceCache.put(
-                    propertyClassName,
-                    Class.forName("main.annoter.dm." + propertyClassName));
+    public static Class<?> getPropertyClass(String propertyClassName) throws ClassNotFoundException{
+        Class<?> cls = Cache.propertyInstanceCache.get(propertyClassName);
+        if( cls == null ) {
+            cls = Class.forName("main.annoter.dm." + propertyClassName);
+            Cache.propertyInstanceCache.put(propertyClassName, cls);
         }
-        return  Cache.propertyInstanceCache.get(propertyClassName);
+        return cls;
     }
     
     /**
      * Retrieve a cached FrameHolder by id, or null when not present.
      *
-     * This accessor is not synchronized because reads of LinkedHashMap are
-     * safe for single operations; however, callers should assume the value may
-     * be concurrently inserted by another thread.
+     * This accessor is lock-free; callers should assume the value may be
+     * concurrently inserted by another thread.
      *
      * @param frameId identifier of the frame (dmid)
      * @return cached FrameHolder or null
      */
     public static FrameHolder getFrameHolder(String frameId) {
-        if( Cache.frameCache.containsKey(frameId) ) {
-            return Cache.frameCache.get(frameId);
-        }
-        return null;
-
+        return Cache.frameStore.get(frameId);
     }
 
     /**
      * Store a FrameHolder in the cache if absent and return the canonical
-     * cached instance. The method is synchronized to avoid duplicate inserts
-     * when multiple threads attempt to store the same id.
+     * cached instance. The insert is atomic: when multiple threads store the
+     * same id, the first one wins and the others get its holder back.
      *
      * @param frameHolder instance to store
      * @return the stored (canonical) FrameHolder
      */
-    public static  synchronized FrameHolder storeFrameHolder(FrameHolder frameHolder) {
-        String frameId = frameHolder.frameId;
-        if( Cache.frameCache.containsKey(frameId) == false ) {
-            Cache.frameCache.put(frameId, frameHolder);
+    public static FrameHolder storeFrameHolder(FrameHolder frameHolder) {
+        return Cache.frameStore.putIfAbsent(frameHolder);
+    }
+
+    /**
+     * Return the frame of the given id, building it if needed.
+     *
+     * Only one build runs at a time for a given id: the first caller runs the
+     * builder in its own thread, the concurrent callers wait for its result (or
+     * get its exception). A successful build with XML is stored in the frame
+     * cache before the waiters are released. When the first caller is
+     * interrupted (aborted job), the waiters start the build again.
+     *
+     * @param frameId identifier of the frame (dmid)
+     * @param builder builds the frame when it is neither cached nor in progress
+     * @return the cached or built FrameHolder
+     * @throws Exception the exception raised by the builder
+     */
+    public static FrameHolder buildFrameHolder(String frameId, Callable<FrameHolder> builder) throws Exception {
+        FrameHolder frameHolder = Cache.frameStore.get(frameId);
+        if( frameHolder != null ) {
+            return frameHolder;
+        }
+        CompletableFuture<FrameHolder> build = new CompletableFuture<FrameHolder>();
+        CompletableFuture<FrameHolder> runningBuild = Cache.inFlightFrames.putIfAbsent(frameId, build);
+        if( runningBuild != null ) {
+            Cache.logDebug("Wait for the frame", frameId, "being built by another request");
+            try {
+                return runningBuild.get();
+            } catch (ExecutionException e) {
+                if( isInterruption(e.getCause()) && Thread.currentThread().isInterrupted() == false ) {
+                    // Only the builder was cancelled: this request still needs the frame
+                    return Cache.buildFrameHolder(frameId, builder);
+                }
+                if( e.getCause() instanceof Exception ) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
         }
-        return Cache.frameCache.get(frameId);
+        return Cache.runFrameBuild(frameId, builder, build);
+    }
+
+    /**
+     * Start the build of a frame in background, unless it is cached or being
+     * built.
+     *
+     * The build is shared with {@link #buildFrameHolder} callers: a request
+     * giving up waiting for it (time budget exceeded) does not stop it, and
+     * its result is stored in the frame cache for the next requests.
+     *
+     * @param frameId identifier of the frame (dmid)
+     * @param builder builds the frame when it is neither cached nor in progress
+     * @return the future of the cached, running or started build
+     */
+    public static Future<FrameHolder> startFrameBuild(final String frameId, final Callable<FrameHolder> builder) {
+        FrameHolder frameHolder = Cache.frameStore.get(frameId);
+        if( frameHolder != null ) {
+            return CompletableFuture.completedFuture(frameHolder);
+        }
+        final CompletableFuture<FrameHolder> build = new CompletableFuture<FrameHolder>();
+        CompletableFuture<FrameHolder> runningBuild = Cache.inFlightFrames.putIfAbsent(frameId, build);
+        if( runningBuild != null ) {
+            return runningBuild;
+        }
+        Cache.FRAME_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                try {
+                    Cache.runFrameBuild(frameId, builder, build);
+                } catch (Throwable e) {
+                    // Already given to the waiters
+                    Cache.logWarning("Background build of the frame", frameId, "failed:", e.toString());
+                }
+            }
+        });
+        return build;
+    }
+
+    /**
+     * Run a build registered in inFlightFrames and release its waiters.
+     */
+    private static FrameHolder runFrameBuild(String frameId, Callable<FrameHolder> builder,
+            CompletableFuture<FrameHolder> build) throws Exception {
+        try {
+            // The frame may have been stored between the cache lookup and the registration
+            FrameHolder frameHolder = Cache.frameStore.get(frameId);
+            if( frameHolder == null ) {
+                frameHolder = builder.call();
+                if( frameHolder.frameXml != null ) {
+                    frameHolder = Cache.storeFrameHolder(frameHolder);
+                }
+            }
+            Cache.inFlightFrames.remove(frameId, build);
+            build.complete(frameHolder);
+            return frameHolder;
+        } catch (Throwable e) {
+            // Never leave the waiters blocked, whatever the failure; unregistered
+            // first so that the waiters retrying an interrupted build start a new one
+            Cache.inFlightFrames.remove(frameId, build);
+            build.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the exception comes from the interruption of the building thread
+     */
+    private static boolean isInterruption(Throwable e) {
+        return e instanceof InterruptedException || e instanceof InterruptedIOException;
     }
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+package main.annoter.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import main.annoter.mivot.FrameFactory;
+import main.annoter.mivot.FrameHolder;
+
+/**
+ * Frame store keeping one file per frame in a directory, typically shared by
+ * the nodes of a cluster (NFS mount under the VOLLT file_root_path).
+ *
+ * A file holds the FrameHolder fields (system class, model prefix and URL,
+ * frame XML). It is written in a temporary file of the same directory and
+ * renamed, so that the other nodes never read a partial frame. Two nodes
+ * writing the same frame write the same content: the last rename wins.
+ *
+ * Read and write failures are logged and absorbed: the frame is then built
+ * again by the node. A file that is not a frame of the expected format
+ * version, holds a frame built by another version of the frame factory
+ * ({@link FrameFactory#FRAME_VERSION}) or is older than the time-to-live is
+ * ignored and overwritten. Fallback frames (see {@link FrameHolder#fallback})
+ * are never written.
+ *
+ * This store is meant to sit under a {@link LocalFrameStore} in a
+ * {@link TieredFrameStore}: each node then reads a frame from the directory once.
+ */
+public class DirectoryFrameStore implements FrameStore {
+	private static final byte[] MAGIC = "MIVOTFRM".getBytes(StandardCharsets.US_ASCII);
+	/** Version of the file format, to be incremented when the layout changes */
+	public static final int FORMAT_VERSION = 2;
+	/** Default lifetime of the frame files: one day */
+	public static final long DEFAULT_TTL = 24 * 3600 * 1000L;
+	private static final String SUFFIX = ".frame";
+
+	private final File directory;
+	private final long ttl;
+
+	/**
+	 * @param directory directory of the frame files, created if needed
+	 * @throws IOException if the directory cannot be created
+	 */
+	public DirectoryFrameStore(File directory) throws IOException {
+		this(directory, DEFAULT_TTL);
+	}
+
+	/**
+	 * @param directory directory of the frame files, created if needed
+	 * @param ttl lifetime of the frame files in ms, after which the frames are built again
+	 * @throws IOException if the directory cannot be created
+	 */
+	public DirectoryFrameStore(File directory, long ttl) throws IOException {
+		this.directory = directory;
+		this.ttl = ttl;
+		Files.createDirectories(directory.toPath());
+	}
+
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	public FrameHolder get(String frameId) {
+		Path path = this.getPath(frameId);
+		try {
+			return read(ByteBuffer.wrap(Files.readAllBytes(path)), frameId, this.ttl);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			Cache.logWarning("Cannot read the shared frame", path.toString(), ":", e.toString());
+			return null;
+		}
+	}
+
+	public FrameHolder putIfAbsent(FrameHolder frameHolder) {
+		FrameHolder stored = this.get(frameHolder.frameId);
+		if (stored != null || frameHolder.fallback) {
+			return (stored != null) ? stored : frameHolder;
+		}
+		Path path = this.getPath(frameHolder.frameId);
+		Path temporary = null;
+		try {
+			temporary = Files.createTempFile(this.directory.toPath(), ".mivot-", ".tmp");
+			Files.write(temporary, write(frameHolder));
+			try {
+				Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temporary = null;
+		} catch (IOException e) {
+			Cache.logWarning("Cannot write the shared frame", path.toString(), ":", e.toString());
+		} finally {
+			if (temporary != null) {
+				temporary.toFile().delete();
+			}
+		}
+		return frameHolder;
+	}
+
+	/**
+	 * File of a frame: the frame id is URL-encoded so that any id gives a valid file name.
+	 */
+	private Path getPath(String frameId) {
+		try {
+			return new File(this.directory, URLEncoder.encode(frameId, "UTF-8") + SUFFIX).toPath();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] write(FrameHolder frameHolder) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.write(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(FrameFactory.FRAME_VERSION);
+		out.writeLong(System.currentTimeMillis());
+		writeString(out, frameHolder.frameId);
+		writeString(out, frameHolder.systemClass);
+		writeString(out, frameHolder.modelPrefix);
+		writeString(out, frameHolder.modelUrl);
+		writeString(out, frameHolder.frameXml);
+		out.flush();
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * @return the frame, null if the content is not a valid and current frame of that id
+	 */
+	private static FrameHolder read(ByteBuffer buffer, String frameId, long ttl) {
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			buffer.get(magic);
+			if (Arrays.equals(magic, MAGIC) == false || buffer.getInt() != FORMAT_VERSION
+					|| buffer.getInt() != FrameFactory.FRAME_VERSION
+					|| System.currentTimeMillis() - buffer.getLong() > ttl) {
+				return null;
+			}
+			String storedId = readString(buffer);
+			if (frameId.equals(storedId) == false) {
+				return null;
+			}
+			String systemClass = readString(buffer);
+			String modelPrefix = readString(buffer);
+			String modelUrl = readString(buffer);
+			FrameHolder frameHolder = new FrameHolder(systemClass, storedId, modelPrefix, modelUrl);
+			frameHolder.frameXml = readString(buffer);
+			return (frameHolder.frameXml == null) ? null : frameHolder;
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,126 @@
+package main.annoter.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import main.annoter.meta.UtypeDecoder;
+import main.annoter.mivot.MappingError;
+
+/**
+ * Immutable group of the decoders mapping one error component of a property,
+ * e.g. all the mango:EpochPosition.errors.position/... columns of a table.
+ *
+ * Groups are built with the {@link AnnotationPlan} of the table: the decoders
+ * are gathered and their inner class checked once, at ingestion time. At
+ * query time a group is only projected on the selected columns, so that the
+ * error only refers to columns present in the query result.
+ *
+ * A group whose decoders disagree on the inner class is kept with its error
+ * message: it makes the annotation fail only when one of its columns is
+ * selected.
+ */
+public class ErrorGroup {
+	/** Host class of the property (e.g. "mango:EpochPosition") */
+	private final String hostClass;
+
+	/** Inner role of the error (e.g. "position") */
+	private final String innerRole;
+
+	/** Decoders of the error in the table column order */
+	private final List<UtypeDecoder> utypeDecoders;
+
+	/** Column ordinal of each decoder, aligned with utypeDecoders */
+	private final int[] ordinals;
+
+	/** Ordinals of all the group columns */
+	private final BitSet columnMask;
+
+	/** Inner class mismatch found at compile time, null when consistent */
+	private final String inconsistency;
+
+	/**
+	 * Build a group from a non-empty list of decoders sharing the same host
+	 * class and inner role.
+	 *
+	 * @param hostClass host class of the property
+	 * @param innerRole inner role of the error
+	 * @param utypeDecoders decoders of the error
+	 * @param columnOrdinals ADQL column name -> ordinal, for all the table columns
+	 */
+	ErrorGroup(String hostClass, String innerRole, List<UtypeDecoder> utypeDecoders, Map<String, Integer> columnOrdinals) {
+		this.hostClass = hostClass;
+		this.innerRole = innerRole;
+		this.utypeDecoders = Collections.unmodifiableList(new ArrayList<UtypeDecoder>(utypeDecoders));
+		this.ordinals = new int[this.utypeDecoders.size()];
+		this.columnMask = new BitSet();
+		for (int i = 0; i < this.ordinals.length; i++) {
+			this.ordinals[i] = columnOrdinals.get(this.utypeDecoders.get(i).getTapColumn().getADQLName());
+			this.columnMask.set(this.ordinals[i]);
+		}
+		String message = null;
+		for (int i = 0; i < this.utypeDecoders.size() && message == null; i++) {
+			UtypeDecoder utypeDecoder = this.utypeDecoders.get(i);
+			if (utypeDecoder.getInnerClass() == null) {
+				message = "No error class given for column " + utypeDecoder.getTapColumn().getADQLName();
+				continue;
+			}
+			try {
+				// The previous decoders all have the class of the first one
+				utypeDecoder.checkInnerClass(this.utypeDecoders.subList(0, Math.min(i, 1)));
+			} catch (MappingError e) {
+				message = e.getMessage();
+			}
+		}
+		this.inconsistency = message;
+	}
+
+	public String getHostClass() {
+		return this.hostClass;
+	}
+
+	public String getInnerRole() {
+		return this.innerRole;
+	}
+
+	public List<UtypeDecoder> getUtypeDecoders() {
+		return this.utypeDecoders;
+	}
+
+	/**
+	 * @return the inner class mismatch found when the group was built, null if none
+	 */
+	public String getInconsistency() {
+		return this.inconsistency;
+	}
+
+	/**
+	 * Return the decoders of the group whose column is selected.
+	 *
+	 * @param selection ordinals of the selected columns, built by the plan owning the group
+	 * @param selected list receiving the selected decoders in column order (cleared first)
+	 * @return the selected list
+	 * @throws MappingError when a column of an inconsistent group is selected
+	 */
+	public List<UtypeDecoder> project(BitSet selection, List<UtypeDecoder> selected) throws MappingError {
+		selected.clear();
+		if (this.columnMask.intersects(selection) == false) {
+			return selected;
+		}
+		if (this.inconsistency != null) {
+			throw new MappingError(this.inconsistency);
+		}
+		for (int i = 0; i < this.ordinals.length; i++) {
+			if (selection.get(this.ordinals[i])) {
+				selected.add(this.utypeDecoders.get(i));
+			}
+		}
+		return selected;
+	}
+
+	public String toString() {
+		return this.hostClass + ".errors." + this.innerRole + " " + this.utypeDecoders.size() + " columns";
+	}
+}
@@ -0,0 +1,36 @@
+package main.annoter.cache;
+
+import main.annoter.mivot.FrameHolder;
+
+/**
+ * Storage of the built frames, shared by all the requests of the webapp.
+ *
+ * Implementations:
+ * - {@link LocalFrameStore}: in-process map (default),
+ * - {@link DirectoryFrameStore}: one file per frame in a directory that the
+ *   nodes of a cluster can share,
+ * - {@link TieredFrameStore}: local store first, then a shared one,
+ * - any other shared store (e.g. networked) implementing this interface,
+ *   declared by class name in tap.properties (see
+ *   main.vollt_tuning.MivotTAPFactory).
+ *
+ * Stored holders must not be modified. Implementations must be thread-safe;
+ * shared stores should log and absorb their I/O failures (a frame that cannot
+ * be read is just built again).
+ */
+public interface FrameStore {
+
+	/**
+	 * @param frameId identifier of the frame (dmid)
+	 * @return the stored frame, null if absent
+	 */
+	FrameHolder get(String frameId);
+
+	/**
+	 * Store a frame unless one with the same id is already there.
+	 *
+	 * @param frameHolder frame with its XML
+	 * @return the stored frame: the given one or the one already stored
+	 */
+	FrameHolder putIfAbsent(FrameHolder frameHolder);
+}
@@ -0,0 +1,30 @@
+package main.annoter.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.annoter.mivot.FrameHolder;
+
+/**
+ * In-process frame store: lock-free lookups, atomic inserts (first writer wins).
+ */
+public class LocalFrameStore implements FrameStore {
+	// Map frameId -> FrameHolder
+	private final Map<String, FrameHolder> frames = new ConcurrentHashMap<String, FrameHolder>();
+
+	public FrameHolder get(String frameId) {
+		return this.frames.get(frameId);
+	}
+
+	public FrameHolder putIfAbsent(FrameHolder frameHolder) {
+		FrameHolder previous = this.frames.putIfAbsent(frameHolder.frameId, frameHolder);
+		return (previous == null) ? frameHolder : previous;
+	}
+
+	/**
+	 * @return the number of stored frames
+	 */
+	public int size() {
+		return this.frames.size();
+	}
+}
@@ -1,17 +1,30 @@
 package main.annoter.cache;
 
 import tap.metadata.TAPColumn;
+import tap.metadata.TAPMetadata;
 import tap.metadata.TAPTable;
 import adql.db.DBColumn;
 import adql.db.SearchColumnList;
 import adql.query.from.ADQLTable;
+import main.annoter.meta.Glossary;
 import main.annoter.meta.UtypeDecoder;
+import main.annoter.mivot.MappingError;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * In-memory mapping registry that collects UType -> column decoders for tables
@@ -25,10 +38,15 @@ import java.util.Map;
  * - Expose helper methods to obtain the ADQL column name that maps to a
  *   particular UType.
  *
+ * - Compile, for each table, an immutable {@link AnnotationPlan} so that the
+ *   grouping of the decoders is not redone for every query.
+ *
+ * - Index, at ingestion time, the tables mapping each host class so that
+ *   the mapper only visits the (property, table) pairs that produce output.
+ *
  * Implementation notes:
- * - The cache is a simple singleton (see {@link #getCache()}). It is not
- *   synchronized and intended to be used within a single-threaded request
- *   mapping context. Add synchronization if sharing across threads concurrently.
+ * - The cache is a simple singleton (see {@link #getCache()}). Ingestion and
+ *   plan compilation are synchronized; compiled plans are read without lock.
  * - Primary data structure: Map<tableName, Map<columnName, UtypeDecoder>>
  */
 public class MappingCache {
@@ -36,7 +54,16 @@ public class MappingCache {
 	private Map<String, Map<String, UtypeDecoder>> utypeMap;
 	private static MappingCache CACHE;
 	// Keep track of tables already processed to avoid duplicate ingestion
-	private List<String> storedTables = new ArrayList<String>();
+	private Set<String> storedTables = new HashSet<String>();
+	// Map of ADQL table name -> compiled annotation plan
+	private Map<String, AnnotationPlan> annotationPlans = new ConcurrentHashMap<String, AnnotationPlan>();
+	// Test fixture snapshot, read on first use
+	private static final String FIXTURE = "fixtures/simbad.mapping";
+	private static MappingSnapshot fixture = null;
+	// Inverted index: host class (e.g. mango:Brightness) -> ADQL names of the tables mapping it
+	private Map<String, Set<String>> hostClassTables = new ConcurrentHashMap<String, Set<String>>();
+	// Mapping snapshot waiting for the service metadata to be checked, null if none
+	private File pendingSnapshot = null;
 	
 	private MappingCache() {
 		this.utypeMap = new LinkedHashMap<String, Map<String, UtypeDecoder>>();
@@ -47,7 +74,7 @@ public class MappingCache {
 	 *
 	 * @return global MappingCache instance
 	 */
-	public static MappingCache getCache(){
+	public static synchronized MappingCache getCache(){
 		if( CACHE == null ) {
 			CACHE = new MappingCache();
 		}
@@ -59,11 +86,12 @@ public class MappingCache {
 	 *
 	 * Only TAPColumns whose utype starts with "mango:" are considered. The
 	 * method is idempotent for a given table name (subsequent calls for the
-	 * same table have no effect).
+	 * same table have no effect). The annotation plan of the table is compiled
+	 * once all its columns are ingested.
 	 *
 	 * @param tapTable metadata describing the TAP table to ingest
 	 */
-	public void addTAPTable(TAPTable tapTable) {
+	public synchronized void addTAPTable(TAPTable tapTable) {
 		String tableName = tapTable.getADQLName();
 		// Skip tables already processed
 		if( this.storedTables.contains(tableName)) {
@@ -80,6 +108,7 @@ public class MappingCache {
 				this.addTAPColumn(tapColumn);
 			}
 		}
+		this.compileAnnotationPlan(tableName);
 	}
 	
 	/**
@@ -90,7 +119,7 @@ public class MappingCache {
 	 *
 	 * @param tapTable ADQLTable to ingest
 	 */
-	public void addADQLTable(ADQLTable tapTable) {
+	public synchronized void addADQLTable(ADQLTable tapTable) {
 		String tableName = tapTable.getName();
 		if( this.storedTables.contains(tableName)) {
 			return;
@@ -107,17 +136,19 @@ public class MappingCache {
 				}
 			}
 		}
+		this.compileAnnotationPlan(tableName);
 	}
 	
 	/**
 	 * Add a single TAPColumn's decoded UType to the cache.
 	 *
 	 * If the table entry does not exist it is created. The stored UtypeDecoder
-	 * is keyed by the ADQL column name (tapColumn.getADQLName()).
+	 * is keyed by the ADQL column name (tapColumn.getADQLName()). The annotation
+	 * plan of the table, if any, is discarded.
 	 *
 	 * @param tapColumn TAP column to decode and store
 	 */
-	public void addTAPColumn(TAPColumn tapColumn) {
+	public synchronized void addTAPColumn(TAPColumn tapColumn) {
 		if( tapColumn.getUtype() == null) {
 			return;
 		}
@@ -127,8 +158,91 @@ public class MappingCache {
 		}
 		UtypeDecoder utypeDecoder = new UtypeDecoder(tapColumn);
 		this.utypeMap.get(tableName).put(tapColumn.getADQLName(), utypeDecoder);
+		this.annotationPlans.remove(tableName);
+		String hostClass = utypeDecoder.getHostClass();
+		if( this.hostClassTables.containsKey(hostClass) == false ) {
+			this.hostClassTables.put(hostClass, ConcurrentHashMap.<String>newKeySet());
+		}
+		this.hostClassTables.get(hostClass).add(tableName);
+		this.checkLocalFrames(tableName, utypeDecoder);
+	}
+
+	/**
+	 * Warn about local frames (CS.local=...) that have no bundled snippet:
+	 * they would make the annotation of any query selecting the column fail.
+	 *
+	 * @param tableName table of the column
+	 * @param utypeDecoder decoder of the column
+	 */
+	private void checkLocalFrames(String tableName, UtypeDecoder utypeDecoder) {
+		String localFrame = utypeDecoder.getFrame(Glossary.CSClass.LOCAL);
+		if( localFrame == null ) {
+			return;
+		}
+		String frameType = localFrame.substring(Glossary.CSClass.LOCAL.length() + 1);
+		try {
+			if( SnippetIndex.getIndex().contains(frameType) == false ) {
+				Cache.logWarning("Column", tableName + "." + utypeDecoder.getTapColumn().getADQLName(),
+						"refers to the local frame", frameType, "which has no snippet");
+			}
+		} catch (MappingError e) {
+			Cache.logError("Cannot check local frame of", utypeDecoder.getTapColumn().getADQLName(), e.getMessage());
+		}
 	}
 	
+	/**
+	 * Return the compiled annotation plan of a table, compiling it if needed.
+	 *
+	 * @param adqlTableName table name
+	 * @return the annotation plan or null if the table has no mapped column
+	 */
+	public AnnotationPlan getAnnotationPlan(String adqlTableName) {
+		AnnotationPlan annotationPlan = this.annotationPlans.get(adqlTableName);
+		if( annotationPlan == null ) {
+			annotationPlan = this.compileAnnotationPlan(adqlTableName);
+		}
+		return annotationPlan;
+	}
+	
+	/**
+	 * Compile (or recompile) the annotation plan of a table from its decoders.
+	 *
+	 * @param adqlTableName table name
+	 * @return the new plan or null if the table has no mapped column
+	 */
+	public synchronized AnnotationPlan compileAnnotationPlan(String adqlTableName) {
+		Map<String, UtypeDecoder> tableMapping = this.getTableMapping(adqlTableName);
+		if( tableMapping == null ) {
+			return null;
+		}
+		AnnotationPlan annotationPlan = new AnnotationPlan(adqlTableName, tableMapping);
+		this.annotationPlans.put(adqlTableName, annotationPlan);
+		return annotationPlan;
+	}
+	
+	/**
+	 * Compile the annotation plans of all the mapped tables.
+	 * To be called once the mappings are loaded so that no plan is built on the request path.
+	 */
+	public synchronized void compileAnnotationPlans() {
+		for( String tableName: this.utypeMap.keySet()) {
+			if( this.annotationPlans.containsKey(tableName) == false ) {
+				this.compileAnnotationPlan(tableName);
+			}
+		}
+	}
+	
+	/**
+	 * Return the tables having at least one column mapped on the given host class.
+	 *
+	 * @param hostClass host class (e.g. "mango:EpochPosition")
+	 * @return read-only set of ADQL table names, empty when no table maps the class
+	 */
+	public Set<String> getMappingTables(String hostClass) {
+		Set<String> tables = this.hostClassTables.get(hostClass);
+		return (tables == null) ? Collections.<String>emptySet() : Collections.unmodifiableSet(tables);
+	}
+
 	/**
 	 * Return the raw mapping (columnName -> UtypeDecoder) for a table.
 	 *
@@ -195,20 +309,16 @@ public class MappingCache {
 	 */
 	public Map<String, List<UtypeDecoder>> getTableMapping(String adqlTableName, String hostClass, List<String> selectedColumns){
 		Map<String, List<UtypeDecoder>> tableMapping = new LinkedHashMap<String, List<UtypeDecoder>>();
-		if( this.getTableMapping(adqlTableName) == null ) {
+		AnnotationPlan annotationPlan = this.getAnnotationPlan(adqlTableName);
+		if( annotationPlan == null ) {
 			return tableMapping;
 		}
-		for( UtypeDecoder utypeDecoder: this.getTableMapping(adqlTableName).values()) {
-			if( utypeDecoder.getHostClass().equals(hostClass)) {
-				// Only include decoders whose ADQL column name is present in selectedColumns
-				if( selectedColumns.contains(utypeDecoder.getTapColumn().getADQLName()) ) {
-					String key = utypeDecoder.getConstantAndFrames();
-					if( key == null) key = "default";
-					if( tableMapping.containsKey(key) == false ) {
-						tableMapping.put(key, new ArrayList<UtypeDecoder>());
-					}
-					tableMapping.get(key).add(utypeDecoder);
-				}
+		// Resolve the selection once, then only intersect it with the templates
+		BitSet selection = annotationPlan.select(selectedColumns);
+		for( PropertyTemplate template: annotationPlan.getPropertyTemplates(hostClass)) {
+			List<UtypeDecoder> utypeDecoders = template.project(selection, new ArrayList<UtypeDecoder>());
+			if( utypeDecoders.isEmpty() == false ) {
+				tableMapping.put(template.getKey(), utypeDecoders);
 			}
 		}
 		return tableMapping;
@@ -257,113 +367,158 @@ public class MappingCache {
 		return null;
 	}	
 	/**
-	 * Populate a small fake mapping used by unit/test or interactive checks.
+	 * Return the names of the tables having mapped columns.
 	 *
-	 * The method creates a TAPTable named "basic" and adds several TAPColumn
-	 * instances with realistic utypes so mapping logic can be exercised without
-	 * connecting to a real TAP service.
+	 * @return table names in ingestion order (copy)
+	 */
+	public synchronized List<String> getTableNames() {
+		return new ArrayList<String>(this.utypeMap.keySet());
+	}
+
+	/**
+	 * Collect the frames referenced by all the mapped columns.
 	 *
-	 * This helper is intended for tests and local development only.
+	 * @return distinct frame specs (e.g. "photCal=K") in ingestion order (copy)
 	 */
-	public void getFakeMappingCacheForBasic() {
-		if( this.storedTables.contains("basic")) {
-			return;
+	public synchronized Set<String> getFrames() {
+		Set<String> frames = new LinkedHashSet<String>();
+		for (Map<String, UtypeDecoder> tableMapping : this.utypeMap.values()) {
+			for (UtypeDecoder utypeDecoder : tableMapping.values()) {
+				frames.addAll(utypeDecoder.getFrames());
+			}
 		}
-		this.storedTables.add("basic");
+		return frames;
+	}
 
-		List<TAPColumn> tapColumns = new ArrayList<TAPColumn>();
+	/**
+	 * Ingest tables from a mapping snapshot.
+	 *
+	 * Tables already stored are left untouched. Before anything is ingested,
+	 * the utypes of each table are decoded apart and compared, with the frame
+	 * requirements, to those stored in the snapshot: a difference means the
+	 * snapshot was written by another version of the utype decoder and it is
+	 * rejected as a whole, the cache being left unchanged.
+	 *
+	 * @param snapshot snapshot to load
+	 * @param tableNames tables to load, all the snapshot tables when null
+	 * @return the names of the tables actually ingested
+	 * @throws MappingError when a table is not in the snapshot or does not decode the same way
+	 */
+	public synchronized List<String> loadSnapshot(MappingSnapshot snapshot, Collection<String> tableNames) throws MappingError {
+		List<String> loaded = new ArrayList<String>();
+		for (String tableName : (tableNames == null) ? snapshot.getTableNames() : tableNames) {
+			List<TAPColumn> columns = snapshot.getColumns(tableName);
+			if (columns == null) {
+				throw new MappingError("Table " + tableName + " is not in the mapping snapshot");
+			}
+			if (this.storedTables.contains(tableName) || loaded.contains(tableName)) {
+				continue;
+			}
+			// Check that the current decoder reads the utypes as the snapshot writer did
+			Map<String, UtypeDecoder> tableMapping = new LinkedHashMap<String, UtypeDecoder>();
+			List<String> decoded = new ArrayList<String>();
+			for (TAPColumn tapColumn : columns) {
+				if (tapColumn.getUtype() != null) {
+					UtypeDecoder utypeDecoder = new UtypeDecoder(tapColumn);
+					tableMapping.put(tapColumn.getADQLName(), utypeDecoder);
+					decoded.add(MappingSnapshot.decode(utypeDecoder));
+				}
+			}
+			if (decoded.equals(snapshot.getDecodedUtypes(tableName)) == false
+					|| new AnnotationPlan(tableName, tableMapping).getFrames().equals(snapshot.getFrames(tableName)) == false) {
+				throw new MappingError("Mapping snapshot of table " + tableName + " was written by another utype decoder");
+			}
+			loaded.add(tableName);
+		}
+		// All the tables passed: ingest them
+		for (String tableName : loaded) {
+			this.storedTables.add(tableName);
+			for (TAPColumn tapColumn : snapshot.getColumns(tableName)) {
+				this.addTAPColumn(tapColumn);
+			}
+			this.compileAnnotationPlan(tableName);
+		}
+		return loaded;
+	}
 
-		tapColumns.add(new TAPColumn("main_id", "description", "", "ucd",
-				"mango:MangoObject.identifier"));
-		tapColumns.add(new TAPColumn("dec", "description", "deg", "ucd",
-				"mango:EpochPosition.latitude[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("ra", "description", "deg", "ucd",
-				"mango:EpochPosition.longitude[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("pmdec", "description", "mas / yr", "ucd",
-				"mango:EpochPosition.pmLatitude[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("pmra", "description", "mas / yr", "ucd",
-				"mango:EpochPosition.pmLongitude[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("parallax", "description", "mas", "ucd",
-				"mango:EpochPosition.parallax[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("rvz_radvel", "description", "km / s", "ucd",
-				"mango:EpochPosition.radialVelocity[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("coo_err_maj", "description", "mas", "ucd",
-				"mango:EpochPosition.errors.position/mango:error.PErrorEllipse.semiMajorAxis[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("coo_err_min", "description", "mas", "ucd",
-				"mango:EpochPosition.errors.position/mango:error.PErrorEllipse.semiMinorAxis[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("coo_err_angle", "description", "deg", "ucd",
-				"mango:EpochPosition.errors.position/mango:error.PErrorEllipse.angle[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("pm_err_maj", "description", "mas / yr", "ucd",
-				"mango:EpochPosition.errors.properMotion/mango:error.PErrorEllipse.semiMajorAxis[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("pm_err_min", "description", "mas / yr", "ucd",
-				"mango:EpochPosition.errors.properMotion/mango:error.PErrorEllipse.semiMinorAxis[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("pm_err_angle", "description", "deg", "ucd",
-				"mango:EpochPosition.errors.properMotion/mango:error.PErrorEllipse.angle[CS.spaceSys=ICRS CT.epoch=J2000]"));
-		tapColumns.add(new TAPColumn("otype", "Objet type", "", "",
-				"mango:Label.text[CT.vocabulary=https://www.ivoa.net/rdf/uat#classification]"));
+	/**
+	 * Declare the mapping snapshot to load once the service metadata are
+	 * available (see {@link #loadPendingSnapshot(TAPMetadata)}).
+	 *
+	 * @param file snapshot file
+	 */
+	public synchronized void setPendingSnapshot(File file) {
+		this.pendingSnapshot = file;
+	}
+
+	/**
+	 * @return true if a snapshot waits for the service metadata
+	 */
+	public synchronized boolean hasPendingSnapshot() {
+		return this.pendingSnapshot != null;
+	}
 
-		MappingCache cache = MappingCache.getCache();
-		final TAPTable basicTable = new TAPTable("basic", TAPTable.TableType.table);
-		for (TAPColumn tapColumn : tapColumns) {
-			basicTable.addColumn(tapColumn);
-			cache.addTAPColumn(tapColumn);
+	/**
+	 * Check the pending snapshot against TAP_SCHEMA and ingest it. The
+	 * snapshot is no longer pending afterwards, whether loaded or rejected.
+	 *
+	 * @param tapMetadata metadata of the running service, null if it has no TAP_SCHEMA
+	 * @return the names of the tables ingested, null if no snapshot is pending
+	 * @throws MappingError when the snapshot cannot be read, is stale or there is no metadata
+	 */
+	public synchronized List<String> loadPendingSnapshot(TAPMetadata tapMetadata) throws MappingError {
+		File file = this.pendingSnapshot;
+		if (file == null) {
+			return null;
 		}
+		this.pendingSnapshot = null;
+		MappingSnapshot snapshot = MappingSnapshot.read(file);
+		snapshot.checkFingerprint(tapMetadata);
+		return this.loadSnapshot(snapshot, null);
 	}
-	
+
 	/**
-	 * Populate a fake mapping for flux/brightness columns (used in tests).
+	 * Load a table of the test fixture snapshot {@value #FIXTURE} (classpath resource).
+	 * The fixture is read once and kept.
 	 */
-	public void getFakeMappingCacheForFlux() {
-		if( this.storedTables.contains("allfluxes")) {
+	private synchronized void loadFixture(String tableName) {
+		if( this.storedTables.contains(tableName)) {
 			return;
 		}
-		this.storedTables.add("allfluxes");
-		
-		List<TAPColumn> tapColumns = new ArrayList<TAPColumn>();
-
-		tapColumns.add(new TAPColumn("U", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=U]"));
-		tapColumns.add(new TAPColumn("B", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=B]"));
-		tapColumns.add(new TAPColumn("V", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=V]"));
-		tapColumns.add(new TAPColumn("G", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=G]"));
-		tapColumns.add(new TAPColumn("R", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=R]"));
-		tapColumns.add(new TAPColumn("I", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=I]"));
-		tapColumns.add(new TAPColumn("J", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=J]"));
-		tapColumns.add(new TAPColumn("H", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=H]"));
-		tapColumns.add(new TAPColumn("K", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=K]"));
-		tapColumns.add(new TAPColumn("F150W", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=F150W]"));
-		tapColumns.add(new TAPColumn("F200W", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=F200W]"));
-		tapColumns.add(new TAPColumn("F444W", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=F444W]"));
-		tapColumns.add(new TAPColumn("u_", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=u]"));
-		tapColumns.add(new TAPColumn("g_", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=g]"));
-		tapColumns.add(new TAPColumn("r_", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=r]"));
-		tapColumns.add(new TAPColumn("z_", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=z]"));
-		tapColumns.add(new TAPColumn("i_", "description", "", "ucd",
-				"mango:Brightness.value[CS.photCal=i]"));
-
-
-		MappingCache cache = MappingCache.getCache();
-		final TAPTable basicTable = new TAPTable("allfluxes", TAPTable.TableType.table);
-		for (TAPColumn tapColumn : tapColumns) {
-			basicTable.addColumn(tapColumn);
-			cache.addTAPColumn(tapColumn);
+		try {
+			if( fixture == null ) {
+				InputStream is = MappingCache.class.getClassLoader().getResourceAsStream(FIXTURE);
+				if( is == null ) {
+					throw new MappingError("Fixture " + FIXTURE + " not found in the classpath");
+				}
+				try {
+					fixture = MappingSnapshot.read(is, FIXTURE);
+				} finally {
+					is.close();
+				}
+			}
+			this.loadSnapshot(fixture, Collections.singletonList(tableName));
+		} catch (MappingError | IOException e) {
+			Cache.logError("Cannot load the mapping fixture of", tableName, e.getMessage());
 		}
 	}
+
+	/**
+	 * Populate the small fake mapping of the Simbad "basic" table, used by tests,
+	 * interactive checks and meanwhile the pseudo utypes are not set in TAP_SCHEMA.
+	 *
+	 * The columns are read from the fixture snapshot {@value #FIXTURE}
+	 * (generated from {@value #FIXTURE}.csv, see MappingSnapshotTool).
+	 */
+	public synchronized void getFakeMappingCacheForBasic() {
+		this.loadFixture("basic");
+	}
 	
-	
-}
\ No newline at end of file
+	/**
+	 * Populate the fake mapping of the "allfluxes" flux/brightness table
+	 * from the fixture snapshot (used in tests).
+	 */
+	public synchronized void getFakeMappingCacheForFlux() {
+		this.loadFixture("allfluxes");
+	}
+}
@@ -0,0 +1,354 @@
+package main.annoter.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import main.annoter.meta.UtypeDecoder;
+import main.annoter.mivot.MappingError;
+import tap.metadata.TAPColumn;
+import tap.metadata.TAPMetadata;
+import tap.metadata.TAPTable;
+
+/**
+ * Compact binary image of the {@link MappingCache}.
+ *
+ * A snapshot holds, for each mapped table, its mango: columns (name,
+ * description, unit, ucd, utype), the decoded form of each utype and the
+ * frames the table requires. It is written once (from a cache filled from
+ * TAP_SCHEMA or from a mapping file) and read at startup, memory-mapped,
+ * so that the service is ready before the first request.
+ *
+ * Two checks protect against stale snapshots:
+ * - the schema fingerprint, a hash of the mapped TAP_SCHEMA.columns rows,
+ *   is compared with the running TAP_SCHEMA ({@link #checkFingerprint(TAPMetadata)});
+ * - the decoded utypes and frames are compared with the ones the current
+ *   {@link UtypeDecoder} produces when the snapshot is loaded
+ *   ({@link MappingCache#loadSnapshot(MappingSnapshot, Collection)}).
+ *
+ * Layout (big endian): magic "MIVOTMAP", format version (int), fingerprint
+ * (long), table count (int), then per table: name, column count, columns
+ * (name, description, unit, ucd, utype, decoded utype), frame count, frames.
+ * Strings are written as a byte length (int, -1 for null) followed by UTF-8 bytes.
+ */
+public class MappingSnapshot {
+	private static final byte[] MAGIC = "MIVOTMAP".getBytes(StandardCharsets.US_ASCII);
+	/** Version of the layout, to be increased on any change */
+	public static final int FORMAT_VERSION = 1;
+
+	/** Hash of the mapped TAP_SCHEMA.columns rows */
+	private final long fingerprint;
+	/** table name -> mapped columns, in mapping order */
+	private final Map<String, List<TAPColumn>> tables;
+	/** table name -> decoded utype of each column (aligned with tables) */
+	private final Map<String, List<String>> decodedUtypes;
+	/** table name -> frame specifications required by the table */
+	private final Map<String, List<String>> frames;
+
+	private MappingSnapshot(long fingerprint, Map<String, List<TAPColumn>> tables,
+			Map<String, List<String>> decodedUtypes, Map<String, List<String>> frames) {
+		this.fingerprint = fingerprint;
+		this.tables = Collections.unmodifiableMap(tables);
+		this.decodedUtypes = Collections.unmodifiableMap(decodedUtypes);
+		this.frames = Collections.unmodifiableMap(frames);
+	}
+
+	/**
+	 * Take a snapshot of the tables currently held by the mapping cache.
+	 *
+	 * @param mappingCache cache to dump
+	 * @return the snapshot
+	 */
+	public static MappingSnapshot fromCache(MappingCache mappingCache) {
+		Map<String, List<TAPColumn>> tables = new LinkedHashMap<String, List<TAPColumn>>();
+		Map<String, List<String>> decodedUtypes = new LinkedHashMap<String, List<String>>();
+		Map<String, List<String>> frames = new LinkedHashMap<String, List<String>>();
+		List<TAPColumn> allColumns = new ArrayList<TAPColumn>();
+		for (String tableName : mappingCache.getTableNames()) {
+			AnnotationPlan annotationPlan = mappingCache.getAnnotationPlan(tableName);
+			if (annotationPlan == null) {
+				continue;
+			}
+			List<TAPColumn> columns = new ArrayList<TAPColumn>();
+			List<String> decoded = new ArrayList<String>();
+			for (UtypeDecoder utypeDecoder : mappingCache.getTableMapping(tableName).values()) {
+				columns.add(utypeDecoder.getTapColumn());
+				decoded.add(decode(utypeDecoder));
+			}
+			tables.put(tableName, columns);
+			decodedUtypes.put(tableName, decoded);
+			frames.put(tableName, annotationPlan.getFrames());
+			allColumns.addAll(columns);
+		}
+		return new MappingSnapshot(computeFingerprint(allColumns), tables, decodedUtypes, frames);
+	}
+
+	public long getFingerprint() {
+		return this.fingerprint;
+	}
+
+	/**
+	 * @return the names of the tables held by the snapshot
+	 */
+	public Collection<String> getTableNames() {
+		return this.tables.keySet();
+	}
+
+	/**
+	 * @return the mapped columns of a table (null if the table is not in the snapshot)
+	 */
+	public List<TAPColumn> getColumns(String tableName) {
+		return this.tables.get(tableName);
+	}
+
+	/**
+	 * @return the decoded utypes of a table, aligned with {@link #getColumns(String)}
+	 */
+	public List<String> getDecodedUtypes(String tableName) {
+		return this.decodedUtypes.get(tableName);
+	}
+
+	/**
+	 * @return the frame specifications (e.g. "photCal=K") required by a table
+	 */
+	public List<String> getFrames(String tableName) {
+		return this.frames.get(tableName);
+	}
+
+	/**
+	 * Reject the snapshot if it does not match the mapped columns of TAP_SCHEMA.
+	 *
+	 * @param tapMetadata metadata of the running service
+	 * @throws MappingError when the snapshot is stale or there is no metadata to check it against
+	 */
+	public void checkFingerprint(TAPMetadata tapMetadata) throws MappingError {
+		if (tapMetadata == null) {
+			throw new MappingError("No TAP_SCHEMA to check the mapping snapshot against");
+		}
+		List<TAPColumn> columns = new ArrayList<TAPColumn>();
+		Iterator<TAPTable> tapTables = tapMetadata.getTables();
+		while (tapTables.hasNext()) {
+			Iterator<TAPColumn> tapColumns = tapTables.next().getColumns();
+			while (tapColumns.hasNext()) {
+				columns.add(tapColumns.next());
+			}
+		}
+		long expected = computeFingerprint(columns);
+		if (expected != this.fingerprint) {
+			throw new MappingError("Stale mapping snapshot: fingerprint " + Long.toHexString(this.fingerprint)
+					+ " while TAP_SCHEMA gives " + Long.toHexString(expected));
+		}
+	}
+
+	/**
+	 * Hash (64 bits FNV-1a) of the mapped columns: one line per column with a
+	 * mango: utype (table, column, utype, unit, ucd), sorted so that the column
+	 * order does not matter.
+	 *
+	 * @param columns columns of any tables, unmapped ones are ignored
+	 * @return the fingerprint
+	 */
+	public static long computeFingerprint(Collection<TAPColumn> columns) {
+		List<String> lines = new ArrayList<String>();
+		for (TAPColumn column : columns) {
+			String utype = column.getUtype();
+			if (utype == null || utype.startsWith("mango:") == false) {
+				continue;
+			}
+			// null and empty unit/ucd are the same for the fingerprint
+			lines.add(column.getTable().getADQLName() + "\t" + column.getADQLName() + "\t" + utype
+					+ "\t" + ((column.getUnit() == null) ? "" : column.getUnit())
+					+ "\t" + ((column.getUcd() == null) ? "" : column.getUcd()));
+		}
+		Collections.sort(lines);
+		long hash = 0xcbf29ce484222325L;
+		for (String line : lines) {
+			for (byte b : (line + "\n").getBytes(StandardCharsets.UTF_8)) {
+				hash ^= (b & 0xff);
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Decoded form of a utype, used to detect snapshots written by another
+	 * version of the decoder.
+	 */
+	static String decode(UtypeDecoder utypeDecoder) {
+		return utypeDecoder.getHostClass() + "|" + utypeDecoder.getHostAttribute()
+				+ "|" + utypeDecoder.getInnerRole() + "|" + utypeDecoder.getInnerClass()
+				+ "|" + utypeDecoder.getInnerAttribute()
+				+ "|" + utypeDecoder.getFrames() + "|" + utypeDecoder.getConstants();
+	}
+
+	/**
+	 * Write the snapshot in a file.
+	 *
+	 * @param file destination
+	 * @throws IOException on write failure
+	 */
+	public void write(File file) throws IOException {
+		try (OutputStream os = new FileOutputStream(file)) {
+			this.write(os);
+		}
+	}
+
+	/**
+	 * Write the snapshot in a stream.
+	 *
+	 * @param os destination, not closed
+	 * @throws IOException on write failure
+	 */
+	public void write(OutputStream os) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.write(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeLong(this.fingerprint);
+		out.writeInt(this.tables.size());
+		for (Map.Entry<String, List<TAPColumn>> table : this.tables.entrySet()) {
+			writeString(out, table.getKey());
+			List<String> decoded = this.decodedUtypes.get(table.getKey());
+			out.writeInt(table.getValue().size());
+			for (int i = 0; i < table.getValue().size(); i++) {
+				TAPColumn column = table.getValue().get(i);
+				writeString(out, column.getADQLName());
+				writeString(out, column.getDescription());
+				writeString(out, column.getUnit());
+				writeString(out, column.getUcd());
+				writeString(out, column.getUtype());
+				writeString(out, decoded.get(i));
+			}
+			List<String> tableFrames = this.frames.get(table.getKey());
+			out.writeInt(tableFrames.size());
+			for (String frame : tableFrames) {
+				writeString(out, frame);
+			}
+		}
+		out.flush();
+		buffer.writeTo(os);
+	}
+
+	/**
+	 * Read a snapshot file; the file is memory-mapped.
+	 *
+	 * @param file snapshot file
+	 * @return the snapshot
+	 * @throws MappingError when the file cannot be read or is not a valid snapshot
+	 */
+	public static MappingSnapshot read(File file) throws MappingError {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file.toString());
+		} catch (IOException e) {
+			throw new MappingError("Cannot read the mapping snapshot " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Read a snapshot from a stream (e.g. a classpath resource).
+	 *
+	 * @param is snapshot stream, not closed
+	 * @param name name of the source for the error messages
+	 * @return the snapshot
+	 * @throws MappingError when the stream cannot be read or is not a valid snapshot
+	 */
+	public static MappingSnapshot read(InputStream is, String name) throws MappingError {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte[] data = new byte[8192];
+			int n;
+			while ((n = is.read(data)) != -1) {
+				buffer.write(data, 0, n);
+			}
+			return read(ByteBuffer.wrap(buffer.toByteArray()), name);
+		} catch (IOException e) {
+			throw new MappingError("Cannot read the mapping snapshot " + name + ": " + e);
+		}
+	}
+
+	private static MappingSnapshot read(ByteBuffer buffer, String name) throws MappingError {
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			buffer.get(magic);
+			if (Arrays.equals(magic, MAGIC) == false) {
+				throw new MappingError(name + " is not a mapping snapshot");
+			}
+			int version = buffer.getInt();
+			if (version != FORMAT_VERSION) {
+				throw new MappingError("Mapping snapshot " + name + " has format version " + version
+						+ ", version " + FORMAT_VERSION + " expected");
+			}
+			long fingerprint = buffer.getLong();
+			Map<String, List<TAPColumn>> tables = new LinkedHashMap<String, List<TAPColumn>>();
+			Map<String, List<String>> decodedUtypes = new LinkedHashMap<String, List<String>>();
+			Map<String, List<String>> frames = new LinkedHashMap<String, List<String>>();
+			int nbTables = buffer.getInt();
+			for (int t = 0; t < nbTables; t++) {
+				String tableName = readString(buffer);
+				TAPTable tapTable = new TAPTable(tableName, TAPTable.TableType.table);
+				int nbColumns = buffer.getInt();
+				List<TAPColumn> columns = new ArrayList<TAPColumn>(nbColumns);
+				List<String> decoded = new ArrayList<String>(nbColumns);
+				for (int c = 0; c < nbColumns; c++) {
+					TAPColumn column = new TAPColumn(readString(buffer), readString(buffer), readString(buffer),
+							readString(buffer), readString(buffer));
+					tapTable.addColumn(column);
+					columns.add(column);
+					decoded.add(readString(buffer));
+				}
+				int nbFrames = buffer.getInt();
+				List<String> tableFrames = new ArrayList<String>(nbFrames);
+				for (int f = 0; f < nbFrames; f++) {
+					tableFrames.add(readString(buffer));
+				}
+				tables.put(tableName, Collections.unmodifiableList(columns));
+				decodedUtypes.put(tableName, Collections.unmodifiableList(decoded));
+				frames.put(tableName, Collections.unmodifiableList(tableFrames));
+			}
+			return new MappingSnapshot(fingerprint, tables, decodedUtypes, frames);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new MappingError("Truncated or corrupted mapping snapshot " + name);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
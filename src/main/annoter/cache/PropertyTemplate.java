@@ -0,0 +1,146 @@
+package main.annoter.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import main.annoter.meta.UtypeDecoder;
+
+/**
+ * Immutable description of one property that a table can map.
+ *
+ * A template gathers all the decoders of a table sharing the same host class
+ * and the same bracketed constant/frames descriptor (see
+ * {@link UtypeDecoder#getConstantAndFrames()}). It also carries the frame
+ * specifications and constants the property depends on, so that nothing has
+ * to be re-discovered when a query is annotated.
+ *
+ * At query time the template is only projected on the selected columns,
+ * given either by name (see {@link #project(Collection)}) or as a BitSet of
+ * column ordinals (see {@link #project(BitSet, List)}).
+ */
+public class PropertyTemplate {
+	/** Host class of the property (e.g. "mango:EpochPosition") */
+	private final String hostClass;
+
+	/** Constant/frames descriptor shared by the decoders, "default" when absent */
+	private final String key;
+
+	/** Decoders of the property in the table column order */
+	private final List<UtypeDecoder> utypeDecoders;
+
+	/** Frame specifications (e.g. "spaceSys=ICRS") required by the property */
+	private final List<String> frames;
+
+	/** Constants (e.g. "epoch=J2000") attached to the property */
+	private final List<String> constants;
+
+	/** Column ordinal of each decoder, aligned with utypeDecoders */
+	private final int[] ordinals;
+
+	/** Ordinals of all the template columns */
+	private final BitSet columnMask;
+
+	/**
+	 * Build a template from a non-empty list of decoders sharing the same key.
+	 * Frames and constants are taken from the first decoder as the mapper always did.
+	 *
+	 * @param hostClass host class of the property
+	 * @param key constant/frames descriptor
+	 * @param utypeDecoders decoders of the property
+	 * @param columnOrdinals ADQL column name -> ordinal, for all the table columns
+	 */
+	PropertyTemplate(String hostClass, String key, List<UtypeDecoder> utypeDecoders, Map<String, Integer> columnOrdinals) {
+		this.hostClass = hostClass;
+		this.key = key;
+		this.utypeDecoders = Collections.unmodifiableList(new ArrayList<UtypeDecoder>(utypeDecoders));
+		this.frames = Collections.unmodifiableList(new ArrayList<String>(utypeDecoders.get(0).getFrames()));
+		this.constants = Collections.unmodifiableList(new ArrayList<String>(utypeDecoders.get(0).getConstants()));
+		this.ordinals = new int[this.utypeDecoders.size()];
+		this.columnMask = new BitSet();
+		for (int i = 0; i < this.ordinals.length; i++) {
+			this.ordinals[i] = columnOrdinals.get(this.utypeDecoders.get(i).getTapColumn().getADQLName());
+			this.columnMask.set(this.ordinals[i]);
+		}
+	}
+
+	public String getHostClass() {
+		return this.hostClass;
+	}
+
+	public String getKey() {
+		return this.key;
+	}
+
+	public List<UtypeDecoder> getUtypeDecoders() {
+		return this.utypeDecoders;
+	}
+
+	public List<String> getFrames() {
+		return this.frames;
+	}
+
+	public List<String> getConstants() {
+		return this.constants;
+	}
+
+	/**
+	 * Return the decoders of the template whose column is selected.
+	 *
+	 * @param selectedColumns ADQL names of the columns selected by the query
+	 * @return selected decoders in column order (empty list when none)
+	 */
+	public List<UtypeDecoder> project(Collection<String> selectedColumns) {
+		return project(selectedColumns, new ArrayList<UtypeDecoder>());
+	}
+
+	/**
+	 * Same as {@link #project(Collection)} but fills a caller-supplied list,
+	 * which lets the annotation loop recycle one list for all templates.
+	 * The list is cleared first; it must not be kept by the callee beyond
+	 * the construction of the property.
+	 *
+	 * @param selectedColumns ADQL names of the columns selected by the query
+	 * @param selected list receiving the selected decoders in column order
+	 * @return the selected list
+	 */
+	public List<UtypeDecoder> project(Collection<String> selectedColumns, List<UtypeDecoder> selected) {
+		selected.clear();
+		for (UtypeDecoder utypeDecoder : this.utypeDecoders) {
+			if (selectedColumns.contains(utypeDecoder.getTapColumn().getADQLName())) {
+				selected.add(utypeDecoder);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Same as {@link #project(Collection, List)} with the selection given as
+	 * column ordinals. A template sharing no column with the selection is
+	 * rejected by a single word-wise intersection.
+	 *
+	 * @param selection ordinals of the selected columns, built by {@link AnnotationPlan#select(Collection)}
+	 *        of the plan owning the template
+	 * @param selected list receiving the selected decoders in column order
+	 * @return the selected list
+	 */
+	public List<UtypeDecoder> project(BitSet selection, List<UtypeDecoder> selected) {
+		selected.clear();
+		if (this.columnMask.intersects(selection) == false) {
+			return selected;
+		}
+		for (int i = 0; i < this.ordinals.length; i++) {
+			if (selection.get(this.ordinals[i])) {
+				selected.add(this.utypeDecoders.get(i));
+			}
+		}
+		return selected;
+	}
+
+	public String toString() {
+		return this.hostClass + this.key + " " + this.utypeDecoders.size() + " columns frames=" + this.frames;
+	}
+}
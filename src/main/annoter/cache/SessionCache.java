@@ -98,4 +98,13 @@ public class SessionCache {
 	public void storeGlobalsId(String globalsId) {
 		this.globalsIds.add(globalsId);
 	}
+
+	/**
+	 * Forget all the models and frame ids so that the cache can be reused for
+	 * another mapping run.
+	 */
+	public void clear() {
+		this.referencedModels.clear();
+		this.globalsIds.clear();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+package main.annoter.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Off-heap store of UTF-8 encoded strings (rendered MIVOT blocks), used as the
+ * second tier of the annotation cache.
+ *
+ * The bytes are appended to fixed-size slabs, either direct buffers or
+ * memory-mapped temporary files. The only on-heap data are the index
+ * (key -> one packed long) and the key list of each slab: a large warm cache
+ * adds almost nothing to the old generation and to full GC pauses.
+ *
+ * Slabs form a ring: when all of them are full, the oldest one is dropped with
+ * its entries (FIFO eviction by slab) and a fresh slab takes its slot. The
+ * memory of a slab is never rewritten: a reader still holding a buffer of a
+ * dropped slab keeps reading valid bytes, and the memory is released when that
+ * buffer is garbage collected.
+ *
+ * Thread-safety: writes are synchronized, reads are lock-free. An index entry
+ * is published after its bytes are written.
+ */
+public class SlabStore {
+	/** Largest slab: offsets and lengths are packed on 24 bits */
+	public static final int MAX_SLAB_SIZE = (1 << 24) - 1;
+
+	/**
+	 * Largest number of slabs: slab sequence numbers are packed on 16 bits,
+	 * and each slot must see at least two of them to tell a recycled slot
+	 * from its previous slab
+	 */
+	public static final int MAX_SLABS = 1 << 15;
+
+	/** Memory of a slab and the keys of the entries written into it */
+	private static class Slab {
+		final long sequence;
+		final ByteBuffer buffer;
+		final List<String> keys = new ArrayList<String>();
+		int used = 0;
+
+		Slab(long sequence, ByteBuffer buffer) {
+			this.sequence = sequence;
+			this.buffer = buffer;
+		}
+	}
+
+	private final int slabSize;
+	private final File directory;
+	// key -> slab sequence (16 bits) | offset (24 bits) | length (24 bits)
+	private final Map<String, Long> index = new ConcurrentHashMap<String, Long>();
+	// slab of sequence n is in the slot n % slots.length()
+	private final AtomicReferenceArray<Slab> slots;
+	// Sequence numbers wrap at the largest multiple of the slab count fitting on 16 bits
+	private final int sequencePeriod;
+	// Slab being filled, null before the first write
+	private Slab current = null;
+	private long nextSequence = 0;
+
+	/**
+	 * @param capacity total size of the slabs in bytes
+	 * @param slabSize size of one slab in bytes, at most {@value #MAX_SLAB_SIZE};
+	 *        larger strings are not stored
+	 * @param directory directory of the memory-mapped slab files, null for direct buffers
+	 */
+	public SlabStore(long capacity, int slabSize, File directory) {
+		if (slabSize <= 0 || slabSize > MAX_SLAB_SIZE) {
+			throw new IllegalArgumentException("Slab size must be in ]0, " + MAX_SLAB_SIZE + "]: " + slabSize);
+		}
+		long slabs = capacity / slabSize;
+		if (slabs < 1 || slabs > MAX_SLABS) {
+			throw new IllegalArgumentException("Capacity must hold 1 to " + MAX_SLABS + " slabs: " + capacity);
+		}
+		this.slabSize = slabSize;
+		this.directory = directory;
+		this.slots = new AtomicReferenceArray<Slab>((int) slabs);
+		this.sequencePeriod = (int) (slabs * ((1 << 16) / slabs));
+	}
+
+	/**
+	 * Store a string unless the key is already present.
+	 *
+	 * @param key entry key
+	 * @param value string to store
+	 * @return false if the encoded string is larger than a slab or the slab cannot be allocated
+	 */
+	public synchronized boolean put(String key, String value) {
+		if (this.index.containsKey(key)) {
+			return true;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > this.slabSize) {
+			return false;
+		}
+		if (this.current == null || this.current.used + bytes.length > this.slabSize) {
+			try {
+				this.current = this.newSlab();
+			} catch (IOException | OutOfMemoryError e) {
+				Cache.logWarning("Annotation slab cannot be allocated:", e.toString());
+				return false;
+			}
+		}
+		ByteBuffer target = this.current.buffer.duplicate();
+		target.position(this.current.used);
+		target.put(bytes);
+		long location = (this.current.sequence << 48)
+				| ((long) this.current.used << 24)
+				| bytes.length;
+		this.current.used += bytes.length;
+		this.current.keys.add(key);
+		this.index.put(key, location);
+		return true;
+	}
+
+	/**
+	 * Return the bytes of an entry as a read-only buffer positioned on them.
+	 *
+	 * The buffer stays valid even if the entry is evicted afterwards.
+	 *
+	 * @param key entry key
+	 * @return the buffer, null if the key is not stored
+	 */
+	public ByteBuffer getBuffer(String key) {
+		Long location = this.index.get(key);
+		if (location == null) {
+			return null;
+		}
+		long sequence = location >>> 48;
+		int offset = (int) ((location >>> 24) & 0xFFFFFF);
+		int length = (int) (location & 0xFFFFFF);
+		Slab slab = this.slots.get((int) (sequence % this.slots.length()));
+		// The slot may have been recycled since the index was read
+		if (slab == null || slab.sequence != sequence) {
+			return null;
+		}
+		ByteBuffer buffer = slab.buffer.asReadOnlyBuffer();
+		buffer.limit(offset + length);
+		buffer.position(offset);
+		return buffer;
+	}
+
+	/**
+	 * @param key entry key
+	 * @return the decoded string, null if the key is not stored
+	 */
+	public String get(String key) {
+		ByteBuffer buffer = this.getBuffer(key);
+		return (buffer == null) ? null : StandardCharsets.UTF_8.decode(buffer).toString();
+	}
+
+	/**
+	 * Copy the bytes of an entry to a channel, without going through the heap
+	 * when the channel writes from direct buffers.
+	 *
+	 * @param key entry key
+	 * @param channel destination
+	 * @return the number of bytes written, -1 if the key is not stored
+	 * @throws IOException if the channel fails
+	 */
+	public int writeTo(String key, WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = this.getBuffer(key);
+		if (buffer == null) {
+			return -1;
+		}
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		return length;
+	}
+
+	/**
+	 * @return the number of stored entries
+	 */
+	public int size() {
+		return this.index.size();
+	}
+
+	/**
+	 * @return the number of bytes reserved by the allocated slabs
+	 */
+	public synchronized long getAllocatedBytes() {
+		long allocated = 0;
+		for (int i = 0; i < this.slots.length(); i++) {
+			if (this.slots.get(i) != null) {
+				allocated += this.slabSize;
+			}
+		}
+		return allocated;
+	}
+
+	/**
+	 * Drop all the entries.
+	 */
+	public synchronized void clear() {
+		this.index.clear();
+		for (int i = 0; i < this.slots.length(); i++) {
+			this.slots.set(i, null);
+		}
+		this.current = null;
+	}
+
+	/**
+	 * Allocate the next slab of the ring, evicting the entries of the slab
+	 * previously held by its slot.
+	 */
+	private Slab newSlab() throws IOException {
+		long sequence = this.nextSequence;
+		int slot = (int) (sequence % this.slots.length());
+		Slab evicted = this.slots.get(slot);
+		if (evicted != null) {
+			this.slots.set(slot, null);
+			for (String key : evicted.keys) {
+				Long location = this.index.get(key);
+				if (location != null && (location >>> 48) == evicted.sequence) {
+					this.index.remove(key, location);
+				}
+			}
+			Cache.logDebug("Annotation slab", Long.toString(evicted.sequence), "evicted with",
+					Integer.toString(evicted.keys.size()), "entries");
+		}
+		Slab slab = new Slab(sequence, this.allocate());
+		this.nextSequence = (this.nextSequence + 1) % this.sequencePeriod;
+		this.slots.set(slot, slab);
+		return slab;
+	}
+
+	private ByteBuffer allocate() throws IOException {
+		if (this.directory == null) {
+			return ByteBuffer.allocateDirect(this.slabSize);
+		}
+		File file = File.createTempFile("mivot-slab-", ".bin", this.directory);
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+				FileChannel channel = randomAccessFile.getChannel()) {
+			// The mapping outlives the channel and the file name
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, this.slabSize);
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package main.annoter.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import main.annoter.meta.Glossary;
+import main.annoter.mivot.MappingError;
+import main.annoter.utils.XmlUtils;
+
+/**
+ * Immutable in-memory index of the MIVOT frame snippets bundled with the service.
+ *
+ * The snippets are the files snippets/mango.frame.<frameType>.xml of the
+ * classpath (either in a directory or in a jar). They are all read once, when
+ * the index is first requested, and stored as pre-indented fragments keyed by
+ * frame type. Local frames and PhotCal fallbacks are thus resolved without
+ * any I/O.
+ *
+ * The same directory holds the PhotCal frames baked at build time from the
+ * FPS responses (snippets/mango.baked.<filter>.xml, see
+ * {@link main.annoter.batch.FilterBakeTool}). They are kept as written by the
+ * PhotCal transformation, so that a baked frame is the very frame the FPS
+ * call would give.
+ *
+ * Loading fails (MappingError) when:
+ * - a snippet is not well-formed XML,
+ * - a filter of {@link Glossary.Filters} without SVO identifier has no snippet
+ *   (it could never be resolved).
+ * Calling {@link #getIndex()} at service startup turns these cases into
+ * startup errors instead of per-request mapping failures.
+ */
+public class SnippetIndex {
+	/** Classpath directory of the snippets */
+	public static final String SNIPPET_DIR = "snippets";
+	/** Snippet file name is PREFIX + frameType + SUFFIX */
+	public static final String PREFIX = "mango.frame.";
+	public static final String SUFFIX = ".xml";
+	/** Baked frame file name is BAKED_PREFIX + filter + SUFFIX */
+	public static final String BAKED_PREFIX = "mango.baked.";
+
+	private static volatile SnippetIndex index = null;
+
+	/** frameType -> pre-indented XML fragment */
+	private final Map<String, String> fragments;
+	/** filter -> baked PhotCal frame */
+	private final Map<String, String> bakedFrames;
+
+	private SnippetIndex(Map<String, String> fragments, Map<String, String> bakedFrames) {
+		this.fragments = Collections.unmodifiableMap(fragments);
+		this.bakedFrames = Collections.unmodifiableMap(bakedFrames);
+	}
+
+	/**
+	 * Return the snippet index, loading it on the first call.
+	 *
+	 * @return the shared index
+	 * @throws MappingError when a snippet is invalid or a filter fallback is missing
+	 */
+	public static SnippetIndex getIndex() throws MappingError {
+		SnippetIndex snippetIndex = index;
+		if (snippetIndex == null) {
+			synchronized (SnippetIndex.class) {
+				snippetIndex = index;
+				if (snippetIndex == null) {
+					snippetIndex = load();
+					index = snippetIndex;
+				}
+			}
+		}
+		return snippetIndex;
+	}
+
+	/**
+	 * Return the fragment of the given frame type.
+	 *
+	 * @param frameType frame type (e.g. "SUM_FLAG" or "B")
+	 * @return the fragment or null when there is no snippet for that type
+	 */
+	public String getFragment(String frameType) {
+		return this.fragments.get(frameType);
+	}
+
+	public boolean contains(String frameType) {
+		return this.fragments.containsKey(frameType);
+	}
+
+	/**
+	 * @return the indexed frame types, sorted
+	 */
+	public Set<String> getFrameTypes() {
+		return this.fragments.keySet();
+	}
+
+	/**
+	 * Return the baked PhotCal frame of a filter, with the given ids.
+	 *
+	 * @param filter short filter name (e.g. "K")
+	 * @param photcalId dmid of the PhotCal instance
+	 * @param filterId dmid of the photometry filter
+	 * @return the PhotCal instance followed by the filter instance, null if the filter is not baked
+	 */
+	public String getBakedFrame(String filter, String photcalId, String filterId) {
+		String frame = this.bakedFrames.get(filter);
+		if (frame == null) {
+			return null;
+		}
+		String bakedPhotCalId = getBakedPhotCalId(filter);
+		String bakedFilterId = getBakedFilterId(filter);
+		if (photcalId.equals(bakedPhotCalId) == false) {
+			frame = frame.replace("\"" + bakedPhotCalId + "\"", "\"" + photcalId + "\"");
+		}
+		if (filterId.equals(bakedFilterId) == false) {
+			frame = frame.replace("\"" + bakedFilterId + "\"", "\"" + filterId + "\"");
+		}
+		return frame;
+	}
+
+	public boolean isBaked(String filter) {
+		return this.bakedFrames.containsKey(filter);
+	}
+
+	/**
+	 * @return the filters having a baked frame, sorted
+	 */
+	public Set<String> getBakedFilters() {
+		return this.bakedFrames.keySet();
+	}
+
+	/**
+	 * @return the dmid of the PhotCal instance in the baked frame of a filter
+	 *         (the one of a "photCal=filter" frame)
+	 */
+	public static String getBakedPhotCalId(String filter) {
+		return "_" + Glossary.CSClass.PHOTCAL + "_" + filter;
+	}
+
+	/**
+	 * @return the dmid of the photometry filter in the baked frame of a filter
+	 */
+	public static String getBakedFilterId(String filter) {
+		return getBakedPhotCalId(filter).replace("photCal", "photFilter");
+	}
+
+	/**
+	 * Scan all the classpath locations of the snippet directory and check the
+	 * filter fallbacks.
+	 */
+	private static SnippetIndex load() throws MappingError {
+		Map<String, String> fragments = new TreeMap<String, String>();
+		Map<String, String> bakedFrames = new TreeMap<String, String>();
+		ClassLoader classLoader = SnippetIndex.class.getClassLoader();
+		try {
+			Enumeration<URL> urls = classLoader.getResources(SNIPPET_DIR);
+			while (urls.hasMoreElements()) {
+				URL url = urls.nextElement();
+				if ("file".equals(url.getProtocol())) {
+					File[] files = new File(url.toURI()).listFiles();
+					if (files == null) {
+						continue;
+					}
+					for (File file : files) {
+						String frameType = getFrameType(file.getName(), PREFIX);
+						String filter = getFrameType(file.getName(), BAKED_PREFIX);
+						if (frameType != null && fragments.containsKey(frameType) == false) {
+							try (InputStream is = new FileInputStream(file)) {
+								fragments.put(frameType, readFragment(file.getName(), is));
+							}
+						} else if (filter != null && bakedFrames.containsKey(filter) == false) {
+							try (InputStream is = new FileInputStream(file)) {
+								bakedFrames.put(filter, readXml(file.getName(), is));
+							}
+						}
+					}
+				} else if ("jar".equals(url.getProtocol())) {
+					JarURLConnection connection = (JarURLConnection) url.openConnection();
+					connection.setUseCaches(false);
+					try (JarFile jarFile = connection.getJarFile()) {
+						Enumeration<JarEntry> entries = jarFile.entries();
+						while (entries.hasMoreElements()) {
+							JarEntry entry = entries.nextElement();
+							String name = entry.getName();
+							if (name.startsWith(SNIPPET_DIR + "/") == false) {
+								continue;
+							}
+							String fileName = name.substring(SNIPPET_DIR.length() + 1);
+							String frameType = getFrameType(fileName, PREFIX);
+							String filter = getFrameType(fileName, BAKED_PREFIX);
+							if (frameType != null && fragments.containsKey(frameType) == false) {
+								try (InputStream is = jarFile.getInputStream(entry)) {
+									fragments.put(frameType, readFragment(name, is));
+								}
+							} else if (filter != null && bakedFrames.containsKey(filter) == false) {
+								try (InputStream is = jarFile.getInputStream(entry)) {
+									bakedFrames.put(filter, readXml(name, is));
+								}
+							}
+						}
+					}
+				} else {
+					Cache.logWarning("Snippet location", url.toString(), "cannot be scanned: ignored");
+				}
+			}
+		} catch (IOException | URISyntaxException e) {
+			throw new MappingError("Cannot scan the MIVOT snippets: " + e);
+		}
+
+		for (String filter : bakedFrames.keySet()) {
+			if (Glossary.Filters.map.containsKey(filter) == false) {
+				Cache.logWarning("Baked frame", BAKED_PREFIX + filter + SUFFIX, "matches no known filter: ignored");
+			}
+		}
+		// Filters without SVO identifier can only be resolved with a snippet
+		for (Map.Entry<String, String> filter : Glossary.Filters.map.entrySet()) {
+			if ((filter.getValue() == null || filter.getValue().isEmpty())
+					&& fragments.containsKey(filter.getKey()) == false) {
+				throw new MappingError("Filter " + filter.getKey()
+						+ " has neither SVO identifier nor local MIVOT snippet "
+						+ SNIPPET_DIR + "/" + PREFIX + filter.getKey() + SUFFIX);
+			}
+		}
+		Cache.logInfo("MIVOT snippets indexed:", fragments.keySet().toString(),
+				"baked filters:", bakedFrames.keySet().toString());
+		return new SnippetIndex(fragments, bakedFrames);
+	}
+
+	/**
+	 * Extract the frame type (or the filter) from a snippet file name.
+	 *
+	 * @param prefix {@link #PREFIX} or {@link #BAKED_PREFIX}
+	 * @return the frame type or null if the name does not follow the snippet convention
+	 */
+	private static String getFrameType(String fileName, String prefix) {
+		if (fileName.startsWith(prefix) && fileName.endsWith(SUFFIX)
+				&& fileName.length() > prefix.length() + SUFFIX.length()) {
+			return fileName.substring(prefix.length(), fileName.length() - SUFFIX.length());
+		}
+		return null;
+	}
+
+	/**
+	 * Read a snippet, check it is well-formed and indent it.
+	 */
+	private static String readFragment(String name, InputStream is) throws IOException, MappingError {
+		return XmlUtils.prettyString(readXml(name, is).trim());
+	}
+
+	/**
+	 * Read a snippet and check it is well-formed (baked frames are kept as read).
+	 */
+	private static String readXml(String name, InputStream is) throws IOException, MappingError {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] data = new byte[4096];
+		int n;
+		while ((n = is.read(data)) != -1) {
+			buffer.write(data, 0, n);
+		}
+		String xml = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+		try {
+			// A snippet may contain several elements: wrap them to parse
+			DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(("<SNIPPET>" + xml + "</SNIPPET>").getBytes(StandardCharsets.UTF_8)));
+		} catch (Exception e) {
+			throw new MappingError("Invalid MIVOT snippet " + name + ": " + e.getMessage());
+		}
+		return xml;
+	}
+}
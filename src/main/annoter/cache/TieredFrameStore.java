@@ -0,0 +1,52 @@
+package main.annoter.cache;
+
+import main.annoter.mivot.FrameHolder;
+
+/**
+ * Frame store reading a local store first, then a shared one.
+ *
+ * Frames found in the shared store are copied into the local one, so that each
+ * node reads a frame from the shared store once. New frames are written to the
+ * shared store first: when two nodes build the same frame at the same time, the
+ * one the shared store kept is used by both.
+ *
+ * Fallback frames (built from a local snippet because the remote service
+ * failed, see {@link FrameHolder#fallback}) are only kept in the local store:
+ * the other nodes, and this one after a restart, build the real frame.
+ */
+public class TieredFrameStore implements FrameStore {
+	private final FrameStore local;
+	private final FrameStore shared;
+
+	/**
+	 * @param local in-process store
+	 * @param shared store shared by the nodes
+	 */
+	public TieredFrameStore(FrameStore local, FrameStore shared) {
+		this.local = local;
+		this.shared = shared;
+	}
+
+	public FrameHolder get(String frameId) {
+		FrameHolder frameHolder = this.local.get(frameId);
+		if (frameHolder == null) {
+			frameHolder = this.shared.get(frameId);
+			if (frameHolder != null) {
+				frameHolder = this.local.putIfAbsent(frameHolder);
+			}
+		}
+		return frameHolder;
+	}
+
+	public FrameHolder putIfAbsent(FrameHolder frameHolder) {
+		if (frameHolder.fallback) {
+			FrameHolder shared = this.shared.get(frameHolder.frameId);
+			return this.local.putIfAbsent((shared != null) ? shared : frameHolder);
+		}
+		return this.local.putIfAbsent(this.shared.putIfAbsent(frameHolder));
+	}
+
+	public FrameStore getShared() {
+		return this.shared;
+	}
+}
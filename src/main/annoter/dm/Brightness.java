@@ -23,14 +23,14 @@ package main.annoter.dm;
 
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 
 import main.annoter.meta.Glossary;
 import main.annoter.meta.UtypeDecoder;
 import main.annoter.meta.UtypeDecoderBrowser;
 import main.annoter.mivot.FrameHolder;
-import main.annoter.mivot.MivotInstance;
+import main.annoter.mivot.node.CachedNode;
+import main.annoter.mivot.node.MivotNode;
 import tap.metadata.TAPColumn;
 
 /**
@@ -59,6 +59,11 @@ public class Brightness extends Property {
 	// MANGO data type for Brightness
 	public static final String DMTYPE = "mango:Brightness";
 
+	/** Semantics shared by all the magnitudes */
+	static final CachedNode SEMANTICS = Property.buildSemantics("magnitude value with its photometric system",
+			"https://www.ivoa.net/rdf/uat/uat.html#magnitude",
+			"magnitude");
+
 	/** Photometric calibration id (dmid) if available (may be null). */
 	public String photcal;
 
@@ -68,8 +73,8 @@ public class Brightness extends Property {
 	/** Decoder that provides the "value" host attribute (magnitude column). */
 	public UtypeDecoder valueUtypeDecoder = null; 
 
-	/** MivotInstance describing the error structure (if any). */
-	public MivotInstance errorInstance = null;
+	/** Shared node describing the error structure (if any). */
+	public MivotNode errorInstance = null;
 	
 	/**
 	 * Construct a Brightness property from decoded utypes and frame holders.
@@ -90,19 +95,12 @@ public class Brightness extends Property {
 	 * @param constants list of constant qualifiers (not directly used here)
 	 * @throws Exception propagated from nested constructors or builders
 	 */
-	@SuppressWarnings("serial")
 	public Brightness(List<UtypeDecoder> utypeDecoders,
 					String tableName,
 					List<FrameHolder> frameHolders,
 					List<String> constants) throws Exception {
 
-		super(DMTYPE, null, null, new HashMap<String, String>() {
-			{
-			put("description", "magnitude value with its photometric system");
-			put("uri", "https://www.ivoa.net/rdf/uat/uat.html#magnitude");
-			put("label", "magnitude");
-			}
-		});
+		super(DMTYPE, null, null, SEMANTICS);
 		// Prepare browser for convenient utype lookups
 		this.utypeBrowser = new UtypeDecoderBrowser(utypeDecoders);
 		
@@ -127,7 +125,7 @@ public class Brightness extends Property {
 
 		// If an error instance exists, attach it to this property
 		if( this.errorInstance != null ) {
-			this.addInstance(this.errorInstance);
+			this.addNode(this.errorInstance);
 		}
 		
 		// Add references to any supplied PhotCal frames (FrameHolder entries)
@@ -143,7 +141,7 @@ public class Brightness extends Property {
 	 *
 	 * The method prefers a symmetric 1D error ("sigma"). If not present it
 	 * tries to find asymmetric errors ("high","low"). When an error decoder
-	 * is found a PropertyError helper is used to create a MivotInstance.
+	 * is found a PropertyError helper provides the shared error node.
 	 *
 	 * @throws Exception propagated from PropertyError or instance creation
 	 */
@@ -158,7 +156,7 @@ public class Brightness extends Property {
 
 					Arrays.asList(errorUtypeDecoder),
 					null);
-			this.errorInstance = errorFlat.getMivotInstance();
+			this.errorInstance = errorFlat.getMivotNode();
 			// If photcal wasn't set from the value decoder try to obtain it from the error decoder
 			if( this.photcal == null ) {
 				this.photcal = errorUtypeDecoder.getFrame("photcal");
@@ -174,7 +172,7 @@ public class Brightness extends Property {
 						0.68,
 					errorUtypeDecoders,
 					null);
-				this.errorInstance = errorFlat.getMivotInstance();
+				this.errorInstance = errorFlat.getMivotNode();
 				if( this.photcal == null ) {
 					this.photcal = errorUtypeDecoders.get(0).getFrame("photcal");
 				}
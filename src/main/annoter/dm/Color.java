@@ -16,7 +16,6 @@ package main.annoter.dm;
 
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 
 import main.annoter.meta.Glossary;
@@ -24,6 +23,7 @@ import main.annoter.meta.UtypeDecoder;
 import main.annoter.meta.UtypeDecoderBrowser;
 import main.annoter.mivot.FrameHolder;
 import main.annoter.mivot.MivotInstance;
+import main.annoter.mivot.node.MivotNode;
 import tap.metadata.TAPColumn;
 
 /**
@@ -47,7 +47,7 @@ public class Color extends Property {
 	public UtypeDecoder valueUtypeDecoder = null; 
 	
 	/** Error instance (if any) for the color value. */
-	public MivotInstance errorInstance = null;
+	public MivotNode errorInstance = null;
 
 	/**
 	 * Construct a Color property from decoded utypes and frame holders.
@@ -67,19 +67,13 @@ public class Color extends Property {
 	 * @param constants list of constant qualifiers (e.g. mode=...)
 	 * @throws Exception propagated from nested constructors or builders
 	 */
-	@SuppressWarnings("serial")
 	public Color(List<UtypeDecoder> utypeDecoders,
 				String tableName,
 				List<FrameHolder> frameHolders,
 				List<String> constants) throws Exception {
 
-		super(DMTYPE, null, null, new HashMap<String, String>() {
-			{
-				put("description", "magnitude value with its photometric system");
-				put("uri", "https://www.ivoa.net/rdf/uat/uat.html#magnitude");
-				put("label", "magnitude");
-			}
-		});
+		// Same semantics as the magnitudes
+		super(DMTYPE, null, null, Brightness.SEMANTICS);
 
 		// Wrap decoders for easier queries
 		this.utypeBrowser = new UtypeDecoderBrowser(utypeDecoders);
@@ -118,7 +112,7 @@ public class Color extends Property {
 
 		// If an error instance exists, attach it to this property
 		if( this.errorInstance != null ) {
-			this.addInstance(this.errorInstance);
+			this.addNode(this.errorInstance);
 		}
 
 		// Build a ColorDefinition instance and add references for high/low filters
@@ -141,7 +135,7 @@ public class Color extends Property {
 	 *
 	 * The method prefers a symmetric 1D error ("sigma"). If not present it
 	 * tries to find asymmetric errors ("high","low"). When an error decoder
-	 * is found a PropertyError helper is used to create a MivotInstance.
+	 * is found a PropertyError helper provides the shared error node.
 	 *
 	 * @throws Exception propagated from PropertyError or instance creation
 	 */
@@ -156,7 +150,7 @@ public class Color extends Property {
 
 					Arrays.asList(errorUtypeDecoder),
 					null);
-			this.errorInstance = errorFlat.getMivotInstance();
+			this.errorInstance = errorFlat.getMivotNode();
 			// If photcal wasn't set from the value decoder try to obtain it from the error decoder
 			if( this.photcal == null ) {
 				this.photcal = errorUtypeDecoder.getFrame("photcal");
@@ -172,7 +166,7 @@ public class Color extends Property {
 						0.68,
 					errorUtypeDecoders,
 					null);
-				this.errorInstance = errorFlat.getMivotInstance();
+				this.errorInstance = errorFlat.getMivotNode();
 				if( this.photcal == null ) {
 					this.photcal = errorUtypeDecoders.get(0).getFrame("photcal");
 				}
@@ -20,14 +20,20 @@ package main.annoter.dm;
 
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 
+import main.annoter.cache.AnnotationPlan;
+import main.annoter.cache.ErrorGroup;
 import main.annoter.cache.MappingCache;
 import main.annoter.meta.Glossary;
 import main.annoter.meta.UtypeDecoder;
 import main.annoter.mivot.FrameHolder;
+import main.annoter.mivot.MappingError;
 import main.annoter.mivot.MivotInstance;
+import main.annoter.mivot.node.CachedNode;
+import main.annoter.mivot.node.MivotNode;
 import tap.metadata.TAPColumn;
 
 /**
@@ -51,11 +57,12 @@ import tap.metadata.TAPColumn;
 public class EpochPosition extends Property {
 
 	public static final String DMTYPE = "mango:EpochPosition";
+	/** Semantics shared by all the positions */
+	private static final CachedNode SEMANTICS = Property.buildSemantics("6 parameters position",
+			"https://www.ivoa.net/rdf/uat/2024-06-25/uat.html#astronomical-location",
+			"Astronomical location");
 	public List<String> frames;
 	private String tableName;
-	private List<UtypeDecoder> positionErrorUtypes = new ArrayList<>();
-	private List<UtypeDecoder> pmErrorUtypes = new ArrayList<>();
-	private List<UtypeDecoder> parallaxErrorUtypes = new ArrayList<>();
 
 	/**
 	 * Construct an EpochPosition property from decoded UType information.
@@ -65,8 +72,8 @@ public class EpochPosition extends Property {
 	 *    RealQuantity attributes pointing to the ADQL column names.
 	 * 2. Extract a possible epoch constant (CT:epoch) and add it as an obsDate
 	 *    attribute when present.
-	 * 3. Build and attach an errors instance if any error UTypes were found in
-	 *    the mapping cache for the same table.
+	 * 3. Build and attach an errors instance if error columns of the table are
+	 *    among the provided decoders.
 	 * 4. Add references to any supplied SPACE/TIME FrameHolders.
 	 *
 	 * @param utypeDecoders list of decoded UType descriptors for the table
@@ -80,13 +87,7 @@ public class EpochPosition extends Property {
 					List<FrameHolder> frameHolders,
 					List<String> constants) throws Exception {
 
-		super(DMTYPE, null, null, new HashMap<String, String>() {
-			{
-			put("description", "6 parameters position");
-			put("uri", "https://www.ivoa.net/rdf/uat/2024-06-25/uat.html#astronomical-location");
-			put("label", "Astronomical location");
-			}
-		});
+		super(DMTYPE, null, null, SEMANTICS);
 		this.tableName = tableName;
 		
 		// epoch constant if present (CT:epoch qualifier)
@@ -120,8 +121,8 @@ public class EpochPosition extends Property {
 
 		}
 
-		// Build and attach an error instance if error-related UTypes are present
-		MivotInstance erri = this.buildEpochErrors();
+		// Build and attach an error instance if error-related UTypes are selected
+		MivotInstance erri = this.buildEpochErrors(utypeDecoders);
 		if (erri != null) {
 			this.addInstance(erri);
 		}
@@ -140,40 +141,28 @@ public class EpochPosition extends Property {
 	/**
 	 * Build a composite errors instance for the epoch-position property.
 	 *
-	 * This method queries the global MappingCache for decoders that match
-	 * this DMTYPE and groups error-related decoders by their innerRole
-	 * (position, properMotion, parallax). For each group found it creates
-	 * a {@link PropertyError} component and aggregates them into a
-	 * mango:EpochPositionErrors instance.
+	 * The error groups (position, properMotion, parallax) are precompiled and
+	 * validated with the annotation plan of the table (see {@link ErrorGroup}):
+	 * they are only intersected with the columns of the property, so that
+	 * unselected error columns are not referenced. For each group with selected
+	 * columns a {@link PropertyError} component is created and they are
+	 * aggregated into a mango:EpochPositionErrors instance.
 	 *
+	 * @param utypeDecoders decoders of the selected columns of the property
 	 * @return a MivotInstance representing the errors, or null when no errors mapped
-	 * @throws Exception propagated from inner builders or checks
+	 * @throws Exception propagated from inner builders or when an inconsistent
+	 *         error group is selected
 	 */
-	private MivotInstance buildEpochErrors()
+	private MivotInstance buildEpochErrors(List<UtypeDecoder> utypeDecoders)
 				throws Exception {
-		MappingCache MAPPING_CACHE = MappingCache.getCache();
-
-		// Retrieve all decoders for this table that claim to map to mango:EpochPosition
-		List<UtypeDecoder> mappableColumns = MAPPING_CACHE.getTableMapping(this.tableName, DMTYPE);
-
-		// Group decoders by their inner role (errors.position, errors.properMotion, errors.parallax)
-		for (UtypeDecoder mappableColumn : mappableColumns) {
-			if( "errors".equals(mappableColumn.getHostAttribute()) ){
-				if ("position".equals(mappableColumn.getInnerRole())) {
-					// Validate consistency of inner class when adding to the list
-					mappableColumn.checkInnerClass(positionErrorUtypes);
-					positionErrorUtypes.add(mappableColumn);
-				}
-				if ("properMotion".equals(mappableColumn.getInnerRole())) {
-					mappableColumn.checkInnerClass(pmErrorUtypes);
-					pmErrorUtypes.add(mappableColumn);
-				}
-				if ("parallax".equals(mappableColumn.getInnerRole())) {
-					mappableColumn.checkInnerClass(parallaxErrorUtypes);
-					parallaxErrorUtypes.add(mappableColumn);
-				}
-			}
+		AnnotationPlan annotationPlan = MappingCache.getCache().getAnnotationPlan(this.tableName);
+		if (annotationPlan == null) {
+			return null;
 		}
+		BitSet selection = annotationPlan.selectDecoders(utypeDecoders);
+		List<UtypeDecoder> positionErrorUtypes = selectErrors(annotationPlan, "position", selection);
+		List<UtypeDecoder> pmErrorUtypes = selectErrors(annotationPlan, "properMotion", selection);
+		List<UtypeDecoder> parallaxErrorUtypes = selectErrors(annotationPlan, "parallax", selection);
 
 		// Build the top-level EpochPositionErrors container
 		MivotInstance errorInstance = new MivotInstance(
@@ -183,41 +172,56 @@ public class EpochPosition extends Property {
 		);
 
 		boolean errorMapped = false;
-		MivotInstance errorComponent;
+		MivotNode errorComponent;
 		// For each potential error group build a PropertyError component and add it
 		if( (errorComponent = this.buildErrorComponent("mango:EpochPositionErrors.position",
-					this.positionErrorUtypes) ) != null ) {
+					positionErrorUtypes) ) != null ) {
 			errorMapped = true;
-			errorInstance.addInstance(errorComponent);
+			errorInstance.addNode(errorComponent);
 		}
 		if( (errorComponent = this.buildErrorComponent("mango:EpochPositionErrors.properMotion",
-					this.pmErrorUtypes) ) != null ) {
+					pmErrorUtypes) ) != null ) {
 			errorMapped = true;
-			errorInstance.addInstance(errorComponent);
+			errorInstance.addNode(errorComponent);
 		}
 		if( (errorComponent = this.buildErrorComponent("mango:EpochPositionErrors.parallax",
-					this.parallaxErrorUtypes) ) != null ) {
+					parallaxErrorUtypes) ) != null ) {
 			errorMapped = true;
-			errorInstance.addInstance(errorComponent);
+			errorInstance.addNode(errorComponent);
 		}
 		// Return the composed errors instance, or null when nothing was mapped
 		return (errorMapped ==  true)? errorInstance: null;
 	}
 	
 	/**
-	 * Helper that builds a PropertyError MivotInstance from a list of decoders.
+	 * Project the error group of an inner role on the selection.
+	 *
+	 * @return the selected decoders of the group, empty when the table does not map it
+	 * @throws MappingError when the group is inconsistent
+	 */
+	private static List<UtypeDecoder> selectErrors(AnnotationPlan annotationPlan, String innerRole, BitSet selection)
+				throws MappingError {
+		ErrorGroup errorGroup = annotationPlan.getErrorGroup(DMTYPE, innerRole);
+		if (errorGroup == null) {
+			return Collections.emptyList();
+		}
+		return errorGroup.project(selection, new ArrayList<UtypeDecoder>());
+	}
+
+	/**
+	 * Helper that gets the (shared) PropertyError node from a list of decoders.
 	 *
 	 * @param dmrole the dmid/dmrole to use for the error component
 	 * @param utypeDecoders list of decoders describing the error fields
-	 * @return constructed MivotInstance or null when the decoder list is empty
+	 * @return error node or null when the decoder list is empty
 	 * @throws Exception propagated from PropertyError
 	 */
-	private MivotInstance buildErrorComponent(String dmrole, List<UtypeDecoder> utypeDecoders)
+	private MivotNode buildErrorComponent(String dmrole, List<UtypeDecoder> utypeDecoders)
 				throws Exception {		
 		if (utypeDecoders.isEmpty()) {
 			return null;
 		}
 		PropertyError errorComponent = new PropertyError(dmrole, null, 0.68, utypeDecoders, null); 				
-		return errorComponent.getMivotInstance();
+		return errorComponent.getMivotNode();
 	}
 }
\ No newline at end of file
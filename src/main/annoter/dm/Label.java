@@ -4,15 +4,17 @@
 package main.annoter.dm;
 
 
-import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import main.annoter.meta.Glossary;
 import main.annoter.meta.UtypeDecoder;
 import main.annoter.meta.UtypeDecoderBrowser;
 import main.annoter.mivot.FrameHolder;
-import main.annoter.mivot.MivotInstance;
+import main.annoter.mivot.node.CachedNode;
+import main.annoter.mivot.node.MivotNode;
 import tap.metadata.TAPColumn;
 
 /**
@@ -26,6 +28,8 @@ import tap.metadata.TAPColumn;
  * - Preserve the TAP column description (when available) as the `description`
  *   semantic.
  * - Create a mapping attribute that points to the source ADQL column.
+ * - The semantics only depend on the text column: they are built once per
+ *   column and shared by the following labels.
  *
  * Notes:
  * - This class expects a list of pre-decoded {@link UtypeDecoder} objects for
@@ -37,6 +41,10 @@ public class Label extends Property {
 	// MANGO data type identifier
 	public static final String DMTYPE = "mango:Label";
 
+	/** Semantics by text column decoder; dropped with the mapping that owns the decoders */
+	private static final Map<UtypeDecoder, CachedNode> SEMANTICS =
+			Collections.synchronizedMap(new WeakHashMap<UtypeDecoder, CachedNode>());
+
 	/** Browser helper over the provided UtypeDecoder list. */
 	public UtypeDecoderBrowser utypeBrowser;
 	
@@ -44,7 +52,7 @@ public class Label extends Property {
 	public UtypeDecoder textUtypeDecoder = null; 
 	
 	/** Optional error instance placeholder (unused for Label but kept for API parity). */
-	public MivotInstance errorInstance = null;
+	public MivotNode errorInstance = null;
 	
 	/**
 	 * Build a Label property using pre-decoded UType descriptors.
@@ -77,37 +85,12 @@ public class Label extends Property {
 		
 		// Find the decoder that maps the textual label value
 		this.textUtypeDecoder = this.utypeBrowser.getUtypeDecoderByHostAttribute("text");
-		String vocab = null;
-		String label = null;
-		Map<String, String> semantics = new LinkedHashMap<String, String>();
 
 		// Defensive: only proceed when a text decoder was found
 		if (this.textUtypeDecoder != null) {
-			// Look for a vocabulary constant associated to the decoder (CT:vocabulary)
-			vocab = this.textUtypeDecoder.getConstant(Glossary.CTClass.VOCABULARY);
-			if (vocab != null && vocab.length() > 0) {
-				semantics.put("uri", vocab);
-				// If the URI has a fragment (e.g. http://...#Label) use the fragment
-				// as a short human-friendly label.
-				String[] uri = vocab.split("#");
-				if (uri.length == 2 && uri[1].length() > 0) {
-					label = uri[1];
-				}
-			}
-			// Use the TAP column description as the semantic description when present
 			TAPColumn tapColumn = this.textUtypeDecoder.getTapColumn();
-			if (tapColumn != null) {
-				String description = tapColumn.getDescription();
-				if (description != null && description.length() > 0) {
-					semantics.put("description", description);
-				}
-			}
-			// If we derived a short label from the vocabulary, include it
-			if (label != null && label.length() > 0) {
-				semantics.put("label", label);
-			}
-			// Store assembled semantics for the property
-			this.setSemantics(semantics);
+			// Store the semantics of the column for the property
+			this.setSemantics(getSemantics(this.textUtypeDecoder));
 			
 			// Finally, create the attribute that binds the mango:Label.text role to the ADQL column
 			if (tapColumn != null) {
@@ -129,4 +112,43 @@ public class Label extends Property {
 		}
 	}
 
+	/**
+	 * Return the semantics of a text column, built at the first call.
+	 *
+	 * @param textUtypeDecoder decoder of the column carrying the label
+	 * @return the semantics, empty if the column has neither vocabulary nor description
+	 */
+	private static CachedNode getSemantics(UtypeDecoder textUtypeDecoder) {
+		CachedNode semantics = SEMANTICS.get(textUtypeDecoder);
+		if (semantics != null) {
+			return semantics;
+		}
+		String uri = null;
+		String label = null;
+		String description = null;
+		// Look for a vocabulary constant associated to the decoder (CT:vocabulary)
+		String vocab = textUtypeDecoder.getConstant(Glossary.CTClass.VOCABULARY);
+		if (vocab != null && vocab.length() > 0) {
+			uri = vocab;
+			// If the URI has a fragment (e.g. http://...#Label) use the fragment
+			// as a short human-friendly label.
+			String[] fragments = vocab.split("#");
+			if (fragments.length == 2 && fragments[1].length() > 0) {
+				label = fragments[1];
+			}
+		}
+		// Use the TAP column description as the semantic description when present
+		TAPColumn tapColumn = textUtypeDecoder.getTapColumn();
+		if (tapColumn != null) {
+			String columnDescription = tapColumn.getDescription();
+			if (columnDescription != null && columnDescription.length() > 0) {
+				description = columnDescription;
+			}
+		}
+		semantics = Property.buildSemantics(description, uri, label);
+		// Concurrent builds give equal nodes: keep the last one
+		SEMANTICS.put(textUtypeDecoder, semantics);
+		return semantics;
+	}
+
 }
\ No newline at end of file
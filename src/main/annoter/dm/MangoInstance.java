@@ -6,6 +6,7 @@ import java.util.List;
 import main.annoter.meta.Glossary;
 import main.annoter.mivot.MappingError;
 import main.annoter.mivot.MivotInstance;
+import main.annoter.mivot.node.InstanceNode;
 import main.annoter.utils.MivotUtils;
 
 /**
@@ -14,8 +15,8 @@ import main.annoter.utils.MivotUtils;
  *
  * Responsibilities:
  * - Hold a list of mapped {@link Property} instances for a Mango object.
- * - Provide a convenient {@link #xmlString()} serializer that produces the
- *   final MIVOT fragment for the MangoObject (identifier, optional origin,
+ * - Provide a {@link #toNode()} builder that produces the
+ *   final MIVOT node for the MangoObject (identifier, optional origin,
  *   and the propertyDock collection).
  *
  * Notes:
@@ -83,10 +84,11 @@ public class MangoInstance extends MivotInstance{
      * using {@link MivotUtils#getRefOrLiteral(String)} so callers can pass
      * either forms.
      *
-     * @return pretty-serialized XML string representing the MangoObject
-     * @throws MappingError when serializing nested instances fails
+     * @return the node representing the MangoObject
+     * @throws MappingError when building nested instances fails
      */
-    public String xmlString() throws MappingError {
+    @Override
+    public InstanceNode toNode() throws MappingError {
         // Build a fresh MivotInstance to hold the MangoObject content. We do
         // not reuse `this` because MivotInstance may carry transient state and
         // the serialization must be independent of the wrapper object.
@@ -104,15 +106,9 @@ public class MangoInstance extends MivotInstance{
             mangoObject.addReference("mango:MangoObject.queryOrigin", "_origin");
         }
 
-        // Collect property instances: Property extends MivotInstance so we can
-        // safely add them to the collection for serialization.
-        List<MivotInstance> serialized = new ArrayList<>();
-        for (Property prop : properties) {
-            serialized.add(prop);
-        }
-
-        // Add the property collection and serialize the MangoObject to XML
-        mangoObject.addCollection("mango:MangoObject.propertyDock", serialized);
-        return mangoObject.xmlString();
+        // Add the property collection and freeze the MangoObject: Property extends
+        // MivotInstance and addCollection only reads the list, no copy is needed.
+        mangoObject.addCollection("mango:MangoObject.propertyDock", properties);
+        return mangoObject.toNode();
     }
 }
\ No newline at end of file
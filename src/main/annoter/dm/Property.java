@@ -1,6 +1,7 @@
 package main.annoter.dm;
 
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -9,6 +10,10 @@ import main.annoter.meta.UtypeDecoder;
 import main.annoter.mivot.FrameHolder;
 import main.annoter.mivot.MappingError;
 import main.annoter.mivot.MivotInstance;
+import main.annoter.mivot.node.AttributeNode;
+import main.annoter.mivot.node.CachedNode;
+import main.annoter.mivot.node.InstanceNode;
+import main.annoter.mivot.node.MivotNode;
 
 /**
  * Base helper class used for all mapped property builders.
@@ -17,7 +22,9 @@ import main.annoter.mivot.MivotInstance;
  * - Provide convenience constructors that match the reflection-based factory
  *   used by {@link #getInstance(String, List, String, List, List)}.
  * - Expose common semantics wiring used by concrete Property subclasses via
- *   {@link #setSemantics(Map)}.
+ *   {@link #buildSemantics(String, String, String)}: the semantics of a
+ *   property type are built once, kept in a static field and spliced in each
+ *   instance with their serialization.
  *
  * Implementation notes:
  * - The {@code paramTypes} array defines the constructor signature expected
@@ -94,21 +101,65 @@ public class Property extends MivotInstance {
     }
     
     /**
-     * Constructor that also accepts a semantics map which is immediately
-     * applied by {@link #setSemantics(Map)}. This helper avoids repeating
-     * semantics wiring in many subclasses.
+     * Constructor that also splices the semantics built once for the property
+     * type (see {@link #buildSemantics(String, String, String)}).
      *
      * @param dmtype data model type
      * @param dmrole role within the parent instance
      * @param dmid unique id (may be null)
-     * @param semantics map of semantic keys (description, uri, label)
-     * @throws MappingError when MivotInstance creation or semantics wiring fails
+     * @param semantics prebuilt semantics of the property type
+     * @throws MappingError when MivotInstance creation fails
      */
-    public Property(String dmtype, String dmrole, String dmid, Map<String, String> semantics) throws MappingError {
+    public Property(String dmtype, String dmrole, String dmid, CachedNode semantics) throws MappingError {
         super(dmtype, dmrole, dmid);
         this.setSemantics(semantics);
     }
-        
+
+    /**
+     * Build the semantics of a property: a mango:Property.description literal
+     * attribute followed by a mango:VocabularyTerm instance holding the uri and
+     * the label. Each part is omitted when its values are null.
+     *
+     * The returned node is immutable and keeps its serialization: it is meant
+     * to be built once (per property type or per column) and spliced in all
+     * the properties sharing these semantics.
+     *
+     * @param description description of the property (may be null)
+     * @param uri vocabulary URI (may be null)
+     * @param label vocabulary label (may be null)
+     * @return the semantics nodes, empty when all the values are null
+     */
+    public static CachedNode buildSemantics(String description, String uri, String label) {
+        List<MivotNode> nodes = new ArrayList<MivotNode>();
+        if (description != null) {
+            nodes.add(new AttributeNode("ivoa:string", "mango:Property.description", null, description, null));
+        }
+        if (uri != null || label != null) {
+            List<MivotNode> terms = new ArrayList<MivotNode>();
+            if (uri != null) {
+                terms.add(new AttributeNode("ivoa:string", "mango:VocabularyTerm.uri", null, uri, null));
+            }
+            if (label != null) {
+                terms.add(new AttributeNode("ivoa:string", "mango:VocabularyTerm.label", null, label, null));
+            }
+            nodes.add(new InstanceNode("mango:VocabularyTerm", "mango:Property.semantics", null, terms));
+        }
+        return new CachedNode(nodes);
+    }
+
+    /**
+     * Splice prebuilt semantics (see {@link #buildSemantics(String, String, String)})
+     * in this property. Empty semantics are ignored.
+     *
+     * @param semantics prebuilt semantics
+     * @throws MappingError when the semantics are null
+     */
+    public void setSemantics(CachedNode semantics) throws MappingError {
+        if (semantics == null || semantics.isEmpty() == false) {
+            this.addNode(semantics);
+        }
+    }
+
     /**
      * Helper that converts a small semantics map into MIVOT vocabulary instances.
      *
@@ -117,31 +168,14 @@ public class Property extends MivotInstance {
      * - uri: added to a mango:VocabularyTerm.uri attribute on a nested instance
      * - label: added to a mango:VocabularyTerm.label attribute on the same instance
      *
-     * The method is idempotent and safe to call with a null or empty map.
+     * The semantics are built for this call only: properties whose semantics
+     * do not change should build them once with {@link #buildSemantics(String, String, String)}.
      *
      * @param semantics map containing optional description, uri and label entries
-     * @throws MappingError when adding attributes/instances fails
+     * @throws MappingError when adding the semantics fails
      */
     public void setSemantics(Map<String, String> semantics) throws MappingError {
-        if (semantics.containsKey("description")) {
-            // description is encoded as a literal attribute (prefixed with '*')
-            this.addAttribute("ivoa:string", "mango:Property.description", "*" + semantics.get("description"), null);
-        }
-
-        if (semantics.containsKey("uri") || semantics.containsKey("label")) {
-            // Create a nested Mango VocabularyTerm instance to hold uri/label semantics
-            MivotInstance semanticsInstance = new MivotInstance("mango:VocabularyTerm", "mango:Property.semantics", null);
-
-            if (semantics.containsKey("uri")) {
-                semanticsInstance.addAttribute("ivoa:string", "mango:VocabularyTerm.uri", "*" + semantics.get("uri"), null);
-            }
-            if (semantics.containsKey("label")) {
-                semanticsInstance.addAttribute("ivoa:string", "mango:VocabularyTerm.label", "*" + semantics.get("label"), null);
-            }
-
-            this.addInstance(semanticsInstance);
-        }
-    
+        this.setSemantics(buildSemantics(semantics.get("description"), semantics.get("uri"), semantics.get("label")));
     }
 
     /**
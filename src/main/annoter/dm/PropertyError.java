@@ -1,9 +1,13 @@
 package main.annoter.dm;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import main.annoter.meta.UtypeDecoder;
 import main.annoter.mivot.MivotInstance;
+import main.annoter.mivot.node.InstanceNode;
 
 /**
  * Represents error-related properties for a measured property.
@@ -17,6 +21,12 @@ import main.annoter.mivot.MivotInstance;
  * data and external code that may reference the same property name.</p>
  */
 public class PropertyError extends FlatInstance {
+	/**
+	 * Error nodes shared across requests. The key gathers everything the node
+	 * depends on: role, dmid, statistics and the mapped columns with their units.
+	 */
+	private static final Map<List<String>, InstanceNode> SHARED_NODES = new ConcurrentHashMap<List<String>, InstanceNode>();
+
 	/**
 	 * The (historically misspelled) distribution name. Defaults to "Gaussian" when null.
 	 */
@@ -109,4 +119,37 @@ public class PropertyError extends FlatInstance {
 		return this.errorMivotInstance;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Return the immutable node representing the error.
+	 *
+	 * The node only depends on the error description and on the mapped columns,
+	 * so it is built once and then shared by all the annotations using the
+	 * same error.
+	 *
+	 * @return shared node for the error
+	 * @throws Exception propagated from nested MivotInstance builders
+	 */
+	public InstanceNode getMivotNode() throws Exception {
+		List<String> key = new ArrayList<String>();
+		key.add(this.dmrole);
+		key.add(this.dmid);
+		key.add(this.distribtion);
+		key.add(String.valueOf(this.confidenceLevel));
+		for (UtypeDecoder utypeDecoder : this.utypeDecoders) {
+			key.add(utypeDecoder.getInnerClass());
+			key.add(utypeDecoder.getInnerAttribute());
+			key.add(utypeDecoder.getTapColumn().getADQLName());
+			key.add(utypeDecoder.getTapColumn().getUnit());
+		}
+		InstanceNode node = SHARED_NODES.get(key);
+		if (node == null) {
+			node = this.getMivotInstance().toNode();
+			InstanceNode previous = SHARED_NODES.putIfAbsent(key, node);
+			if (previous != null) {
+				node = previous;
+			}
+		}
+		return node;
+	}
+
+}
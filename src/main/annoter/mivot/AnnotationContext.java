@@ -0,0 +1,119 @@
+package main.annoter.mivot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.annoter.meta.UtypeDecoder;
+
+/**
+ * Per-thread set of reusable objects used to assemble annotation blocks.
+ *
+ * Each annotation run used to allocate its own collector, session cache, frame
+ * factory, working lists and output buffers, producing a steady stream of
+ * short-lived garbage on busy servers. A context keeps these objects for the
+ * thread and resets them between runs:
+ * - the {@link MivotAnnotations} collector (and its SessionCache),
+ * - a {@link FrameFactory} bound to that session cache,
+ * - the list receiving the decoders of a template projection,
+ * - the list receiving the frames of a property,
+ * - the buffer the MIVOT block is serialized in.
+ *
+ * Usage: {@link #acquire()}, work, then {@link #release()} in a finally block.
+ * A nested acquisition in the same thread gets a fresh (non-pooled) context,
+ * so that reentrant calls cannot corrupt the running one.
+ * Nothing taken from a context may be kept after its release.
+ */
+public class AnnotationContext {
+	/** Buffers grown beyond this capacity are not kept for the next run */
+	private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+	private static final int INITIAL_CAPACITY = 16 * 1024;
+
+	private static final ThreadLocal<AnnotationContext> CONTEXTS = new ThreadLocal<AnnotationContext>() {
+		@Override
+		protected AnnotationContext initialValue() {
+			return new AnnotationContext();
+		}
+	};
+
+	private final MivotAnnotations collector;
+	private final FrameFactory frameFactory;
+	private final List<UtypeDecoder> projection = new ArrayList<UtypeDecoder>();
+	private final List<FrameHolder> frameHolders = new ArrayList<FrameHolder>();
+	private StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+	private boolean inUse = false;
+
+	private AnnotationContext() {
+		this.collector = new MivotAnnotations();
+		this.frameFactory = FrameFactory.getInstance(this.collector.sessionCache);
+	}
+
+	/**
+	 * Get the context of the current thread, reset and ready to use.
+	 *
+	 * @return the thread context, or a fresh one if the thread context is already in use
+	 */
+	public static AnnotationContext acquire() {
+		AnnotationContext context = CONTEXTS.get();
+		if (context.inUse) {
+			context = new AnnotationContext();
+		}
+		context.inUse = true;
+		context.collector.reset();
+		context.buffer.setLength(0);
+		return context;
+	}
+
+	/**
+	 * Give the context back. Oversized buffers are dropped so that one huge
+	 * annotation does not pin memory for the thread lifetime.
+	 */
+	public void release() {
+		this.collector.reset();
+		this.frameFactory.reset();
+		this.projection.clear();
+		this.frameHolders.clear();
+		if (this.buffer.capacity() > MAX_RETAINED_CAPACITY) {
+			this.buffer = new StringBuilder(INITIAL_CAPACITY);
+		} else {
+			this.buffer.setLength(0);
+		}
+		this.inUse = false;
+	}
+
+	/**
+	 * @return the collector, empty at acquisition time
+	 */
+	public MivotAnnotations getCollector() {
+		return this.collector;
+	}
+
+	/**
+	 * @return a frame factory bound to the collector session cache
+	 */
+	public FrameFactory getFrameFactory() {
+		return this.frameFactory;
+	}
+
+	/**
+	 * @return the projection list, cleared
+	 */
+	public List<UtypeDecoder> getProjection() {
+		this.projection.clear();
+		return this.projection;
+	}
+
+	/**
+	 * @return the frame list, cleared
+	 */
+	public List<FrameHolder> getFrameHolders() {
+		this.frameHolders.clear();
+		return this.frameHolders;
+	}
+
+	/**
+	 * @return the output buffer, empty at acquisition time
+	 */
+	public StringBuilder getBuffer() {
+		return this.buffer;
+	}
+}
@@ -1,12 +1,16 @@
 package main.annoter.mivot;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import main.annoter.cache.Cache;
 import main.annoter.cache.SessionCache;
+import main.annoter.cache.SnippetIndex;
 import main.annoter.meta.Glossary;
 
 /**
@@ -23,14 +27,37 @@ import main.annoter.meta.Glossary;
  *   to propagate session-scoped model references.
  *
  * Important behavior:
- * - Files for local frames are read from the classpath under
- *   "snippets/mango.frame.<type>.xml".
+ * - Local frames are the classpath files "snippets/mango.frame.<type>.xml",
+ *   preloaded once by the {@link SnippetIndex}.
+ * - Photometric calibrations are taken from the frames baked at build time
+ *   ("snippets/mango.baked.<filter>.xml") when there is one: the FPS is then
+ *   not called and the frame is not considered as remote.
  * - Generated frames are stored in a shared Cache if their XML is non-null.
+ * - A frame is built once even when several requests ask for it at the same
+ *   time: the other requests wait for that build.
+ * - With a deadline (see {@link #setDeadline(long)}), the frames fetched from
+ *   remote services (photometric calibrations) are built in background and
+ *   waited for until the deadline only. Past it, the local snippet is used for
+ *   the request ("degraded" frame, not cached) while the remote build goes on
+ *   and warms the cache. Without local snippet, no frame is returned
+ *   ("missing" frame): the properties referring to it are to be left out.
  */
 public class FrameFactory {
-	
+	/**
+	 * Version of the content of the built frames, to be increased when it
+	 * changes (e.g. PhotCal transformation): shared frames of another version
+	 * are built again
+	 */
+	public static final int FRAME_VERSION = 2;
+
 	private PhotCalFactory photCalFactory = new PhotCalFactory();
 	private SessionCache sessionCache;
+	// System.nanoTime() after which remote frames are no longer waited for, 0 for no deadline
+	private long deadline = 0;
+	// Ids of the frames replaced by local snippets since the last reset
+	private List<String> degradedFrames = new ArrayList<String>();
+	// Ids of the frames neither built before the deadline nor available locally since the last reset
+	private List<String> missingFrames = new ArrayList<String>();
 	/**
 	 * Return an instance of the factory bound to a SessionCache.
 	 *
@@ -54,6 +81,39 @@ public class FrameFactory {
 		this.sessionCache = sessionCache;
 	}
 	
+	/**
+	 * Set the time after which the frames built remotely are replaced with
+	 * local snippets.
+	 *
+	 * @param deadline System.nanoTime() value, 0 for no deadline
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @return the ids of the frames replaced by local snippets since the last reset
+	 */
+	public List<String> getDegradedFrames() {
+		return this.degradedFrames;
+	}
+
+	/**
+	 * @return the ids of the frames missed by the deadline without local snippet since the last reset
+	 */
+	public List<String> getMissingFrames() {
+		return this.missingFrames;
+	}
+
+	/**
+	 * Drop the deadline and the lists of degraded and missing frames.
+	 */
+	public void reset() {
+		this.deadline = 0;
+		this.degradedFrames.clear();
+		this.missingFrames.clear();
+	}
+
 	/**
 	 * Create a FrameHolder from a combined system=frameType string.
 	 *
@@ -67,21 +127,24 @@ public class FrameFactory {
 	 * - If the frame is present in the shared Cache, the cached FrameHolder is
 	 *   returned and its model references are registered in the session cache.
 	 * - Otherwise the appropriate builder is invoked depending on the system
-	 *   class.
+	 *   class. Concurrent requests asking for the same frame share one build
+	 *   (see {@link Cache#buildFrameHolder}).
 	 *
 	 * @param utdCS string in the form "system=frameType" (for example
 	 *              "space=ICRS(2000)")
 	 * @return a FrameHolder containing the constructed frame; frameXml may be
-	 *         null to signal the frame was already recorded
+	 *         null to signal the frame was already recorded. Null when the
+	 *         deadline is passed and there is no local frame to use instead
+	 *         (see {@link #getMissingFrames()})
 	 * @throws Exception on parsing or mapping errors (MappingError for unknown system)
 	 */
 	public FrameHolder createFrame(String utdCS) throws Exception {
 		
 		String[] parts = utdCS.split("=");
-		String systemClass = parts[0];
-		String frameType = parts[1];
+		final String systemClass = parts[0];
+		final String frameType = parts[1];
 
-		String frameId = this.buildID("_".concat(systemClass), frameType);
+		final String frameId = this.buildID("_".concat(systemClass), frameType);
 		FrameHolder frameHolder = new FrameHolder(systemClass, frameId, null, null);
 				
 		// If the session already recorded the id as global, we don't need to
@@ -102,90 +165,153 @@ public class FrameFactory {
 			}
 			return frameHolder;
 		}
-				
+
+		// Build the frame, or wait for the build run by a concurrent request
+		Callable<FrameHolder> builder = new Callable<FrameHolder>() {
+			public FrameHolder call() throws Exception {
+				return buildFrame(systemClass, frameType, frameId, false);
+			}
+		};
+		if( this.deadline != 0 && isRemote(systemClass, frameType) ) {
+			frameHolder = this.buildFrameBefore(systemClass, frameType, frameId, builder);
+			if( frameHolder == null ) {
+				// Not recorded in the session: the next request of the frame tries again
+				return null;
+			}
+		} else {
+			frameHolder = Cache.buildFrameHolder(frameId, builder);
+		}
+
+		// Session bookkeeping, whoever built the frame: mark the ids as global
+		// and reference the model so buildMivotBlock emits its MODEL declaration.
+		this.sessionCache.storeGlobalsId(frameId);
+		if( systemClass.equals(Glossary.CSClass.PHOTCAL)
+				|| systemClass.equals(Glossary.CSClass.FILTER_HIGH)
+				|| systemClass.equals(Glossary.CSClass.FILTER_LOW) ) {
+			this.sessionCache.storeGlobalsId(frameId.replace("photCal", "photFilter"));
+		}
+		if( frameHolder.modelPrefix != null ) {
+			this.sessionCache.storeReferencedModel(frameHolder.modelPrefix, frameHolder.modelUrl);
+		}
+		return frameHolder;
+	}
+
+	/**
+	 * @return true for the frames fetched from a remote service (photometric
+	 *         calibrations of filters having an SVO identifier and that are
+	 *         not baked)
+	 * @throws MappingError if the snippets cannot be loaded
+	 */
+	private static boolean isRemote(String systemClass, String frameType) throws MappingError {
+		return (systemClass.equals(Glossary.CSClass.PHOTCAL)
+				|| systemClass.equals(Glossary.CSClass.FILTER_HIGH)
+				|| systemClass.equals(Glossary.CSClass.FILTER_LOW))
+				&& PhotCalFactory.hasSVOId(frameType)
+				&& SnippetIndex.getIndex().isBaked(frameType) == false;
+	}
+
+	/**
+	 * Wait for a frame built in background until the deadline, then fall back
+	 * on the local snippet. The background build is not cancelled.
+	 *
+	 * @return the built frame, a degraded frame that is not cached, or null
+	 *         if there is no local snippet for the frame
+	 * @throws Exception the build exception, a MappingError when the local frame cannot be built,
+	 *         or an InterruptedException when the calling thread is interrupted
+	 */
+	private FrameHolder buildFrameBefore(String systemClass, String frameType, String frameId,
+			Callable<FrameHolder> builder) throws Exception {
+		Future<FrameHolder> build = Cache.startFrameBuild(frameId, builder);
+		try {
+			return build.get(Math.max(0, this.deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			if( SnippetIndex.getIndex().getFragment(frameType) == null ) {
+				Cache.logWarning("Annotation time budget exceeded: no local frame for", frameId,
+						"while its remote build goes on, the properties using it are left out");
+				if( this.missingFrames.contains(frameId) == false ) {
+					this.missingFrames.add(frameId);
+				}
+				return null;
+			}
+			Cache.logWarning("Annotation time budget exceeded: local frame used for", frameId,
+					"while its remote build goes on");
+			if( this.degradedFrames.contains(frameId) == false ) {
+				this.degradedFrames.add(frameId);
+			}
+			return this.buildFrame(systemClass, frameType, frameId, true);
+		} catch (InterruptedException e) {
+			// Aborted job: the background build goes on for the other requests
+			Thread.currentThread().interrupt();
+			throw e;
+		} catch (ExecutionException e) {
+			if( e.getCause() instanceof Exception ) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Build a frame according to its system class.
+	 * This is the part of {@link #createFrame(String)} that is run once for
+	 * all the concurrent requests asking for the same frame.
+	 *
+	 * @param systemClass system class (e.g. "spaceSys", "photCal", "local")
+	 * @param frameType frame descriptor
+	 * @param frameId id of the frame
+	 * @param localOnly true to build the photometric frames from the local snippets without calling the FPS
+	 * @return the built FrameHolder
+	 * @throws Exception on mapping errors (MappingError for unknown system)
+	 */
+	private FrameHolder buildFrame(String systemClass, String frameType, String frameId, boolean localOnly) throws Exception {
+		FrameHolder frameHolder;
+		String filterId;
 		switch(systemClass) {
 		case "space":
 		case Glossary.CSClass.SPACE:
-			// Mark the ID as global in the session and build the space frame
-			this.sessionCache.storeGlobalsId(frameId);
-			frameHolder = this.buildSpaceFrame(systemClass, frameType, frameId);
-			this.storeInCache(frameHolder);
-			return frameHolder;
+			return this.buildSpaceFrame(systemClass, frameType, frameId);
 		case Glossary.CSClass.PHOTCAL:
 			// Photometric calibration frames come with an associated filter
-			this.sessionCache.storeGlobalsId(frameId);
-			String filterId = frameId.replace("photCal", "photFilter");
-			this.sessionCache.storeGlobalsId(filterId);
-			frameHolder = this.buildPhotCal(frameType, frameId, filterId);
-			this.storeInCache(frameHolder);
-			return frameHolder;
+			filterId = frameId.replace("photCal", "photFilter");
+			return this.buildPhotCal(frameType, frameId, filterId, localOnly);
 		case Glossary.CSClass.FILTER_HIGH:
 		case Glossary.CSClass.FILTER_LOW:
 			// These are filter-only descriptors; build the photcal and adjust ids
-			this.sessionCache.storeGlobalsId(frameId);
 			filterId = frameId.replace("photCal", "photFilter");
-			this.sessionCache.storeGlobalsId(filterId);
-			frameHolder = this.buildPhotCal(frameType, frameId, filterId);
+			frameHolder = this.buildPhotCal(frameType, frameId, filterId, localOnly);
 			// The produced holder corresponds to the filter id rather than the
 			// photcal id (buildPhotCal uses photcalId internally).
 			frameHolder.frameId = filterId;
 			// restore the correct system class (squashed by buildPhotCal)
  			frameHolder.systemClass = systemClass;
-			this.storeInCache(frameHolder);
 			return frameHolder;
 		case Glossary.CSClass.LOCAL:
 			// Local frames are loaded from classpath snippets
-			this.sessionCache.storeGlobalsId(frameId);
-			frameHolder = this.buildLocalFrame(systemClass, frameType, frameId);
-			this.storeInCache(frameHolder);
-			return frameHolder;
+			return this.buildLocalFrame(systemClass, frameType, frameId);
 		default:
 			throw new MappingError("reading CS: Unknown frame type: " + systemClass);
 		}
 	}
 	
-	/**
-	 * Store the given FrameHolder in the shared Cache if it contains XML.
-	 *
-	 * The Cache is used to avoid reconstructing identical frames across
-	 * different requests.
-	 */
-	private void storeInCache(FrameHolder frameHolder) {
-		if(frameHolder.frameXml != null) {
-			Cache.storeFrameHolder(frameHolder);
-		}
-	}
-	
 	/**
 	 * Build a FrameHolder from a local snippet file located in the classpath.
 	 *
 	 * The file name convention is: snippets/mango.frame.<frameType>.xml
+	 * Snippets are read from the in-memory {@link SnippetIndex}, no I/O is done here.
 	 *
 	 * @param systemClass typically Glossary.CSClass.LOCAL
 	 * @param frameType name of the snippet file without extension
 	 * @param frameId id to assign to the resulting FrameHolder
 	 * @return FrameHolder with its frameXml filled from the snippet
-	 * @throws IOException when reading the resource fails
 	 * @throws MappingError when the snippet is missing
 	 */
-	private FrameHolder buildLocalFrame(String systemClass, String frameType, String frameId) throws IOException, MappingError {
-		
-		InputStream is = getClass().getClassLoader()
-		        .getResourceAsStream("snippets/mango.frame." + frameType + ".xml");
-		if( is == null) {
+	private FrameHolder buildLocalFrame(String systemClass, String frameType, String frameId) throws MappingError {
+		String fragment = SnippetIndex.getIndex().getFragment(frameType);
+		if( fragment == null) {
 			throw new MappingError("cannot find local MIVOT snippet: snippets/mango.frame." + frameType + ".xml");
 		}
-		byte[] bytes;
-		try (ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
-		    int n;
-		    byte[] data = new byte[4096];
-		    while ((n = is.read(data)) != -1) {
-		        buffer.write(data, 0, n);
-		    }
-		    bytes = buffer.toByteArray();
-		}       
 		FrameHolder frameHolder = new FrameHolder(Glossary.CSClass.LOCAL, frameId, null, null);
-		frameHolder.setFrame(new String(bytes, StandardCharsets.UTF_8));
+		frameHolder.setFrame(fragment);
 		return frameHolder;
 
 	}
@@ -196,7 +322,7 @@ public class FrameFactory {
 	 * The frameType is expected to contain the space reference frame and an
 	 * optional equinox in parentheses, e.g. "ICRS(2000, BARYCENTER)" or
 	 * "GALACTIC". The method parses these tokens, constructs the appropriate
-	 * MivotInstance objects and registers the COORDS model if not already present.
+	 * MivotInstance objects. The COORDS model is referenced by the caller.
 	 *
 	 * @param frameType descriptor of the space frame
 	 * @param frameId identifier to assign to the constructed frame
@@ -239,12 +365,9 @@ public class FrameFactory {
    
         spaceFrame.addInstance(refLoc);
         spaceSys.addInstance(spaceFrame);
+		// The COORDS model is referenced in the session by createFrame
 		FrameHolder frameHolder = new FrameHolder(Glossary.CSClass.SPACE, frameId, Glossary.ModelPrefix.COORDS, Glossary.VodmlUrl.COORDS);
 		frameHolder.setFrame(spaceSys);
-		
-		// Register the COORDS model as referenced for the current session so
-		// buildMivotBlock will include a MODEL declaration.
-		this.sessionCache.storeReferencedModel(Glossary.ModelPrefix.COORDS, Glossary.VodmlUrl.COORDS);
 		return frameHolder;
 	}
 	
@@ -253,26 +376,38 @@ public class FrameFactory {
 	 *
 	 * The frameType is expected to contain the photometric calibration type,
 	 * e.g. "ABMAG" or "VEGAMAG". The method constructs the appropriate
-	 * MivotInstance object and registers the PHOT model if not already present.
+	 * MivotInstance object. The PHOT model is referenced by the caller.
+	 * The frame is taken from the baked frames first, then from the FPS,
+	 * then from the local snippets.
 	 *
 	 * @param frameType descriptor of the photometric calibration
 	 * @param photcalId identifier to assign to the constructed frame
 	 * @param filterId identifier to assign to the associated filter
+	 * @param localOnly true to use the local snippet without calling the FPS
 	 * @return populated FrameHolder for the photometric calibration
 	 * @throws Exception on mapping problems
 	 */
-	private FrameHolder buildPhotCal(String frameType, String photcalId, String filterId) throws Exception {
+	private FrameHolder buildPhotCal(String frameType, String photcalId, String filterId, boolean localOnly) throws Exception {
 		FrameHolder frameHolder = new FrameHolder(Glossary.CSClass.PHOTCAL, photcalId, Glossary.ModelPrefix.PHOT, Glossary.VodmlUrl.PHOT);
-		String photCalString = null;
-		try {
-			photCalString = this.photCalFactory.getMivotPhotCal(frameType, photcalId, filterId);
-		} catch( MappingError me) {
-			// If remote FPS mapping fails, fall back to a local snippet
-			photCalString =  buildLocalFrame(Glossary.CSClass.PHOTCAL, frameType, photcalId).frameXml;
+		// Baked at build time from the FPS response: no remote call
+		String photCalString = SnippetIndex.getIndex().getBakedFrame(frameType, photcalId, filterId);
+		if( photCalString == null && localOnly == false ) {
+			try {
+				// Already simplified by the streaming transformation
+				photCalString = this.photCalFactory.getMivotPhotCal(frameType, photcalId, filterId);
+			} catch( MappingError me) {
+				photCalString = null;
+			}
+		}
+		if( photCalString == null ) {
+			// If remote FPS mapping fails, fall back to a local snippet: it is
+			// already split, the verbose elements only have to be removed
+			photCalString = PhotCalTransformer.simplify(
+					buildLocalFrame(Glossary.CSClass.PHOTCAL, frameType, photcalId).frameXml);
+			// A stand-in for the FPS frame: not to be shared by the other nodes
+			frameHolder.fallback = PhotCalFactory.hasSVOId(frameType);
 		}
-		// Simplify the PhotCal XML to remove verbose elements before storing
-		frameHolder.setFrame(PhotCalFactory.getSimplifiedPhotCal(photCalString));
-		this.sessionCache.storeReferencedModel(Glossary.ModelPrefix.PHOT, Glossary.VodmlUrl.PHOT);
+		frameHolder.setFrame(photCalString);
 		
 		return frameHolder;
 	}
@@ -1,5 +1,8 @@
 package main.annoter.mivot;
 
+import main.annoter.mivot.node.XmlFragmentNode;
+import main.annoter.utils.XmlUtils;
+
 /**
  * Simple holder object used during mapping to represent a FRAME and its
  * associated metadata.
@@ -27,6 +30,12 @@ public class FrameHolder {
 	/** URL to the model VODML document (may be null). */
 	public String modelUrl;
 
+	/** True when built from a local snippet because its remote source failed: kept off the shared stores. */
+	public boolean fallback = false;
+
+	/** Indented node of frameXml, built on demand and shared by the requests using the holder. */
+	private volatile XmlFragmentNode frameNode;
+
 	/**
 	 * Construct a new FrameHolder.
 	 *
@@ -70,4 +79,25 @@ public class FrameHolder {
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Return the frame XML as a node ready to be spliced in GLOBALS.
+	 *
+	 * The XML is re-indented once (frames coming from the FPS or from DOM
+	 * serializations do not follow the block indentation) and the node is kept:
+	 * frameXml must not be changed once the holder is shared.
+	 *
+	 * @return the frame node, or null when frameXml is null
+	 */
+	public XmlFragmentNode getFrameNode() {
+		String xml = this.frameXml;
+		if (xml == null) {
+			return null;
+		}
+		XmlFragmentNode node = this.frameNode;
+		if (node == null) {
+			node = new XmlFragmentNode(XmlUtils.prettyString(xml));
+			this.frameNode = node;
+		}
+		return node;
+	}
+}
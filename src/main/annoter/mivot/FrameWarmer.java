@@ -0,0 +1,170 @@
+package main.annoter.mivot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.annoter.cache.Cache;
+import main.annoter.cache.MappingCache;
+import main.annoter.cache.SessionCache;
+
+/**
+ * Build in background, at startup, all the frames the mapped columns refer to
+ * (see {@link MappingCache#getFrames()}), so that no query pays for building a
+ * frame, FPS calls included.
+ *
+ * The frames are built in parallel by the {@link FrameFactory}, without
+ * deadline: they land in the frame store exactly as if a query had asked for
+ * them. A frame that cannot be built is logged and skipped; the query
+ * needing it will try again.
+ *
+ * The warm is reported as ready (see {@link #isReady()}) once all the frames
+ * are built, or once its timeout is passed: the builds still running then go
+ * on in background. Readiness probes use {@link #getCurrent()}; no warm
+ * started means ready.
+ */
+public class FrameWarmer {
+	/** Number of frames built at the same time */
+	public static final int THREADS = 8;
+
+	private static volatile FrameWarmer current = null;
+
+	private final List<String> frames;
+	private final long deadline;
+	private final long start = System.nanoTime();
+	private final CountDownLatch pending;
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private FrameWarmer(Collection<String> frames, long timeout) {
+		this.frames = Collections.unmodifiableList(new ArrayList<String>(frames));
+		this.deadline = this.start + timeout * 1000000L;
+		this.pending = new CountDownLatch(this.frames.size());
+	}
+
+	/**
+	 * Start building the frames referenced by the mapping cache.
+	 * The warm becomes the current one.
+	 *
+	 * @param timeout time in ms after which the warm is reported as ready anyway
+	 * @return the started warm
+	 */
+	public static FrameWarmer start(long timeout) {
+		return start(MappingCache.getCache().getFrames(), timeout);
+	}
+
+	/**
+	 * Start building the given frames. The warm becomes the current one.
+	 *
+	 * @param frames frame specs (e.g. "photCal=K")
+	 * @param timeout time in ms after which the warm is reported as ready anyway
+	 * @return the started warm
+	 */
+	public static FrameWarmer start(Collection<String> frames, long timeout) {
+		FrameWarmer frameWarmer = new FrameWarmer(frames, timeout);
+		current = frameWarmer;
+		frameWarmer.run();
+		return frameWarmer;
+	}
+
+	/**
+	 * @return the last started warm, null if none
+	 */
+	public static FrameWarmer getCurrent() {
+		return current;
+	}
+
+	private void run() {
+		Cache.logInfo("Warming", Integer.toString(this.frames.size()), "frames:", this.frames.toString());
+		if (this.frames.isEmpty()) {
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREADS, this.frames.size()),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "mivot-warm-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		for (final String frame : this.frames) {
+			executor.execute(new Runnable() {
+				public void run() {
+					build(frame);
+				}
+			});
+		}
+		// The threads end once the queued builds are done
+		executor.shutdown();
+	}
+
+	private void build(String frame) {
+		try {
+			// A session of its own: each frame is built as for a first query
+			FrameFactory.getInstance(new SessionCache()).createFrame(frame);
+		} catch (Exception e) {
+			this.failed.incrementAndGet();
+			Cache.logWarning("Frame", frame, "not warmed:", e.toString());
+		} finally {
+			this.pending.countDown();
+			if (this.pending.getCount() == 0) {
+				Cache.logInfo(Integer.toString(this.frames.size() - this.failed.get()), "frames warmed in",
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.start) + " ms,",
+						Integer.toString(this.failed.get()), "failed");
+			}
+		}
+	}
+
+	/**
+	 * @return true when all the frames have been built (or failed) or when the timeout is passed
+	 */
+	public boolean isReady() {
+		return this.isComplete() || System.nanoTime() - this.deadline >= 0;
+	}
+
+	/**
+	 * @return true when all the frames have been built (or failed)
+	 */
+	public boolean isComplete() {
+		return this.pending.getCount() == 0;
+	}
+
+	/**
+	 * Wait for the warm to complete.
+	 *
+	 * @param millis maximum wait in ms
+	 * @return true if the warm is complete
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public boolean await(long millis) throws InterruptedException {
+		return this.pending.await(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the frame specs to build
+	 */
+	public List<String> getFrames() {
+		return this.frames;
+	}
+
+	/**
+	 * @return the number of frames whose build is over (built or failed)
+	 */
+	public int getDone() {
+		return this.frames.size() - (int) this.pending.getCount();
+	}
+
+	/**
+	 * @return the number of frames that could not be built
+	 */
+	public int getFailed() {
+		return this.failed.get();
+	}
+}
@@ -1,14 +1,18 @@
 package main.annoter.mivot;
 
+import java.io.InterruptedIOException;
 import java.util.*;
 
+import main.annoter.cache.AnnotationPlan;
 import main.annoter.cache.Cache;
 import main.annoter.cache.MappingCache;
+import main.annoter.cache.PropertyTemplate;
 import main.annoter.cache.SessionCache;
 import main.annoter.dm.MangoInstance;
 import main.annoter.dm.Property;
 import main.annoter.meta.UtypeDecoder;
-import main.annoter.utils.XmlUtils;
+import main.annoter.mivot.node.MivotNode;
+import main.annoter.mivot.node.XmlFragmentNode;
 import main.annoter.meta.Glossary;
 
 /**
@@ -17,7 +21,12 @@ import main.annoter.meta.Glossary;
  * Responsibilities:
  * - Collect MODEL, GLOBALS and TEMPLATES fragments produced during mapping.
  * - Track generated DMIDs to avoid duplicates when assembling fragments.
- * - Build a final pretty-printed <VODML> MIVOT block via {@link #buildMivotBlock(String)}.
+ * - Build the final indented <VODML> MIVOT block via {@link #buildMivotBlock(String)}
+ *   or write it straight into a buffer with {@link #appendMivotBlock(StringBuilder)}.
+ *
+ * GLOBALS and TEMPLATES are kept as immutable {@link MivotNode}s (raw XML
+ * strings are wrapped in {@link XmlFragmentNode}s); they are serialized only
+ * once, when the block is built.
  *
  * Notes:
  * - This class is a simple in-memory assembler; it does not persist state.
@@ -25,6 +34,11 @@ import main.annoter.meta.Glossary;
  *   or cleared when a mapping failure is detected.
  */
 public class MivotAnnotations {
+	/** Start of the report message of the blocks built with local frames after the deadline */
+	public static final String PARTIAL_MESSAGE = "Partial annotation";
+	/** REPORT message of the annotations stopped by the interruption of the thread */
+	public static final String INTERRUPTED_MESSAGE = "Annotation interrupted";
+
 	/** Map of model prefix -> model VODML URL (used to build <MODEL> entries). */
 	private Map<String, String> models;
 
@@ -35,33 +49,39 @@ public class MivotAnnotations {
 	private String reportMessage;
 
 	/**
-	 * Collected GLOBALS XML fragments (each entry is a fragment to include inside
+	 * Collected GLOBALS nodes (each entry is a node to include inside
 	 * <GLOBALS>).
 	 */
-	private List<String> globals;
+	private List<MivotNode> globals;
 
 	/**
-	 * Collected TEMPLATES XML fragments (each entry is a fragment to include inside
+	 * Collected TEMPLATES nodes (each entry is a node to include inside
 	 * <TEMPLATES>).
 	 */
-	private List<String> templates;
+	private List<MivotNode> templates;
 
 	/** Optional table id referenced by <TEMPLATES tableref="...">. */
 	private String templatesId;
 
 	/**
 	 * Collected DMIDs used by added instances (keeps track of IDs to avoid
-	 * duplicates).
+	 * duplicates). Insertion ordered for readable dumps.
 	 */
-	private List<String> dmids;
+	private Set<String> dmids;
 
 	/**
-	 * Final assembled MIVOT block as a pretty-printed XML string (built by
+	 * Final assembled MIVOT block as an indented XML string (built by
 	 * {@link #buildMivotBlock(String)}).
 	 */
 	public String mivotBlock;
 
 	public SessionCache sessionCache;
+
+	/** System.nanoTime() after which {@link #mapMango(Map)} stops waiting for remote frames, 0 for none. */
+	private long deadline = 0;
+
+	/** True when the last {@link #mapMango(Map)} replaced remote frames with local ones. */
+	private boolean partial = false;
 	
 	/**
 	 * Create a new, empty MivotAnnotations collector.
@@ -76,7 +96,7 @@ public class MivotAnnotations {
 		this.globals = new ArrayList<>();
 		this.templates = new ArrayList<>();
 		this.templatesId = "";
-		this.dmids = new ArrayList<>();
+		this.dmids = new LinkedHashSet<>();
 		this.mivotBlock = "";
 		this.sessionCache = new SessionCache();
 	}
@@ -91,6 +111,26 @@ public class MivotAnnotations {
 		return this.mivotBlock;
 	}
 
+	/**
+	 * Set the deadline of the next {@link #mapMango(Map)} runs. Past it, the
+	 * remote frames not yet cached are replaced with their local snippets, or
+	 * the properties using them are left out when there is no local snippet,
+	 * and the block is reported as partial (see {@link #PARTIAL_MESSAGE}).
+	 *
+	 * @param deadline System.nanoTime() value, 0 for no deadline
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @return true if the last block built by {@link #mapMango(Map)} uses local
+	 *         frames in place of remote ones
+	 */
+	public boolean isPartial() {
+		return this.partial;
+	}
+
 	/**
 	 * Check whether a DMID has already been recorded in this collector.
 	 *
@@ -104,12 +144,12 @@ public class MivotAnnotations {
 	/**
 	 * Return the collected DMIDs.
 	 *
-	 * Note: this returns the internal list reference. Callers that need to
-	 * mutate the returned list should create a defensive copy.
+	 * Note: this returns the internal set reference. Callers that need to
+	 * mutate the returned set should create a defensive copy.
 	 *
-	 * @return a List of DMIDs
+	 * @return the Set of DMIDs
 	 */
-	public List<String> getDmids() {
+	public Set<String> getDmids() {
 		return this.dmids;
 	}
 
@@ -119,9 +159,7 @@ public class MivotAnnotations {
 	 * @param dmid the DMID to add
 	 */
 	public void addDmid(String dmid) {
-		if (!this.dmids.contains(dmid)) {
-			this.dmids.add(dmid);
-		}
+		this.dmids.add(dmid);
 	}
 
 	/**
@@ -135,67 +173,64 @@ public class MivotAnnotations {
 	}
 
 	/**
-	 * Build the concatenated <MODEL/> entries from the models map.
+	 * Write the <MODEL/> entries of the models map.
 	 *
-	 * @return XML fragments for each model entry (may be empty if no models)
+	 * @param sb buffer receiving one indented line per model (nothing if no models)
 	 */
-	private String getModels() {
-		StringBuilder sb = new StringBuilder();
+	private void appendModels(StringBuilder sb) {
 		for (Map.Entry<String, String> entry : models.entrySet()) {
 			if (entry.getValue() != null && !entry.getValue().isEmpty()) {
-				sb.append("<MODEL name=\"").append(entry.getKey()).append("\" url=\"").append(entry.getValue())
+				sb.append("  <MODEL name=\"").append(entry.getKey()).append("\" url=\"").append(entry.getValue())
 					.append("\" />\n");
 			} else {
-				sb.append("<MODEL name=\"").append(entry.getKey()).append("\" />\n");
+				sb.append("  <MODEL name=\"").append(entry.getKey()).append("\" />\n");
 			}
 		}
-		return sb.toString();
 	}
 
 	/**
-	 * Wrap the collected globals fragments in a <GLOBALS> container.
+	 * Write the collected globals nodes in a <GLOBALS> container.
 	 *
-	 * @return the full <GLOBALS> XML block (may contain only the open/close tags if
-	 *         none)
+	 * @param sb buffer receiving the <GLOBALS> XML block (may contain only the
+	 *        open/close tags if none)
 	 */
-	private String getGlobals() {
-		StringBuilder sb = new StringBuilder("<GLOBALS>\n");
-		for (String g : globals) {
-			sb.append(g).append("\n");
+	private void appendGlobals(StringBuilder sb) {
+		sb.append("  <GLOBALS>\n");
+		for (MivotNode g : globals) {
+			g.appendXml(sb, 2);
 		}
-		sb.append("</GLOBALS>\n");
-		return sb.toString();
+		sb.append("  </GLOBALS>\n");
 	}
 
 	/**
-	 * Wrap the collected templates fragments in a <TEMPLATES> container and add a
+	 * Write the collected templates nodes in a <TEMPLATES> container and add a
 	 * tableref attribute when templatesId is set.
 	 *
-	 * @return the full <TEMPLATES> XML block, or an empty string when no templates
+	 * @param sb buffer receiving the <TEMPLATES> XML block, nothing is written
+	 *        when there are no templates
 	 */
-	private String getTemplates() {
+	private void appendTemplates(StringBuilder sb) {
 		if (templates.isEmpty())
-			return "";
+			return;
 
-		StringBuilder sb = new StringBuilder();
 		if (templatesId != null && !templatesId.isEmpty()) {
-			sb.append("<TEMPLATES tableref=\"").append(templatesId).append("\">\n");
+			sb.append("  <TEMPLATES tableref=\"").append(templatesId).append("\">\n");
 		} else {
-			sb.append("<TEMPLATES>\n");
+			sb.append("  <TEMPLATES>\n");
 		}
 
-		for (String t : templates) {
-			sb.append(t).append("\n");
+		for (MivotNode t : templates) {
+			t.appendXml(sb, 2);
 		}
-		sb.append("</TEMPLATES>\n");
-		return sb.toString();
+		sb.append("  </TEMPLATES>\n");
 	}
 
 	/**
 	 * Build a complete MIVOT block from all elements stored in the current instance.
 	 *
-	 * This method assembles REPORT, MODEL, GLOBALS and TEMPLATES sections and
-	 * pretty-prints the resulting XML. If templatesId is provided it will be used
+	 * This method assembles REPORT, MODEL, GLOBALS and TEMPLATES sections (see
+	 * {@link #appendMivotBlock(StringBuilder)}) and stores the result in
+	 * {@link #mivotBlock}. If templatesId is provided it will be used
 	 * as the tableref attribute for the TEMPLATES block; otherwise any previously
 	 * set templatesId is used.
 	 *
@@ -207,36 +242,64 @@ public class MivotAnnotations {
 		if (templatesId != null) {
 			this.templatesId = templatesId;
 		}
-
 		StringBuilder sb = new StringBuilder();
+		appendMivotBlock(sb);
+		this.mivotBlock = sb.toString();
+	}
+
+	/**
+	 * Serialize the MIVOT block in the given buffer.
+	 *
+	 * The node trees are written already indented (two spaces per level), so the
+	 * block needs no further pretty-printing pass.
+	 *
+	 * @param sb buffer receiving the <VODML> element, terminated by a new line
+	 */
+	public void appendMivotBlock(StringBuilder sb) {
 		sb.append("<VODML xmlns=\"http://www.ivoa.net/xml/mivot\">\n");
-		sb.append(getReport()).append("\n");
-		sb.append(getModels()).append("\n");
-		sb.append(getGlobals()).append("\n");
-		sb.append(getTemplates()).append("\n");
-		sb.append("</VODML>");
+		sb.append("  ").append(getReport()).append("\n");
+		appendModels(sb);
+		appendGlobals(sb);
+		appendTemplates(sb);
+		sb.append("</VODML>\n");
+	}
 
-		this.mivotBlock = XmlUtils.prettyString(sb.toString()).replaceAll("\n\\s*\n", "\n");
+	/**
+	 * Empty the collector so that it can be used for another annotation: status,
+	 * collected fragments, DMIDs and session cache are all reset.
+	 */
+	public void reset() {
+		this.models.clear();
+		this.reportStatus = true;
+		this.reportMessage = "Generated by the VOLLT Mivot extension";
+		this.globals.clear();
+		this.templates.clear();
+		this.templatesId = "";
+		this.dmids.clear();
+		this.mivotBlock = "";
+		this.sessionCache.clear();
 	}
 
 	/**
 	 * Add a MIVOT element into the TEMPLATES collection.
 	 *
-	 * Accepts either a {@link MivotInstance} (preferred) or a raw XML String.
-	 * When a MivotInstance is provided its dmid (if present) is recorded to
-	 * prevent duplicate IDs.
+	 * Accepts a {@link MivotInstance} (preferred), a {@link MivotNode} or a raw
+	 * XML String. When a MivotInstance is provided its dmid (if present) is
+	 * recorded to prevent duplicate IDs.
 	 *
-	 * @param instance MivotInstance or string serialization of an instance
+	 * @param instance MivotInstance, node or string serialization of an instance
 	 * @throws Exception when the provided object is of an unsupported type
 	 */
 	public void addTemplates(Object instance) throws Exception {
 		if (instance instanceof MivotInstance) {
 			MivotInstance mi = (MivotInstance) instance;
-			templates.add(mi.xmlString());
+			templates.add(mi.toNode());
 			if (mi.getDmid() != null)
 				dmids.add(mi.getDmid());
+		} else if (instance instanceof MivotNode) {
+			templates.add((MivotNode) instance);
 		} else if (instance instanceof String) {
-			templates.add((String) instance);
+			templates.add(new XmlFragmentNode((String) instance));
 		} else {
 			throw new Exception("Invalid type for templates instance: " + instance.getClass());
 		}
@@ -245,21 +308,29 @@ public class MivotAnnotations {
 	/**
 	 * Add a MIVOT element into the GLOBALS collection.
 	 *
-	 * Accepts either a {@link MivotInstance} or a raw XML String. When a
-	 * MivotInstance is provided its dmid (if present) is recorded to prevent
-	 * duplicate IDs.
+	 * Accepts a {@link MivotInstance}, a {@link FrameHolder}, a {@link MivotNode}
+	 * or a raw XML String. When a MivotInstance or a FrameHolder is provided its
+	 * dmid (if present) is recorded to prevent duplicate IDs: a frame already
+	 * added, or a holder without XML, is skipped.
 	 *
-	 * @param instance MivotInstance or string serialization of an instance
+	 * @param instance MivotInstance, FrameHolder, node or string serialization of an instance
 	 * @throws Exception when the provided object is of an unsupported type
 	 */
 	public void addGlobals(Object instance) throws Exception {
 		if (instance instanceof MivotInstance) {
 			MivotInstance mi = (MivotInstance) instance;
-			globals.add(mi.xmlString());
+			globals.add(mi.toNode());
 			if (mi.getDmid() != null)
 				dmids.add(mi.getDmid());
+		} else if (instance instanceof FrameHolder) {
+			FrameHolder fh = (FrameHolder) instance;
+			if (fh.frameXml != null && dmids.add(fh.frameId)) {
+				globals.add(fh.getFrameNode());
+			}
+		} else if (instance instanceof MivotNode) {
+			globals.add((MivotNode) instance);
 		} else if (instance instanceof String) {
-			globals.add((String) instance);
+			globals.add(new XmlFragmentNode((String) instance));
 		} else {
 			throw new Exception("Invalid type for globals instance");
 		}
@@ -299,7 +370,9 @@ public class MivotAnnotations {
 	 * RESOURCE meta block.
 	 *
 	 * Process overview:
-	 * - Query the MappingCache for relevant utype-to-column mappings per table.
+	 * - Get from the MappingCache the precompiled annotation plan of each table,
+	 *   turn the table selection into a BitSet of column ordinals and project
+	 *   the property templates on it.
 	 * - Build a MangoInstance populated with mapped Property objects and
 	 *   corresponding frame GLOBALS sections.
 	 * - Add necessary MODEL declarations and the generated MangoInstance to
@@ -309,75 +382,159 @@ public class MivotAnnotations {
 	 * FAILED on errors and returns a RESOURCE element containing the report
 	 * (instead of propagating the exception).
 	 *
+	 * With a deadline (see {@link #setDeadline(long)}) the remote frames still
+	 * missing when it expires are replaced with local snippets, or the
+	 * properties using them are left out when there is no local snippet: the
+	 * block stays valid, its REPORT message starts with {@link #PARTIAL_MESSAGE}
+	 * and {@link #isPartial()} returns true.
+	 *
+	 * The interrupt status of the thread (aborted job) is checked before each
+	 * property and each frame: an interrupted mapping stops at once with a
+	 * FAILED report, the thread staying interrupted for the caller.
+	 *
 	 * @param columns map of table name -> set of column names available for mapping
 	 * @return String containing a <RESOURCE type="meta"> wrapper with the generated
 	 *         MIVOT block
 	 */
 	public String mapMango(Map<String, Set<String>> columns) {
 		MappingCache MAPPING_CACHE = MappingCache.getCache();
-		// Build the annotations
-		MivotAnnotations mivotAnnotation = new MivotAnnotations();
-
-		// Build the MANGO instance with the column used as identifier
-
-		MangoInstance mi;
+		this.partial = false;
+		// Reuse the collector, the session cache and the buffers of the thread
+		AnnotationContext context = AnnotationContext.acquire();
 		try {
-			String utypeMappedColumn = null;
-			for (String table : columns.keySet()) {
-				utypeMappedColumn = MAPPING_CACHE.getUtypeMappedColumn(table, "mango:MangoObject.identifier",
-					new ArrayList<String>(columns.get(table)));
-				if (utypeMappedColumn != null) {
-					break;
+			MivotAnnotations mivotAnnotation = context.getCollector();
+			SessionCache session = mivotAnnotation.sessionCache;
+			StringBuilder sb = context.getBuffer();
+			sb.append("<RESOURCE type=\"meta\">\n");
+			int blockStart = sb.length();
+
+			// Build the MANGO instance with the column used as identifier
+
+			MangoInstance mi;
+			try {
+				// Resolve once the plan of each table and turn its selected
+				// columns into a BitSet of column ordinals
+				List<String> tables = new ArrayList<String>();
+				List<AnnotationPlan> plans = new ArrayList<AnnotationPlan>();
+				List<BitSet> selections = new ArrayList<BitSet>();
+				String utypeMappedColumn = null;
+				for (Map.Entry<String, Set<String>> entry : columns.entrySet()) {
+					AnnotationPlan annotationPlan = MAPPING_CACHE.getAnnotationPlan(entry.getKey());
+					if (annotationPlan == null) {
+						continue;
+					}
+					BitSet selection = annotationPlan.select(entry.getValue());
+					if (utypeMappedColumn == null && annotationPlan.isIdentifierSelected(selection)) {
+						utypeMappedColumn = annotationPlan.getIdentifierColumn();
+					}
+					tables.add(entry.getKey());
+					plans.add(annotationPlan);
+					selections.add(selection);
 				}
-			}
-			mi = new MangoInstance(utypeMappedColumn);
-			FrameFactory frameFactory = FrameFactory.getInstance(this.sessionCache);
-			for (String supportedProperty : Glossary.SUPPORTED_PROPERTIES) {
-				// Look for mapping rules for the property in the current table
-				Cache.logDebug("Looking at property: ", supportedProperty);
-				for (String table : columns.keySet()) {
-					List<String>selectedColumns =new ArrayList<String>(columns.get(table));
-					Cache.logDebug(" Check if table: ", table, selectedColumns.toString(), "maps it");
-
-					Map<String, List<UtypeDecoder>> propertyMapping = MAPPING_CACHE.getTableMapping(
-						table,
-						"mango:" + supportedProperty,
-						selectedColumns);
-					List<String> constants = new ArrayList<String>();
-					for (String key : propertyMapping.keySet()) {
-						Cache.logDebug("Found mapping for property ",supportedProperty ,"in table",
-								table, "with key", key);
-						List<FrameHolder> frameHolders = new ArrayList<>();
-						List<UtypeDecoder> utds = propertyMapping.get(key);
-						for (String cs : utds.get(0).getFrames()) {
-							FrameHolder fh = frameFactory.createFrame(cs);
-							frameHolders.add(fh);
-							mivotAnnotation.addGlobals(fh.frameXml);
+				mi = new MangoInstance(utypeMappedColumn);
+				FrameFactory frameFactory = context.getFrameFactory();
+				frameFactory.setDeadline(this.deadline);
+				for (String supportedProperty : Glossary.SUPPORTED_PROPERTIES) {
+					String hostClass = "mango:" + supportedProperty;
+					// Only visit the tables of the query known to map the property
+					Set<String> mappingTables = MAPPING_CACHE.getMappingTables(hostClass);
+					if (mappingTables.isEmpty()) {
+						continue;
+					}
+					for (int t = 0; t < plans.size(); t++) {
+						String table = tables.get(t);
+						if (mappingTables.contains(table) == false) {
+							continue;
 						}
-						for (String ct : utds.get(0).getConstants()) {
-							constants.add(ct);
+						Cache.logDebug("Looking at property", supportedProperty, "in table", table);
+
+						for (PropertyTemplate template : plans.get(t).getPropertyTemplates(hostClass)) {
+							checkInterrupted();
+							// Prune the template to the columns actually selected
+							List<UtypeDecoder> utds = template.project(selections.get(t), context.getProjection());
+							if (utds.isEmpty()) {
+								continue;
+							}
+							Cache.logDebug("Found mapping for property ",supportedProperty ,"in table",
+									table, "with key", template.getKey());
+							List<FrameHolder> frameHolders = context.getFrameHolders();
+							boolean framesComplete = true;
+							for (String cs : template.getFrames()) {
+								checkInterrupted();
+								FrameHolder fh = frameFactory.createFrame(cs);
+								if (fh == null) {
+									// Time budget exceeded without local frame
+									framesComplete = false;
+									continue;
+								}
+								frameHolders.add(fh);
+							}
+							if (framesComplete == false) {
+								Cache.logWarning("Property", supportedProperty, "of table", table,
+										"left out: one of its frames is missing");
+								continue;
+							}
+							// Only the frames of the properties actually mapped go to the globals
+							for (FrameHolder fh : frameHolders) {
+								mivotAnnotation.addGlobals(fh);
+							}
+							Property property = (Property) Property.getInstance(supportedProperty, utds, table,
+									frameHolders, template.getConstants());
+							mi.addMangoProperties(property);
 						}
-						Property property = (Property) Property.getInstance(supportedProperty, utds, table,
-								frameHolders, constants);
-						mi.addMangoProperties(property);
 					}
 				}
-			}
 
-			mivotAnnotation.addModel(Glossary.ModelPrefix.IVOA, Glossary.VodmlUrl.IVOA);
-			mivotAnnotation.addModel(Glossary.ModelPrefix.MANGO, Glossary.VodmlUrl.MANGO);
-			for (String model : this.sessionCache.getReferencedModelList() ) {
-				mivotAnnotation.addModel(model, this.sessionCache.getReferencedModel(model));
-			}
+				mivotAnnotation.addModel(Glossary.ModelPrefix.IVOA, Glossary.VodmlUrl.IVOA);
+				mivotAnnotation.addModel(Glossary.ModelPrefix.MANGO, Glossary.VodmlUrl.MANGO);
+				for (String model : session.getReferencedModelList() ) {
+					mivotAnnotation.addModel(model, session.getReferencedModel(model));
+				}
 
-			mivotAnnotation.addTemplates(mi);
+				mivotAnnotation.addTemplates(mi);
 
-			mivotAnnotation.buildMivotBlock("");
-			mivotAnnotation.setReport(true, "Annotated by vollt-mivot-extension");
-		} catch (Exception exception) {
-			exception.printStackTrace();
-			mivotAnnotation.setReport(false, "Annotation failure: " + exception);
+				mivotAnnotation.templatesId = "";
+				List<String> degradedFrames = frameFactory.getDegradedFrames();
+				List<String> missingFrames = frameFactory.getMissingFrames();
+				if (degradedFrames.isEmpty() == false || missingFrames.isEmpty() == false) {
+					this.partial = true;
+					String message = PARTIAL_MESSAGE + ": time budget exceeded";
+					if (degradedFrames.isEmpty() == false) {
+						message += ", local frames used for " + String.join(" ", degradedFrames);
+					}
+					if (missingFrames.isEmpty() == false) {
+						message += ", properties left out for lack of " + String.join(" ", missingFrames);
+					}
+					mivotAnnotation.setReport(true, message);
+				}
+				mivotAnnotation.appendMivotBlock(sb);
+				mivotAnnotation.setReport(true, "Annotated by vollt-mivot-extension");
+			} catch (Exception exception) {
+				if (exception instanceof InterruptedException || exception instanceof InterruptedIOException
+						|| Thread.currentThread().isInterrupted()) {
+					// Aborted job: no trace, the interrupt status is kept for the caller
+					Thread.currentThread().interrupt();
+					mivotAnnotation.setReport(false, INTERRUPTED_MESSAGE);
+				} else {
+					exception.printStackTrace();
+					mivotAnnotation.setReport(false, "Annotation failure: " + exception);
+				}
+				// Nothing of a partial block is published
+				sb.setLength(blockStart);
+			}
+			sb.append("\n</RESOURCE>\n");
+			return sb.toString();
+		} finally {
+			context.release();
+		}
+	}
+
+	/**
+	 * @throws InterruptedException if the thread is interrupted (its interrupt status is not cleared)
+	 */
+	private static void checkInterrupted() throws InterruptedException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException(INTERRUPTED_MESSAGE);
 		}
-		return "<RESOURCE type=\"meta\">\n" + mivotAnnotation.mivotBlock + "\n</RESOURCE>\n";	
 	}
-}
\ No newline at end of file
+}
@@ -3,8 +3,12 @@ package main.annoter.mivot;
 import java.util.ArrayList;
 import java.util.List;
 
+import main.annoter.mivot.node.AttributeNode;
+import main.annoter.mivot.node.CollectionNode;
+import main.annoter.mivot.node.InstanceNode;
+import main.annoter.mivot.node.MivotNode;
+import main.annoter.mivot.node.ReferenceNode;
 import main.annoter.utils.MivotUtils;
-import main.annoter.utils.XmlUtils;
 
 /**
  * Java equivalent of the Python class MivotInstance.
@@ -12,7 +16,12 @@ import main.annoter.utils.XmlUtils;
  *
  * An instance holds a DM type (dmtype), an optional role (dmrole), an optional
  * identifier (dmid) and a list of inner elements (attributes, references,
- * nested instances and collections) represented as XML fragments.
+ * nested instances and collections).
+ *
+ * This class is a builder: inner elements are stored as immutable
+ * {@link MivotNode}s and {@link #toNode()} freezes the instance into an
+ * {@link InstanceNode}. Nodes can thus be shared between instances (and
+ * requests) and are only serialized once, when the whole block is written.
  */
 public class MivotInstance {
     /** The DM type of this instance (required). */
@@ -24,8 +33,8 @@ public class MivotInstance {
     /** Normalized identifier for this instance (may be empty string). */
     private String dmid;
 
-    /** Ordered list of XML fragment strings making up the INSTANCE body. */
-    private final List<String> content;
+    /** Ordered list of nodes making up the INSTANCE body. */
+    private final List<MivotNode> content;
 
     /**
      * Create a new instance with only a DM type. dmrole and dmid will be null.
@@ -91,20 +100,12 @@ public class MivotInstance {
             throw new MappingError("Cannot add an attribute without ref or value");
         }
 
-        StringBuilder xml = new StringBuilder();
-        xml.append("<ATTRIBUTE dmtype=\"").append(dmtype)
-           .append("\" dmrole=\"").append(dmrole).append("\" ");
-        if (unit != null && !"None".equals(unit)) {
-            xml.append("unit=\"").append(unit).append("\" ");
-        }
-
+        String attributeUnit = (unit != null && !"None".equals(unit)) ? unit : null;
         if (literal != null) {
-            xml.append("value=\"").append(literal).append("\" ");
+            content.add(new AttributeNode(dmtype, dmrole, attributeUnit, literal, null));
         } else {
-            xml.append("ref=\"").append(ref).append("\" ");
+            content.add(new AttributeNode(dmtype, dmrole, attributeUnit, null, ref));
         }
-        xml.append("/>");
-        content.add(xml.toString());
     }
 
     /**
@@ -125,16 +126,8 @@ public class MivotInstance {
         }
 
 
-        StringBuilder xml = new StringBuilder();
-        xml.append("<ATTRIBUTE dmtype=\"").append(dmtype)
-           .append("\" dmrole=\"").append(dmrole).append("\" ");
-        if (unit != null && !"None".equals(unit)) {
-            xml.append("unit=\"").append(unit).append("\" ");
-        }
-
-        xml.append("value=\"").append(value).append("\" ");
-         xml.append("/>");
-        content.add(xml.toString());
+        String attributeUnit = (unit != null && !"None".equals(unit)) ? unit : null;
+        content.add(new AttributeNode(dmtype, dmrole, attributeUnit, String.valueOf(value), null));
     }
 
     /**
@@ -151,7 +144,7 @@ public class MivotInstance {
         if (dmrole == null || dmrole.isEmpty()) {
             throw new MappingError("Cannot add a reference without dmrole");
         }
-        content.add("<REFERENCE dmrole=\"" + dmrole + "\" dmref=\"" + dmref + "\" />");
+        content.add(new ReferenceNode(dmrole, dmref));
     }
 
     /**
@@ -164,7 +157,21 @@ public class MivotInstance {
         if (instance == null) {
             throw new MappingError("Instance added must cannot be null");
         }
-        content.add(instance.xmlString());
+        content.add(instance.toNode());
+    }
+
+    /**
+     * Add an already built node (e.g. a subtree shared across requests) as a
+     * child of this instance.
+     *
+     * @param node non-null node to add
+     * @throws MappingError when the provided node is null
+     */
+    public void addNode(MivotNode node) throws MappingError {
+        if (node == null) {
+            throw new MappingError("Node added cannot be null");
+        }
+        content.add(node);
     }
 
     /**
@@ -172,47 +179,35 @@ public class MivotInstance {
      *
      * @param dmrole optional role of the collection (may be null)
      * @param instances list of instances to include in the collection
-     * @throws MappingError not thrown here but kept for API symmetry with other methods
+     * @throws MappingError when an instance cannot be turned into a node
      */
-    public void addCollection(String dmrole, List<MivotInstance> instances) throws MappingError {
-        StringBuilder collection = new StringBuilder();
-        collection.append("<COLLECTION");
-        if (dmrole != null && !dmrole.isEmpty()) {
-            collection.append(" dmrole=\"").append(dmrole).append("\"");
-        }
-        collection.append(">\n");
-
+    public void addCollection(String dmrole, List<? extends MivotInstance> instances) throws MappingError {
+        List<MivotNode> items = new ArrayList<>(instances.size());
         for (MivotInstance instance : instances) {
-            collection.append(instance.xmlString()).append("\n");
+            items.add(instance.toNode());
         }
+        content.add(new CollectionNode(dmrole, items));
+    }
 
-        collection.append("</COLLECTION>");
-        content.add(collection.toString());
+    /**
+     * Freeze the current state of this instance into an immutable node.
+     * The builder can still be modified afterwards without affecting the node.
+     *
+     * @return the <INSTANCE> node with the children collected so far
+     * @throws MappingError not thrown here but declared for subclasses building their content lazily
+     */
+    public InstanceNode toNode() throws MappingError {
+        return new InstanceNode(dmtype, dmrole, dmid, content);
     }
 
     /**
-     * Serialize this instance and its collected content into a pretty-printed
+     * Serialize this instance and its collected content into an indented
      * XML string representing the <INSTANCE> element.
      *
-     * @return pretty-printed XML string for this instance
-     * @throws MappingError not thrown here but declared for API symmetry
+     * @return XML string for this instance
+     * @throws MappingError when the node cannot be built
      */
     public String xmlString() throws MappingError {
-        StringBuilder xml = new StringBuilder();
-        xml.append("<INSTANCE dmtype=\"").append(dmtype).append("\" ");
-        if (dmrole != null) {
-            xml.append("dmrole=\"").append(dmrole).append("\" ");
-        }
-        if (dmid != null && dmid.length() > 0 ) {
-            xml.append("dmid=\"").append(dmid).append("\" ");
-        }
-        xml.append(">\n");
-
-        for (String element : content) {
-            xml.append(element).append("\n");
-        }
-
-        xml.append("</INSTANCE>\n");
-        return XmlUtils.prettyString(xml.toString());
+        return this.toNode().toXml();
     }
-}
\ No newline at end of file
+}
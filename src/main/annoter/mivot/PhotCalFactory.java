@@ -4,29 +4,27 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
-import org.w3c.dom.Comment;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import main.annoter.cache.Cache;
 import main.annoter.meta.Glossary;
@@ -46,57 +44,68 @@ import main.annoter.utils.XmlUtils;
  *   a REFERENCE node (so the filter can be declared once and referenced).
  * - Produce a "pretty" (indented/cleaned) XML string for downstream usage.
  *
+ * The PhotCal frames are produced by a single streaming pass over the FPS
+ * response (see {@link PhotCalTransformer}).
+ *
  * Note: This class does not perform network retries or caching itself; the
  * FPS request is performed synchronously and exceptions are propagated as
  * MappingError (custom) or IO/parse exceptions.
+ *
+ * FPS calls are bounded by connect and read timeouts, and can be cancelled:
+ * the request runs in a thread of its own while the caller waits for it. When
+ * the caller is interrupted (aborted job), the connection is closed, which
+ * ends the request, and an InterruptedIOException is thrown at once.
  */
 public class PhotCalFactory {
+
+    /** Time (ms) given to the FPS to accept the connection */
+    public static final int FPS_CONNECT_TIMEOUT = 5000;
+    /** Time (ms) the FPS may stay silent while sending its response */
+    public static final int FPS_READ_TIMEOUT = 20000;
+
+    /** Threads running the FPS requests, so that the callers can give up waiting */
+    private static final ExecutorService FPS_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mivot-fps-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Reads the body of a FPS response.
+     */
+    private interface FPSReader<T> {
+        T read(InputStream is) throws Exception;
+    }
     
     /**
      * Retrieve a PhotCal instance adapted for MIVOT from the FPS service.
      *
-     * This method performs the following steps:
-     * 1. Map the provided short filter name to an SVO id using the project's
-     *    glossary.
-     * 2. Fetch the raw FPS XML for that SVO id.
-     * 3. Apply small textual fixes required by downstream consumers.
-     * 4. Split out the photometry filter declaration into a separate block and
-     *    replace it in the PhotCal instance with a REFERENCE element that uses
-     *    the provided filterId.
-     * 5. Return a pretty-printed XML string.
+     * The short filter name is mapped to an SVO id using the project's
+     * glossary and the FPS response is streamed through a
+     * {@link PhotCalTransformer} which, in a single pass, applies the fixes
+     * required by downstream consumers, splits out the photometry filter
+     * (replaced in the PhotCal by a REFERENCE using the provided filterId) and
+     * prunes the verbose instances. The response is neither buffered nor
+     * parsed into a DOM.
      *
      * @param filterName short filter abbreviation understood by Glossary.Filters
      * @param photcalId the dmid to assign to the PhotCal instance in the output
      * @param filterId the id used to reference the photometry filter
-     * @return pretty-printed MIVOT-compatible PhotCal XML string
+     * @return indented MIVOT-compatible PhotCal XML followed by the filter XML
      * @throws Exception on mapping errors, parsing errors, IO errors or when the
      *                   FPS response cannot be processed
      */
-    public String getMivotPhotCal(String filterName, String photcalId, String filterId) throws Exception {
+    public String getMivotPhotCal(String filterName, final String photcalId, final String filterId) throws Exception {
         
         String svoId = PhotCalFactory.getSVOId(filterName);
-        String response = PhotCalFactory.getFPSResponse(svoId);
- 
-        // Apply small textual normalizations to make the FPS XML compatible
-        // with our MIVOT code paths. These are intentionally string-based
-        // replacements because the incoming FPS payloads are known to slightly
-        // differ across versions/providers.
-        response = response.replace(
-            "<ATTRIBUTE dmrole=\"Phot:ZeroPoint.softeningParameter\" dmtype=\"ivoa:real\" value=\"\"/>",
-            "<!-- ATTRIBUTE dmrole=\"Phot:ZeroPoint.softeningParameter\"" +
-            " dmtype=\"ivoa:real\" value=\"\"/ -->");
-        response = response.replace(
-                "Phot:PhotCal.photometryFilter.bandwidth",
-                "Phot:PhotometryFilter.bandwidth");        
-        response = response.replace(
-                " dmrole=\"\"",
-                " dmid=\"" + photcalId + "\"");
-        
-        // Detach the photometry filter and replace it with a REFERENCE.
-        response = splitFilterReference(response, filterId);
-        
-        String prettyString =  XmlUtils.prettyString(response);
-        return prettyString;
+        return PhotCalFactory.callFPS(svoId, new FPSReader<String>() {
+            public String read(InputStream is) throws Exception {
+                return PhotCalTransformer.transform(is, photcalId, filterId);
+            }
+        });
     }
     
    /**
@@ -142,57 +151,6 @@ public class PhotCalFactory {
        return prettyString;
    }
     
-    /**
-     * Remove the PhotometryFilter sub-node from the incoming PhotCal XML and
-     * replace its occurrence inside the PhotCal instance with a REFERENCE
-     * element. The original PhotometryFilter element is returned after the
-     * reference so callers can emit the filter separately (if needed).
-     *
-     * This method performs DOM parsing and manipulation; it expects a single
-     * INSTANCE element that contains the photometry filter with a specific
-     * dmrole (Glossary.FILTER_ROLE).
-     *
-     * @param xmlString full FPS XML string representing a PhotCal instance
-     * @param filterId id to use when converting the detached photometry filter
-     *                 to a standalone element (placed in the dmid attribute)
-     * @return concatenation of the modified parent instance XML and the
-     *         detached PhotometryFilter element as a string
-     * @throws Exception on parse errors or when the expected nodes aren't found
-     */
-    private String splitFilterReference(String xmlString, String filterId) throws Exception {
-
-       DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-       dbf.setNamespaceAware(true);
-       DocumentBuilder db = dbf.newDocumentBuilder();
-       InputSource is = new InputSource(new StringReader(xmlString.replace("<?xml version=\"1.0\"?>", "")));
-       Document doc = db.parse(is);
-       Node photometryFilterNode = findPhotometryFilter(doc);
-       
-       // Remove the photometry filter node from its parent so we can replace
-       // it by an internal REFERENCE element in the PhotCal instance.
-       Node parentNode = photometryFilterNode.getParentNode();
-       parentNode.removeChild(photometryFilterNode);
-
-       // Create a REFERENCE node that points to the detached filter
-       Element referenceNode = doc.createElement("REFERENCE");
-       referenceNode.setAttribute("dmref", filterId);
-       referenceNode.setAttribute("dmrole", "Phot:PhotCal.photometryFilter");
-       doc.getElementsByTagName("INSTANCE").item(0).appendChild(referenceNode);
-
-       // Add a human-readable comment warning that the photometric system may
-       // vary from row to row - this mirrors the original project's behaviour.
-       Comment comment = doc.createComment(" WARNING The photometric system may vary from a data row to another");
-       parentNode.insertBefore(comment, parentNode.getFirstChild());
-       
-       // Return the modified parent instance as a string followed by the
-       // detached PhotometryFilter element (with its dmrole replaced by a dmid).
-       return  XmlUtils.nodeToString(parentNode) +
-               "\n" +
-               XmlUtils.nodeToString(photometryFilterNode).replace(
-                       " dmrole=\"" + Glossary.FILTER_ROLE + "\"",
-                       " dmid=\"" + filterId + "\"");
-    }
-    
     /**
      * Find the photometry filter node inside a parsed Document. The method
      * searches INSTANCE elements for one whose dmrole attribute equals the
@@ -234,6 +192,15 @@ public class PhotCalFactory {
         return xml.substring(start, end).trim();
     }
 
+    /**
+     * @param filterName short filter abbreviation
+     * @return true if the filter has an SVO identifier, i.e. its calibration comes from the FPS
+     */
+    public static boolean hasSVOId(String filterName) {
+       String filter = Glossary.Filters.map.get(filterName);
+       return filter != null && filter.length() > 0;
+    }
+
     /**
      * Resolve a short filter name to an SVO identifier using the project's
      * Glossary. Throws MappingError if no mapping is present.
@@ -250,6 +217,62 @@ public class PhotCalFactory {
        return filter;
     }
     
+    /**
+     * Send a GET request to the configured FPS URL for the requested SVO id
+     * and read its response, in a thread of the FPS pool.
+     *
+     * The calling thread waits for the response. If it is interrupted, the
+     * connection is closed (unblocking the request thread) and the interrupt
+     * status is kept.
+     *
+     * @param svoId identifier appended to the FPS base URL
+     * @param reader reads the response body
+     * @return the value read
+     * @throws MalformedURLException on malformed URL construction
+     * @throws InterruptedIOException when the calling thread is interrupted
+     * @throws IOException on network errors and timeouts
+     * @throws MappingError on non-200 HTTP status
+     * @throws Exception the exceptions of the reader
+     */
+    private static <T> T callFPS(String svoId, final FPSReader<T> reader) throws Exception {
+        String fpsUrl = Glossary.Url.FPS + svoId;
+        Cache.logDebug("Connect " +  fpsUrl);
+        final HttpURLConnection connection = (HttpURLConnection) new URL(fpsUrl).openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(FPS_CONNECT_TIMEOUT);
+        connection.setReadTimeout(FPS_READ_TIMEOUT);
+
+        Future<T> request = FPS_EXECUTOR.submit(new Callable<T>() {
+            public T call() throws Exception {
+                try {
+                    int httpCode = connection.getResponseCode();
+                    if (httpCode != 200) {
+                        throw new MappingError("FPS service error: " + httpCode);
+                    }
+                    try (InputStream is = connection.getInputStream()) {
+                        return reader.read(is);
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        });
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            // Closing the connection ends the blocked request
+            connection.disconnect();
+            request.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("FPS request to " + fpsUrl + " cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     /**
      * Perform a synchronous HTTP GET request to the configured FPS URL for the
      * requested SVO id and return the raw response body as a String. If the
@@ -268,26 +291,26 @@ public class PhotCalFactory {
      */
     public static String getFPSResponse(String svoId) throws MalformedURLException, IOException, MappingError {
         
-        String fpsUrl = Glossary.Url.FPS + svoId;
-        Cache.logDebug("Connect " +  fpsUrl);
-        HttpURLConnection connection = (HttpURLConnection) new URL(fpsUrl).openConnection();
-        connection.setRequestMethod("GET");
-
-        int httpCode = connection.getResponseCode();
-        if (httpCode != 200) {
-            connection.disconnect(); 
-            throw new MappingError("FPS service error: " + httpCode);
-        }
-        InputStream is = connection.getInputStream();
-        StringBuilder responseBuilder = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                responseBuilder.append(line);
-            }
+        String response;
+        try {
+            response = callFPS(svoId, new FPSReader<String>() {
+                public String read(InputStream is) throws IOException {
+                    StringBuilder responseBuilder = new StringBuilder();
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            responseBuilder.append(line);
+                        }
+                    }
+                    return responseBuilder.toString();
+                }
+            });
+        } catch (IOException | MappingError e) {
+            throw e;
+        } catch (Exception e) {
+            // Not raised by the reader
+            throw new IOException(e);
         }
-        String response = responseBuilder.toString();
-        connection.disconnect(); 
 
         // If FPS indicates an ERROR in its INFO block, extract and raise it.
         if (response.contains("<INFO name=\"QUERY_STATUS\" value=\"ERROR\">")) {
@@ -296,59 +319,4 @@ public class PhotCalFactory {
         }
         return response;
     }
-    
-    /**
-     * Produce a simplified PhotCal XML by removing verbose/irrelevant
-     * INSTANCE elements (transmissionCurve, zeroPoint, magnitudeSystem and
-     * bandwidth) and returning a cleaned XML string. The method wraps the
-     * provided fragment inside a temporary root element to allow DOM parsing,
-     * then strips the wrapper before returning the result.
-     *
-     * @param xmlPhotCal XML fragment representing a PhotCal
-     * @return cleaned XML string
-     * @throws TransformerException on XML transform errors
-     * @throws ParserConfigurationException on parser configuration errors
-     * @throws SAXException on XML parse errors
-     * @throws IOException on IO errors when reading strings
-     */
-    public static String getSimplifiedPhotCal(String xmlPhotCal) throws TransformerException, ParserConfigurationException, SAXException, IOException {
-        
-        xmlPhotCal = xmlPhotCal.replaceAll("Phot\\:photometryFilter", "Phot:PhotometryFilter");
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(
-                new InputSource(
-                        new StringReader("<BOIBOITE>\n" + xmlPhotCal +"\n</BOIBOITE>\n" )));
-
-        NodeList personList = doc.getElementsByTagName("INSTANCE");
-        String[] dmRolesToremove = {"Phot:PhotometryFilter.transmissionCurve",
-                "Phot:PhotCal.zeroPoint", "Phot:PhotCal.magnitudeSystem",
-                "Phot:PhotometryFilter.bandwidth"};
-    
-        for (String dmRoleToremove : dmRolesToremove) {
-            for (int i = 0; i < personList.getLength(); i++) {
-                Node node = personList.item(i);
-                if (node.getNodeType() == Node.ELEMENT_NODE) {
-                    Element person = (Element) node;
-                    String id = person.getAttribute("dmrole");
-                    if (dmRoleToremove.equals(id)
-                            ) { 
-                        person.getParentNode().removeChild(person);
-                    }
-                 }
-            }       
-        }
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        StringWriter writer = new StringWriter();
-        transformer.transform(new DOMSource(doc), new StreamResult(writer));
-        String xmlString = writer.toString();
-        xmlString = xmlString.replace("<BOIBOITE>\n", "")
-                .replace("\n</BOIBOITE>\n", "")
-                .replaceAll("<\\?xml.*\\?>", "")
-                .replaceAll("\n[ ]*\n", "\n")
-                .replaceAll("\n[ ]*\n", "\n");
-        return xmlString;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,334 @@
+package main.annoter.mivot;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import main.annoter.meta.Glossary;
+
+/**
+ * Single pass StAX transformation of PhotCal XML into the frame stored in GLOBALS.
+ *
+ * All the rewrites are applied while the input is read, the output is written
+ * indented (2 spaces, one element per line) so that no DOM, Transformer or
+ * regular expression pass is needed afterwards:
+ * - the INSTANCEs playing one of the {@link #PRUNED_ROLES} are dropped with
+ *   their content,
+ * - "Phot:PhotCal.photometryFilter.bandwidth" is renamed
+ *   "Phot:PhotometryFilter.bandwidth" and "Phot:photometryFilter"
+ *   "Phot:PhotometryFilter" in all attribute values,
+ * - an empty Phot:ZeroPoint.softeningParameter ATTRIBUTE is dropped.
+ *
+ * With {@link #transform(InputStream, String, String)} (FPS responses), the
+ * first INSTANCE is taken as the PhotCal:
+ * - its (empty) dmrole is replaced with the photcal dmid,
+ * - the photometry filter it contains is written after it, its dmrole being
+ *   replaced with the filter dmid,
+ * - the PhotCal starts with a warning comment and ends with a REFERENCE to
+ *   the filter,
+ * - the reading stops at the end of the PhotCal.
+ *
+ * With {@link #simplify(String)} (local snippets, already split), only the
+ * common rewrites are applied.
+ *
+ * Attributes are written sorted by name, as the DOM serialization used before
+ * did. MIVOT elements have no text content: character data are ignored.
+ * Instances are used once, from one thread.
+ */
+public class PhotCalTransformer {
+	/** dmroles of the INSTANCEs removed from the PhotCal frames */
+	public static final List<String> PRUNED_ROLES = Arrays.asList(
+			"Phot:PhotometryFilter.transmissionCurve",
+			"Phot:PhotCal.zeroPoint",
+			"Phot:PhotCal.magnitudeSystem",
+			"Phot:PhotometryFilter.bandwidth");
+
+	private static final String INDENT = "  ";
+	private static final String WARNING = "<!-- WARNING The photometric system may vary from a data row to another -->";
+
+	/** Configured once, reader creation is thread-safe */
+	private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+	private final String photcalId;
+	private final String filterId;
+	private final boolean split;
+
+	/** PhotCal output, then the snippet output when not splitting */
+	private final StringBuilder photCal = new StringBuilder(2048);
+	/** Detached filter output */
+	private final StringBuilder filter = new StringBuilder(2048);
+
+	/** Depth of the element being written in each output */
+	private int photCalDepth = 0;
+	private int filterDepth = 0;
+	/** A start tag has been written without its closing '>' */
+	private boolean pendingStart = false;
+
+	private PhotCalTransformer(String photcalId, String filterId, boolean split) {
+		this.photcalId = photcalId;
+		this.filterId = filterId;
+		this.split = split;
+	}
+
+	/**
+	 * Transform a FPS response into the PhotCal and filter instances of a frame.
+	 *
+	 * @param fpsResponse FPS response, read up to the end of the PhotCal instance (not closed)
+	 * @param photcalId dmid of the PhotCal instance
+	 * @param filterId dmid of the photometry filter
+	 * @return PhotCal instance followed by the filter instance
+	 * @throws MappingError when the FPS reports an error or when the response
+	 *         has no PhotCal with a photometry filter
+	 * @throws XMLStreamException when the response is not well-formed
+	 */
+	public static String transform(InputStream fpsResponse, String photcalId, String filterId)
+			throws MappingError, XMLStreamException {
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(fpsResponse);
+		try {
+			return new PhotCalTransformer(photcalId, filterId, true).transform(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Apply the pruning and the renaming to a PhotCal fragment already split
+	 * (e.g. a local snippet).
+	 *
+	 * @param fragment one or more elements
+	 * @return the simplified fragment
+	 * @throws XMLStreamException when the fragment is not well-formed
+	 */
+	public static String simplify(String fragment) throws XMLStreamException {
+		// The fragment may have several top-level elements
+		Reader wrapped = new StringReader("<PHOTCAL>" + fragment + "</PHOTCAL>");
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(wrapped);
+		try {
+			PhotCalTransformer transformer = new PhotCalTransformer(null, null, false);
+			// Skip the wrapper start tag: its content is written from depth 0
+			reader.nextTag();
+			transformer.copyContent(reader, false);
+			return transformer.photCal.toString();
+		} catch (MappingError e) {
+			// Not raised without split
+			throw new XMLStreamException(e.getMessage());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private String transform(XMLStreamReader reader) throws MappingError, XMLStreamException {
+		String description = null;
+		while (reader.hasNext()) {
+			if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+			String name = reader.getLocalName();
+			if ("DESCRIPTION".equals(name) && description == null) {
+				description = reader.getElementText().trim();
+			} else if ("INFO".equals(name)
+					&& "QUERY_STATUS".equals(reader.getAttributeValue(null, "name"))
+					&& "ERROR".equals(reader.getAttributeValue(null, "value"))) {
+				String info = reader.getElementText().trim();
+				throw new MappingError("FPS service error: " + (description != null ? description : info));
+			} else if ("INSTANCE".equals(name)) {
+				this.writePhotCal(reader);
+				if (this.filter.length() == 0) {
+					throw new MappingError("No photometry filter in the FPS PhotCal " + this.photcalId);
+				}
+				return this.photCal.append(this.filter).toString();
+			}
+		}
+		throw new MappingError("No PhotCal instance in the FPS response");
+	}
+
+	/**
+	 * Write the PhotCal instance, the reader being on its start tag.
+	 */
+	private void writePhotCal(XMLStreamReader reader) throws MappingError, XMLStreamException {
+		this.photCal.append('<').append(reader.getLocalName());
+		this.writeAttributes(reader, this.photCal, "dmid", this.photcalId);
+		this.photCal.append(">\n");
+		this.photCalDepth++;
+		this.indent(this.photCal, this.photCalDepth).append(WARNING).append('\n');
+		this.copyContent(reader, false);
+		this.indent(this.photCal, this.photCalDepth)
+			.append("<REFERENCE dmref=\"").append(escape(this.filterId))
+			.append("\" dmrole=\"").append(Glossary.FILTER_ROLE).append("\"/>\n");
+		this.photCalDepth--;
+		this.indent(this.photCal, this.photCalDepth).append("</").append(reader.getLocalName()).append(">\n");
+	}
+
+	/**
+	 * Copy the content of the current element up to its end tag (the reader
+	 * is left on it).
+	 *
+	 * @param inFilter true when the content belongs to the detached filter
+	 */
+	private void copyContent(XMLStreamReader reader, boolean inFilter) throws MappingError, XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				return;
+			} else if (event == XMLStreamConstants.COMMENT) {
+				this.closePendingStart(inFilter);
+				this.indent(inFilter).append("<!--").append(reader.getText()).append("-->\n");
+			} else if (event == XMLStreamConstants.START_ELEMENT) {
+				String role = rename(reader.getAttributeValue(null, "dmrole"));
+				if (role != null && PRUNED_ROLES.contains(role)) {
+					skipElement(reader);
+				} else if ("Phot:ZeroPoint.softeningParameter".equals(role)
+						&& "".equals(reader.getAttributeValue(null, "value"))) {
+					// Empty real sent by the FPS: not valid
+					skipElement(reader);
+				} else if (this.split && inFilter == false && Glossary.FILTER_ROLE.equals(role)) {
+					if (this.filter.length() > 0) {
+						throw new MappingError("More than one photometry filter in the FPS PhotCal " + this.photcalId);
+					}
+					this.closePendingStart(false);
+					this.filter.append('<').append(reader.getLocalName());
+					this.writeAttributes(reader, this.filter, "dmid", this.filterId);
+					this.pendingStart = true;
+					this.filterDepth++;
+					this.copyContent(reader, true);
+					this.writeEndTag(reader, true);
+				} else {
+					this.closePendingStart(inFilter);
+					StringBuilder out = this.indent(inFilter);
+					out.append('<').append(reader.getLocalName());
+					this.writeAttributes(reader, out, null, null);
+					this.pendingStart = true;
+					if (inFilter) {
+						this.filterDepth++;
+					} else {
+						this.photCalDepth++;
+					}
+					this.copyContent(reader, inFilter);
+					this.writeEndTag(reader, inFilter);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the end tag of the current element: "/>" if it had no content.
+	 */
+	private void writeEndTag(XMLStreamReader reader, boolean inFilter) {
+		if (inFilter) {
+			this.filterDepth--;
+		} else {
+			this.photCalDepth--;
+		}
+		StringBuilder out = inFilter ? this.filter : this.photCal;
+		if (this.pendingStart) {
+			out.append("/>\n");
+			this.pendingStart = false;
+		} else {
+			this.indent(inFilter).append("</").append(reader.getLocalName()).append(">\n");
+		}
+	}
+
+	private void closePendingStart(boolean inFilter) {
+		if (this.pendingStart) {
+			(inFilter ? this.filter : this.photCal).append(">\n");
+			this.pendingStart = false;
+		}
+	}
+
+	/**
+	 * Write the attributes sorted by name. When idName is not null, the
+	 * dmrole and idName attributes are replaced with idName="idValue".
+	 */
+	private void writeAttributes(XMLStreamReader reader, StringBuilder out, String idName, String idValue) {
+		int count = reader.getAttributeCount();
+		String[] names = new String[count + 1];
+		String[] values = new String[count + 1];
+		int size = 0;
+		if (idName != null) {
+			names[0] = idName;
+			values[0] = idValue;
+			size = 1;
+		}
+		for (int i = 0; i < count; i++) {
+			String name = reader.getAttributeLocalName(i);
+			if (idName != null && (name.equals("dmrole") || name.equals(idName))) {
+				continue;
+			}
+			String value = rename(reader.getAttributeValue(i));
+			// Insertion sort: a few attributes only
+			int j = size++;
+			while (j > 0 && names[j - 1].compareTo(name) > 0) {
+				names[j] = names[j - 1];
+				values[j] = values[j - 1];
+				j--;
+			}
+			names[j] = name;
+			values[j] = value;
+		}
+		for (int i = 0; i < size; i++) {
+			out.append(' ').append(names[i]).append("=\"").append(escape(values[i])).append('"');
+		}
+	}
+
+	private StringBuilder indent(boolean inFilter) {
+		return inFilter ? this.indent(this.filter, this.filterDepth) : this.indent(this.photCal, this.photCalDepth);
+	}
+
+	private StringBuilder indent(StringBuilder out, int depth) {
+		for (int i = 0; i < depth; i++) {
+			out.append(INDENT);
+		}
+		return out;
+	}
+
+	/**
+	 * Skip the current element and its content.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Apply the FPS role and type fixes to an attribute value.
+	 */
+	private static String rename(String value) {
+		if (value == null || value.startsWith("Phot:") == false) {
+			return value;
+		}
+		if (value.equals("Phot:PhotCal.photometryFilter.bandwidth")) {
+			return "Phot:PhotometryFilter.bandwidth";
+		}
+		return value.replace("Phot:photometryFilter", "Phot:PhotometryFilter");
+	}
+
+	private static String escape(String value) {
+		if (value.indexOf('&') < 0 && value.indexOf('<') < 0 && value.indexOf('>') < 0 && value.indexOf('"') < 0) {
+			return value;
+		}
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// Remote documents: no DTD, no external entity
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		return factory;
+	}
+}
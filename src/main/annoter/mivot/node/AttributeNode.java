@@ -0,0 +1,67 @@
+package main.annoter.mivot.node;
+
+/**
+ * Immutable <ATTRIBUTE> element.
+ *
+ * An attribute either holds a literal value or a reference to a column
+ * (exactly one of value and ref is set).
+ */
+public class AttributeNode extends MivotNode {
+	private final String dmtype;
+	private final String dmrole;
+	private final String unit;
+	private final String value;
+	private final String ref;
+
+	/**
+	 * @param dmtype attribute DM type
+	 * @param dmrole attribute DM role
+	 * @param unit unit (null when none)
+	 * @param value literal value (null when the attribute is a reference)
+	 * @param ref referenced column (null when the attribute is a literal)
+	 */
+	public AttributeNode(String dmtype, String dmrole, String unit, String value, String ref) {
+		this.dmtype = dmtype;
+		this.dmrole = dmrole;
+		this.unit = unit;
+		this.value = value;
+		this.ref = ref;
+	}
+
+	public String getDmtype() {
+		return this.dmtype;
+	}
+
+	public String getDmrole() {
+		return this.dmrole;
+	}
+
+	public String getUnit() {
+		return this.unit;
+	}
+
+	public String getValue() {
+		return this.value;
+	}
+
+	public String getRef() {
+		return this.ref;
+	}
+
+	@Override
+	public void appendXml(StringBuilder sb, int level) {
+		indent(sb, level);
+		sb.append("<ATTRIBUTE ");
+		appendXmlAttribute(sb, "dmtype", this.dmtype);
+		appendXmlAttribute(sb, "dmrole", this.dmrole);
+		if (this.unit != null) {
+			appendXmlAttribute(sb, "unit", this.unit);
+		}
+		if (this.value != null) {
+			appendXmlAttribute(sb, "value", this.value);
+		} else {
+			appendXmlAttribute(sb, "ref", this.ref);
+		}
+		sb.append("/>\n");
+	}
+}
@@ -0,0 +1,61 @@
+package main.annoter.mivot.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable sequence of sibling nodes keeping its serialization.
+ *
+ * Used for the subtrees shared by many parents, across requests (e.g. the
+ * semantics of the properties): the nodes are serialized once for the
+ * indentation level where they are spliced, the next serializations at that
+ * level copy the text. The output is the one of the nodes themselves.
+ */
+public class CachedNode extends MivotNode {
+	private final List<MivotNode> nodes;
+	/** Last serialization, replaced as a whole */
+	private volatile Rendering rendering = null;
+
+	private static class Rendering {
+		final int level;
+		final String xml;
+
+		Rendering(int level, String xml) {
+			this.level = level;
+			this.xml = xml;
+		}
+	}
+
+	/**
+	 * @param nodes sibling nodes, copied
+	 */
+	public CachedNode(List<MivotNode> nodes) {
+		this.nodes = Collections.unmodifiableList(new ArrayList<MivotNode>(nodes));
+	}
+
+	public List<MivotNode> getNodes() {
+		return this.nodes;
+	}
+
+	/**
+	 * @return true if there is no node to serialize
+	 */
+	public boolean isEmpty() {
+		return this.nodes.isEmpty();
+	}
+
+	@Override
+	public void appendXml(StringBuilder sb, int level) {
+		Rendering cached = this.rendering;
+		if (cached == null || cached.level != level) {
+			StringBuilder xml = new StringBuilder();
+			for (MivotNode node : this.nodes) {
+				node.appendXml(xml, level);
+			}
+			cached = new Rendering(level, xml.toString());
+			this.rendering = cached;
+		}
+		sb.append(cached.xml);
+	}
+}
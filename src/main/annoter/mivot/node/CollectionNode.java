@@ -0,0 +1,45 @@
+package main.annoter.mivot.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable <COLLECTION> element.
+ */
+public class CollectionNode extends MivotNode {
+	private final String dmrole;
+	private final List<MivotNode> items;
+
+	/**
+	 * @param dmrole role of the collection (may be null)
+	 * @param items collection items, copied
+	 */
+	public CollectionNode(String dmrole, List<MivotNode> items) {
+		this.dmrole = dmrole;
+		this.items = Collections.unmodifiableList(new ArrayList<MivotNode>(items));
+	}
+
+	public String getDmrole() {
+		return this.dmrole;
+	}
+
+	public List<MivotNode> getItems() {
+		return this.items;
+	}
+
+	@Override
+	public void appendXml(StringBuilder sb, int level) {
+		indent(sb, level);
+		sb.append("<COLLECTION");
+		if (this.dmrole != null && !this.dmrole.isEmpty()) {
+			sb.append(" dmrole=\"").append(this.dmrole).append("\"");
+		}
+		sb.append(">\n");
+		for (MivotNode item : this.items) {
+			item.appendXml(sb, level + 1);
+		}
+		indent(sb, level);
+		sb.append("</COLLECTION>\n");
+	}
+}
@@ -0,0 +1,63 @@
+package main.annoter.mivot.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable <INSTANCE> element with its ordered children.
+ */
+public class InstanceNode extends MivotNode {
+	private final String dmtype;
+	private final String dmrole;
+	private final String dmid;
+	private final List<MivotNode> children;
+
+	/**
+	 * @param dmtype DM type of the instance
+	 * @param dmrole role of the instance in its parent (may be null)
+	 * @param dmid identifier of the instance (may be null or empty)
+	 * @param children child nodes, copied
+	 */
+	public InstanceNode(String dmtype, String dmrole, String dmid, List<MivotNode> children) {
+		this.dmtype = dmtype;
+		this.dmrole = dmrole;
+		this.dmid = dmid;
+		this.children = Collections.unmodifiableList(new ArrayList<MivotNode>(children));
+	}
+
+	public String getDmtype() {
+		return this.dmtype;
+	}
+
+	public String getDmrole() {
+		return this.dmrole;
+	}
+
+	public String getDmid() {
+		return this.dmid;
+	}
+
+	public List<MivotNode> getChildren() {
+		return this.children;
+	}
+
+	@Override
+	public void appendXml(StringBuilder sb, int level) {
+		indent(sb, level);
+		sb.append("<INSTANCE ");
+		appendXmlAttribute(sb, "dmtype", this.dmtype);
+		if (this.dmrole != null) {
+			appendXmlAttribute(sb, "dmrole", this.dmrole);
+		}
+		if (this.dmid != null && this.dmid.length() > 0) {
+			appendXmlAttribute(sb, "dmid", this.dmid);
+		}
+		sb.append(">\n");
+		for (MivotNode child : this.children) {
+			child.appendXml(sb, level + 1);
+		}
+		indent(sb, level);
+		sb.append("</INSTANCE>\n");
+	}
+}
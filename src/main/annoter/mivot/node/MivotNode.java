@@ -0,0 +1,68 @@
+package main.annoter.mivot.node;
+
+/**
+ * Base class of the immutable MIVOT node tree.
+ *
+ * A node represents one MIVOT element (INSTANCE, ATTRIBUTE, REFERENCE,
+ * COLLECTION) or a pre-rendered XML fragment. Nodes never change once built,
+ * so a subtree can be shared by several parents, across requests, and be
+ * inspected without re-parsing any XML.
+ *
+ * The tree is serialized in one pass by {@link #toXml()}; each element is
+ * written on its own line, indented by two spaces per level.
+ */
+public abstract class MivotNode {
+
+	/** Indentation unit used when serializing */
+	protected static final String INDENT = "  ";
+
+	/**
+	 * Append the XML serialization of this node to the given buffer.
+	 *
+	 * @param sb buffer receiving the XML
+	 * @param level indentation level of the node
+	 */
+	public abstract void appendXml(StringBuilder sb, int level);
+
+	/**
+	 * Serialize this node and its subtree.
+	 *
+	 * @return the XML serialization of the node
+	 */
+	public String toXml() {
+		StringBuilder sb = new StringBuilder();
+		this.appendXml(sb, 0);
+		return sb.toString();
+	}
+
+	public String toString() {
+		return this.toXml();
+	}
+
+	/**
+	 * Append the indentation of the given level.
+	 */
+	protected static void indent(StringBuilder sb, int level) {
+		for (int i = 0; i < level; i++) {
+			sb.append(INDENT);
+		}
+	}
+
+	/**
+	 * Append an XML attribute (name="value" followed by a space) with the value escaped.
+	 */
+	protected static void appendXmlAttribute(StringBuilder sb, String name, String value) {
+		sb.append(name).append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&': sb.append("&amp;"); break;
+			case '<': sb.append("&lt;"); break;
+			case '>': sb.append("&gt;"); break;
+			case '"': sb.append("&quot;"); break;
+			default: sb.append(c);
+			}
+		}
+		sb.append("\" ");
+	}
+}
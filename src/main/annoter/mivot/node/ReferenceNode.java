@@ -0,0 +1,35 @@
+package main.annoter.mivot.node;
+
+/**
+ * Immutable <REFERENCE> element pointing to an instance by its dmid.
+ */
+public class ReferenceNode extends MivotNode {
+	private final String dmrole;
+	private final String dmref;
+
+	/**
+	 * @param dmrole role of the reference
+	 * @param dmref dmid of the referenced instance
+	 */
+	public ReferenceNode(String dmrole, String dmref) {
+		this.dmrole = dmrole;
+		this.dmref = dmref;
+	}
+
+	public String getDmrole() {
+		return this.dmrole;
+	}
+
+	public String getDmref() {
+		return this.dmref;
+	}
+
+	@Override
+	public void appendXml(StringBuilder sb, int level) {
+		indent(sb, level);
+		sb.append("<REFERENCE ");
+		appendXmlAttribute(sb, "dmrole", this.dmrole);
+		appendXmlAttribute(sb, "dmref", this.dmref);
+		sb.append("/>\n");
+	}
+}
@@ -0,0 +1,43 @@
+package main.annoter.mivot.node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable pre-rendered XML fragment spliced as is in the tree.
+ *
+ * Used for content that does not come from the node builders, such as frames
+ * read from snippets or returned by the FPS service. Each line of the fragment
+ * is shifted by the indentation of the level where it is inserted.
+ */
+public class XmlFragmentNode extends MivotNode {
+	private final String xml;
+	/** Non-empty lines of the fragment, split once */
+	private final String[] lines;
+
+	/**
+	 * @param xml well-formed XML fragment (one or several elements)
+	 */
+	public XmlFragmentNode(String xml) {
+		this.xml = xml;
+		List<String> nonEmpty = new ArrayList<String>();
+		for (String line : xml.split("\n")) {
+			if (line.trim().isEmpty() == false) {
+				nonEmpty.add(line);
+			}
+		}
+		this.lines = nonEmpty.toArray(new String[nonEmpty.size()]);
+	}
+
+	public String getXml() {
+		return this.xml;
+	}
+
+	@Override
+	public void appendXml(StringBuilder sb, int level) {
+		for (String line : this.lines) {
+			indent(sb, level);
+			sb.append(line).append("\n");
+		}
+	}
+}
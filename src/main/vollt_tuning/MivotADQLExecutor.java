@@ -0,0 +1,94 @@
+package main.vollt_tuning;
+
+import adql.parser.ParseException;
+import adql.query.ADQLQuery;
+import tap.ADQLExecutor;
+import tap.ServiceConnection;
+import tap.TAPException;
+import tap.data.TableIterator;
+import tap.db.DBCancelledException;
+import tap.formatter.OutputFormat;
+
+/**
+ * ADQL executor starting the MIVOT annotation build as soon as the query is parsed.
+ *
+ * The annotations only depend on the query and on the TAP_SCHEMA metadata, so
+ * they can be computed while the database runs the query. When the response
+ * format is an annotated one ({@link MivotFormat} or {@link MivotArrowFormat}),
+ * the build is handed to {@link MivotAnnotationProducer#startAnnotations} and
+ * the output format only joins its result when writing the header.
+ *
+ * When the {@link MivotResponseCache} holds the response of a {@link MivotFormat}
+ * query, neither the annotations nor the database are run: the format replays
+ * the cached response.
+ *
+ * A job aborted or failing while the database runs the query never writes its
+ * result: its annotation build is cancelled at once (see
+ * {@link MivotAnnotationProducer#cancelAnnotations}) and its response cache
+ * state is released (see {@link MivotResponseCache#release}).
+ */
+public class MivotADQLExecutor extends ADQLExecutor {
+
+	private final MivotAnnotationProducer annotationProducer;
+
+	/**
+	 * @param service TAP service connection
+	 * @param annotationProducer producer running the annotation builds
+	 */
+	public MivotADQLExecutor(final ServiceConnection service, final MivotAnnotationProducer annotationProducer) {
+		super(service);
+		this.annotationProducer = annotationProducer;
+	}
+
+	@Override
+	protected ADQLQuery parseADQL() throws ParseException, InterruptedException, TAPException {
+		ADQLQuery adqlQuery = super.parseADQL();
+		MivotResponseCache responseCache = MivotResponseCache.getShared();
+		OutputFormat outputFormat = this.getOutputFormat();
+		if( responseCache != null && outputFormat instanceof MivotFormat
+				&& responseCache.lookup(this.report, adqlQuery, outputFormat.getMimeType(), this.report.parameters.getMaxRec()) ) {
+			// The cached response is replayed by MivotFormat: no annotation to build
+			return adqlQuery;
+		}
+		if( outputFormat instanceof MivotFormat || outputFormat instanceof MivotArrowFormat ) {
+			this.annotationProducer.startAnnotations(this.report, adqlQuery);
+		}
+		return adqlQuery;
+	}
+
+	/**
+	 * Skip the database when the response is replayed from the {@link MivotResponseCache}.
+	 * Cancel the annotation build and release the response cache state when
+	 * the execution is aborted or fails.
+	 */
+	@Override
+	protected TableIterator executeADQL(final ADQLQuery adql) throws InterruptedException, DBCancelledException, TAPException {
+		MivotResponseCache responseCache = MivotResponseCache.getShared();
+		if( responseCache != null && responseCache.isHit(this.report) ) {
+			if( Thread.currentThread().isInterrupted() ) {
+				// Aborted before its output: the cached file is not replayed
+				responseCache.release(this.report);
+				throw new InterruptedException();
+			}
+			return MivotResponseCache.getEmptyResult();
+		}
+		try {
+			return super.executeADQL(adql);
+		} catch (InterruptedException | TAPException | RuntimeException e) {
+			// Aborted (DBCancelledException is a TAPException) or failed: nobody joins the annotations
+			this.annotationProducer.cancelAnnotations(this.report);
+			if( responseCache != null ) {
+				responseCache.release(this.report);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the requested response format, null if none
+	 */
+	private OutputFormat getOutputFormat() {
+		String format = this.report.parameters.getFormat();
+		return (format == null) ? null : this.service.getOutputFormat(format);
+	}
+}
@@ -0,0 +1,553 @@
+package main.vollt_tuning;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import adql.db.DBColumn;
+import adql.parser.ParseException;
+import adql.query.ADQLQuery;
+import adql.query.from.ADQLTable;
+import adql.query.from.FromContent;
+import main.annoter.cache.AnnotationPlan;
+import main.annoter.cache.Cache;
+import main.annoter.cache.MappingCache;
+import main.annoter.cache.SlabStore;
+import main.annoter.cache.SnippetIndex;
+import main.annoter.mivot.MappingError;
+import main.annoter.mivot.MivotAnnotations;
+import tap.ServiceConnection;
+import tap.TAPException;
+import tap.TAPExecutionReport;
+import uws.service.log.UWSLog.LogLevel;
+
+/**
+ * Build the MIVOT annotation block matching the result of a TAP query.
+ *
+ * This class gathers the logic that used to be private to {@link MivotVOTableFormat}
+ * so that any output format (VOTable, Arrow...) can embed the same annotations:
+ * - parse the ADQL query to check whether the result is mappable,
+ * - collect the selected columns per table from the execution report,
+ * - run {@link MivotAnnotations#mapMango(Map)} on them.
+ *
+ * The build can either be done when the header is written, or be started in
+ * background as soon as the query is parsed (see {@link MivotADQLExecutor});
+ * the annotation and the query execution then overlap. A build still queued
+ * when the header is written is run by the job thread itself, so that a pool
+ * busy with slow builds does not make the waiting jobs fail. The annotations of a
+ * query can also be built without running it (see {@link MivotDryRunServlet}).
+ *
+ * The returned string is either the <RESOURCE type="meta"> block produced by
+ * the mapper or, on failure, a bare <VODML> block with a FAILED report.
+ *
+ * With a time budget (see {@link #setTimeBudget(long)}) the frames fetched
+ * from remote services are waited for until the budget is spent; the block is
+ * then completed with local frames and reported as partial, while the remote
+ * builds go on in background to warm the frame cache.
+ *
+ * The annotation of an aborted job stops as soon as possible: a build
+ * started at parse time is cancelled by the executor when the database
+ * execution is aborted (see {@link #cancelAnnotations(TAPExecutionReport)}),
+ * or by the thread waiting for it when interrupted, and the mapper checks the interrupt status between properties and frames (see
+ * {@link MivotAnnotations#mapMango(Map)}).
+ *
+ * Queries are only parsed the first time their shape is seen (see
+ * {@link QueryShapeIndex}): the resolution of a shape (selected columns or
+ * reason why it is not mappable) and its last complete annotation block are
+ * reused by the queries only differing by their literals.
+ */
+public class MivotAnnotationProducer {
+
+	/** Annotation builds started at parse time, by job. Weak keys: abandoned jobs do not leak */
+	private static final Map<TAPExecutionReport, PendingAnnotations> PENDING_ANNOTATIONS =
+			Collections.synchronizedMap(new WeakHashMap<TAPExecutionReport, PendingAnnotations>());
+
+	/** Threads running the annotation builds started at parse time */
+	private static final ExecutorService ANNOTATION_EXECUTOR = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors()),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "mivot-annotation-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/** Time left to a build started at parse time to assemble its block once its deadline is passed */
+	private static final long ASSEMBLY_GRACE_MS = 1000;
+
+	/** Query shapes already resolved */
+	private static final QueryShapeIndex SHAPES = new QueryShapeIndex(1024);
+
+	/** Annotation time budget in ms, 0 for none */
+	private static volatile long timeBudget = 0;
+
+	private final ServiceConnection service;
+
+	/**
+	 * Annotation build started at parse time. It is run either by the executor
+	 * or, if still queued when the result is needed, by the job thread: the
+	 * first one claiming it runs it.
+	 */
+	private final class PendingAnnotations implements Callable<String> {
+		private final QueryShapeIndex.Shape shape;
+		private final long deadline;
+		private final AtomicBoolean claimed = new AtomicBoolean(false);
+		private Future<String> future;
+
+		PendingAnnotations(QueryShapeIndex.Shape shape, long deadline) {
+			this.shape = shape;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return true if the build has not been started yet and is now owned by the caller
+		 */
+		boolean claim() {
+			return this.claimed.compareAndSet(false, true);
+		}
+
+		/**
+		 * @param deadline deadline of the build (System.nanoTime() value), 0 for none
+		 * @return the annotation block or a mapping error block
+		 */
+		String build(long deadline) {
+			return this.shape.isMappable() ? mapShape(this.shape, this.shape.getColumns(), deadline)
+					: getMappingError(this.shape.getMessage());
+		}
+
+		public String call() {
+			// Already run by the job thread otherwise
+			return this.claim() ? this.build(this.deadline) : null;
+		}
+	}
+
+	/**
+	 * @param service TAP service connection giving access to the ADQL parser and logger
+	 */
+	public MivotAnnotationProducer(final ServiceConnection service) {
+		this.service = service;
+		// Output formats are built at service startup: load the frame snippets
+		// now so that a missing or invalid snippet prevents the service to start
+		try {
+			SnippetIndex.getIndex();
+		} catch (MappingError e) {
+			throw new IllegalStateException("MIVOT snippets cannot be loaded: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Set the time budget of the annotation of one query, shared by all the producers.
+	 *
+	 * @param millis budget in ms, 0 for none
+	 */
+	public static void setTimeBudget(long millis) {
+		timeBudget = Math.max(0, millis);
+	}
+
+	/**
+	 * @return the deadline of an annotation starting now (System.nanoTime() value), 0 for none
+	 */
+	private static long newDeadline() {
+		long budget = timeBudget;
+		return (budget == 0) ? 0 : System.nanoTime() + budget * 1000000L;
+	}
+
+	/**
+	 * Generate MIVOT annotations based on the Utypes stored in TAP_SCHMA.columns
+	 * for the columns selected by the query of the given execution report.
+	 *
+	 * If the build has been started when the query was parsed
+	 * (see {@link #startAnnotations(TAPExecutionReport, ADQLQuery)}), its result
+	 * is just waited for.
+	 *
+	 * @param execReport report of the query execution (query text and resulting columns)
+	 * @return the annotation XML block, never null
+	 */
+	public String getAnnotations(final TAPExecutionReport execReport) {
+		PendingAnnotations pendingAnnotations = PENDING_ANNOTATIONS.remove(execReport);
+		if( pendingAnnotations != null ) {
+			return this.joinAnnotations(pendingAnnotations);
+		}
+		if( Thread.currentThread().isInterrupted() ) {
+			// Aborted job: its result will not be written
+			return this.getMappingError(MivotAnnotations.INTERRUPTED_MESSAGE);
+		}
+
+		this.service.getLogger().log(LogLevel.INFO, "MIVOT", "@ MIVOT", null);
+		long deadline = newDeadline();
+		String query = execReport.parameters.getQuery();
+
+		QueryShapeIndex.Shape shape = this.getKnownShape(query);
+		if( shape == null ) {
+			ADQLQuery parsedQuery = null;
+			try {
+				parsedQuery = this.service.getFactory().createADQLParser().parseQuery(query);
+			} catch (ParseException | TAPException e) {
+				e.printStackTrace();
+				return this.getMappingError(e.toString());
+			}
+			shape = this.registerShape(query, parsedQuery);
+		}
+		if( shape.isMappable() == false ) {
+			return this.getMappingError(shape.getMessage());
+		}
+		return this.mapShape(shape, this.getSelectedColumns(execReport.resultingColumns), deadline);
+	}
+
+	/**
+	 * Start building the annotations of a query as soon as it is parsed, so that
+	 * the build runs while the database executes the query.
+	 * The result is picked up by {@link #getAnnotations(TAPExecutionReport)}
+	 * when the output format writes the header.
+	 *
+	 * The query checks and the column collection are done in the calling thread
+	 * (or skipped when the query shape is known): the parsed query is then no
+	 * longer read by the background build.
+	 *
+	 * @param execReport report of the job, used as key to retrieve the result
+	 * @param parsedQuery the parsed ADQL query
+	 */
+	public void startAnnotations(final TAPExecutionReport execReport, final ADQLQuery parsedQuery) {
+		this.service.getLogger().log(LogLevel.INFO, "MIVOT", "@ MIVOT (started at parse time)", null);
+		long deadline = newDeadline();
+		String query = execReport.parameters.getQuery();
+		QueryShapeIndex.Shape knownShape = this.getKnownShape(query);
+		QueryShapeIndex.Shape shape = (knownShape != null) ? knownShape : this.registerShape(query, parsedQuery);
+		PendingAnnotations pendingAnnotations = new PendingAnnotations(shape, deadline);
+		pendingAnnotations.future = ANNOTATION_EXECUTOR.submit(pendingAnnotations);
+		PENDING_ANNOTATIONS.put(execReport, pendingAnnotations);
+	}
+
+	/**
+	 * Cancel the annotation build started at parse time for a job that will
+	 * not write its result (aborted or failed while the database runs the
+	 * query). The thread of the build is interrupted: it stops between two
+	 * properties or frames, its FPS requests are closed.
+	 *
+	 * @param execReport report of the job
+	 */
+	public void cancelAnnotations(final TAPExecutionReport execReport) {
+		PendingAnnotations pendingAnnotations = PENDING_ANNOTATIONS.remove(execReport);
+		if( pendingAnnotations != null && pendingAnnotations.future.cancel(true) ) {
+			this.service.getLogger().log(LogLevel.INFO, "MIVOT", "Annotation of job " + execReport.jobID + " cancelled", null);
+		}
+	}
+
+	/**
+	 * Resolve the columns selected by a query with the service ADQL parser and
+	 * metadata, without executing it (dry run).
+	 *
+	 * @param query ADQL query
+	 * @param message receives the reason why the query cannot be annotated
+	 * @return table name -> names of the selected columns, null if the query
+	 *         cannot be parsed or is not mappable
+	 */
+	public Map<String, Set<String>> resolveColumns(final String query, final StringBuffer message) {
+		QueryShapeIndex.Shape shape = this.getKnownShape(query);
+		if( shape == null ) {
+			ADQLQuery parsedQuery = null;
+			try {
+				parsedQuery = this.service.getFactory().createADQLParser().parseQuery(query);
+			} catch (ParseException | TAPException e) {
+				message.append(e.getMessage());
+				return null;
+			}
+			shape = this.registerShape(query, parsedQuery);
+		}
+		if( shape.isMappable() == false ) {
+			message.append(shape.getMessage());
+			return null;
+		}
+		Map<String, Set<String>> columns = new LinkedHashMap<String, Set<String>>();
+		for( Map.Entry<String, Set<String>> entry : shape.getColumns().entrySet() ) {
+			columns.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+		}
+		return columns;
+	}
+
+	/**
+	 * Compute the entity tag of the annotations of a selection.
+	 *
+	 * The tag hashes (FNV-1a) the selected columns of each table with the
+	 * fingerprint of its mapping (see {@link AnnotationPlan#getFingerprint()}):
+	 * it changes when the mapping of a selected table changes and is stable
+	 * across service restarts. No annotation is built.
+	 *
+	 * @param columns table name -> names of the selected columns
+	 * @return the quoted entity tag
+	 */
+	public String getEntityTag(final Map<String, Set<String>> columns) {
+		MappingCache mappingCache = MappingCache.getCache();
+		StringBuilder key = new StringBuilder();
+		for( String table : new TreeSet<String>(columns.keySet()) ) {
+			AnnotationPlan annotationPlan = mappingCache.getAnnotationPlan(table);
+			key.append(table).append('@')
+				.append((annotationPlan == null) ? "-" : Long.toHexString(annotationPlan.getFingerprint()))
+				.append(new TreeSet<String>(columns.get(table))).append('\n');
+		}
+		long hash = 0xcbf29ce484222325L;
+		for( byte b : key.toString().getBytes(StandardCharsets.UTF_8) ) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return "\"" + Long.toHexString(hash) + "\"";
+	}
+
+	/**
+	 * Wait for an annotation build started at parse time, or run it in the
+	 * calling thread if no executor thread has picked it up yet (the pool is
+	 * busy): its budget then starts now.
+	 *
+	 * @param pendingAnnotations the build
+	 * @return the annotation block or a mapping error block
+	 */
+	private String joinAnnotations(PendingAnnotations pendingAnnotations) {
+		if( pendingAnnotations.claim() ) {
+			pendingAnnotations.future.cancel(false);
+			Cache.logDebug("Annotation build still queued, run by the job thread");
+			return pendingAnnotations.build(newDeadline());
+		}
+		Future<String> future = pendingAnnotations.future;
+		long budget = timeBudget;
+		try {
+			if( budget == 0 ) {
+				return future.get();
+			}
+			// The build started earlier with its own deadline: this bound is only hit by pathological mappings
+			return future.get(budget + ASSEMBLY_GRACE_MS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			return this.getMappingError("annotation time budget of " + budget + " ms exceeded");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			return this.getMappingError("interrupted while waiting for the annotations");
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return this.getMappingError(e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Look up the shape of a query among the shapes already resolved.
+	 * The mapping of the tables is loaded as {@link #prepareMapping(ADQLQuery, StringBuffer)}
+	 * would do it, since the query is not parsed.
+	 *
+	 * @param query ADQL query
+	 * @return the shape of the query, null if it has not been resolved yet
+	 */
+	private QueryShapeIndex.Shape getKnownShape(String query) {
+		QueryShapeIndex.Shape shape = SHAPES.get(query);
+		if( shape != null ) {
+			Cache.setLogger(this.service.getLogger());
+			if( shape.isMappable() ) {
+				this.loadMapping();
+			}
+			Cache.logDebug("Query shape already resolved, ADQL parsing skipped");
+		}
+		return shape;
+	}
+
+	/**
+	 * Resolve the shape of a parsed query and record it.
+	 *
+	 * @param query ADQL query
+	 * @param parsedQuery the parsed query
+	 * @return the recorded shape
+	 */
+	private QueryShapeIndex.Shape registerShape(String query, ADQLQuery parsedQuery) {
+		StringBuffer message = new StringBuffer();
+		if( this.prepareMapping(parsedQuery, message) == false ) {
+			return SHAPES.put(query, null, message.toString());
+		}
+		return SHAPES.put(query, this.getSelectedColumns(parsedQuery.getResultingColumns()), null);
+	}
+
+	/**
+	 * Load the mapping of the queried tables and check that the query result
+	 * can be annotated.
+	 *
+	 * @param parsedQuery the parsed ADQL query
+	 * @param message receives the reason why the query is not mappable
+	 * @return true if the result can be annotated
+	 */
+	private boolean prepareMapping(ADQLQuery parsedQuery, StringBuffer message) {
+		Cache.setLogger(this.service.getLogger());
+
+		FromContent from = parsedQuery.getFrom();
+		for( ADQLTable tapTable: from.getTables()) {
+			//MappingCache.getCache().addADQLTable(tapTable);
+			this.loadMapping();
+		}
+
+		if( this.isQueryMappable(parsedQuery, message) == false ) {
+			Cache.logInfo(message.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Use the hard-coded Simbad mapping meanwhile pseudo UTypes are not set
+	 * (a no-op once loaded).
+	 */
+	void loadMapping() {
+		MappingCache MAPPING_CACHE = MappingCache.getCache();
+		MAPPING_CACHE.getFakeMappingCacheForBasic();
+		MAPPING_CACHE.getFakeMappingCacheForFlux();
+	}
+
+	/**
+	 * Group the resulting columns by table.
+	 * Columns not coming from a table (computed values) cannot be mapped and are ignored.
+	 *
+	 * @param resultingColumns columns of the query result
+	 * @return table name -> names of the selected columns
+	 */
+	private Map<String, Set<String>> getSelectedColumns(DBColumn[] resultingColumns) {
+		Map<String, Set<String>> columns = new LinkedHashMap<String, Set<String>>();
+		for(DBColumn col : resultingColumns) {
+			if( col.getTable() == null ) {
+				continue;
+			}
+			String table = col.getTable().getADQLName();
+			if( columns.keySet().contains(table) == false) {
+				columns.put(table, new HashSet<String>());
+			}
+			columns.get(table).add(col.getADQLName());
+		}
+		return columns;
+	}
+
+	/**
+	 * Annotate the selected columns of a query shape, reusing the block last
+	 * built for the shape when the selection and the table mappings are the
+	 * same (same entity tag). Only complete blocks are kept.
+	 *
+	 * @param shape shape of the query
+	 * @param columns table name -> names of the selected columns
+	 * @param deadline System.nanoTime() after which remote frames are no longer waited for, 0 for none
+	 * @return the annotation XML block
+	 */
+	private String mapShape(QueryShapeIndex.Shape shape, Map<String, Set<String>> columns, long deadline) {
+		String entityTag = this.getEntityTag(columns);
+		String outXml = shape.getAnnotations(entityTag);
+		if( outXml != null ) {
+			Cache.logDebug("Annotations of", columns.keySet().toString(), "reused from the query shape");
+			return outXml;
+		}
+		outXml = this.mapColumns(columns, deadline);
+		if( outXml.contains("<VODML") && outXml.contains(MivotAnnotations.PARTIAL_MESSAGE) == false
+				&& outXml.contains("status=\"FAILED\"") == false ) {
+			shape.setAnnotations(entityTag, outXml);
+		}
+		return outXml;
+	}
+
+	/**
+	 * Run the mapper on the selected columns, within the time budget.
+	 *
+	 * @param columns table name -> names of the selected columns
+	 * @return the annotation XML block
+	 */
+	String mapColumns(Map<String, Set<String>> columns) {
+		return this.mapColumns(columns, newDeadline());
+	}
+
+	/**
+	 * Run the mapper on the selected columns.
+	 *
+	 * When the off-heap block store is enabled (see {@link Cache#setBlockStore(SlabStore)}),
+	 * the block is first looked up there by entity tag, and a complete build
+	 * is stored there.
+	 *
+	 * @param columns table name -> names of the selected columns
+	 * @param deadline System.nanoTime() after which remote frames are no longer waited for, 0 for none
+	 * @return the annotation XML block
+	 */
+	private String mapColumns(Map<String, Set<String>> columns, long deadline) {
+		SlabStore blockStore = Cache.getBlockStore();
+		String entityTag = null;
+		if( blockStore != null ) {
+			entityTag = this.getEntityTag(columns);
+			String storedXml = blockStore.get(entityTag);
+			if( storedXml != null ) {
+				Cache.logDebug("Annotations of", columns.keySet().toString(), "taken from the block store");
+				return storedXml;
+			}
+		}
+		Instant start = Instant.now();
+		Cache.logDebug("Start writing annotations for tables ", columns.keySet().toString());
+		MivotAnnotations mivotAnnotations = new MivotAnnotations();
+		mivotAnnotations.setDeadline(deadline);
+		String outXml = mivotAnnotations.mapMango(columns);
+		Duration duration = Duration.between(start, Instant.now());
+		Cache.logDebug("Annotations generated in", duration.toMillis() + " ms",
+				mivotAnnotations.isPartial() ? "(partial)" : "");
+		// mapMango returns an empty RESOURCE when the annotation fails: not worth keeping,
+		// neither are partial blocks, completed by the next requests once the frames are cached
+		if( blockStore != null && outXml.contains("<VODML") && mivotAnnotations.isPartial() == false ) {
+			blockStore.put(entityTag, outXml);
+		}
+		return outXml;
+	}
+
+	/**
+	 * Returns true if the query is considered as providing a mappable result
+	 * @TODO refine the criteria
+	 */
+	private boolean isQueryMappable(ADQLQuery parsedQuery, StringBuffer message) {
+		FromContent from = parsedQuery.getFrom();
+		if( from.getTables().size() == 0 ) {
+			message.append("Annotation requires at least one table");
+			return false;
+		}
+		if( from.getTables().size() == 1 && from.getTables().get(0).getSchemaName() != null ) {
+			String schema =  from.getTables().get(0).getSchemaName().toLowerCase();
+			if( schema.indexOf("tap_schema") != -1 ) {
+				message.append("Queries on TAP_SCHEMA cannot be annotated");
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Build a MIVOT block only containing a FAILED report with the given message.
+	 *
+	 * @param message reason of the failure
+	 * @return the MIVOT block or an empty string if it cannot be built
+	 */
+	public String getMappingError(String message) {
+		MivotAnnotations mivotAnnotations = new MivotAnnotations();
+		mivotAnnotations.setReport(false, "Mapping failure: " + message);
+		try {
+			mivotAnnotations.buildMivotBlock("");
+			return mivotAnnotations.mivotBlock;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return "";
+	}
+
+}
@@ -0,0 +1,338 @@
+package main.vollt_tuning;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.SmallIntVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.WriteChannel;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.ipc.message.IpcOption;
+import org.apache.arrow.vector.ipc.message.MessageSerializer;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import adql.db.DBColumn;
+import adql.db.DBType;
+import tap.ServiceConnection;
+import tap.TAPException;
+import tap.TAPExecutionReport;
+import tap.data.TableIterator;
+import tap.formatter.OutputFormat;
+
+/**
+ * Output format streaming the query result as Apache Arrow IPC record batches
+ * (stream format) with the MIVOT annotations attached to the schema.
+ *
+ * Purpose:
+ * - Give vectorized clients (pyarrow, pandas, polars...) a columnar result they
+ *   can read without any VOTable parsing.
+ * - Keep the model annotations: the block produced by
+ *   {@link MivotAnnotationProducer} is stored in the schema custom metadata
+ *   under the {@link #MIVOT_METADATA_KEY} key.
+ *
+ * Notes:
+ * - Column types are taken from execReport.resultingColumns. Numeric ADQL types
+ *   are mapped onto Arrow integers/floats, binary types onto Binary and anything
+ *   else (strings, timestamps, geometries) onto UTF-8 strings.
+ * - Rows are sent by batches of {@link #BATCH_SIZE} so the memory footprint does
+ *   not depend on the result size.
+ * - Like the QUERY_STATUS INFO of the VOTable output, the schema metadata tells
+ *   under the {@link #QUERY_STATUS_METADATA_KEY} key whether the result has been
+ *   truncated at MAXREC. Since the schema comes first in the stream, the batches
+ *   of a limited query are spooled to a temporary file until the row following
+ *   the limit has been read or the result ends.
+ * - The output stream belongs to VOLLT: it is flushed but never closed.
+ * - This format is selected with RESPONSEFORMAT=application/vnd.apache.arrow.stream;content=mivot
+ *   or with its nickname "arrow-mivot".
+ */
+public class MivotArrowFormat implements OutputFormat {
+
+	/** Key of the schema custom metadata holding the MIVOT block */
+	public static final String MIVOT_METADATA_KEY = "ivoa:mivot";
+
+	/** Key of the schema custom metadata holding the query status: OK or OVERFLOW */
+	public static final String QUERY_STATUS_METADATA_KEY = "ivoa:query_status";
+
+	/** Number of rows per record batch */
+	public static final int BATCH_SIZE = 4096;
+
+	/** Allocator shared by all requests; each request works with its own child allocator */
+	private static final BufferAllocator ROOT_ALLOCATOR = new RootAllocator(Long.MAX_VALUE);
+
+	private final MivotAnnotationProducer annotationProducer;
+
+	public MivotArrowFormat(ServiceConnection service) {
+		this.annotationProducer = new MivotAnnotationProducer(service);
+	}
+
+	@Override
+	public String getMimeType() {
+		return "application/vnd.apache.arrow.stream;content=mivot";
+	}
+
+	@Override
+	public String getShortMimeType() {
+		return "arrow-mivot";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Apache Arrow IPC stream with MIVOT annotations in the schema metadata";
+	}
+
+	@Override
+	public String getFileExtension() {
+		return "arrows";
+	}
+
+	@Override
+	public void writeResult(TableIterator result, OutputStream output, TAPExecutionReport execReport, Thread thread)
+			throws TAPException, IOException, InterruptedException {
+
+		String annotations = this.annotationProducer.getAnnotations(execReport);
+		if (thread.isInterrupted()) {
+			throw new InterruptedException();
+		}
+		Integer maxRec = execReport.parameters.getMaxRec();
+		execReport.nbRows = writeStream(result, execReport.resultingColumns, annotations,
+				(maxRec == null) ? -1 : maxRec, output, thread);
+		output.flush();
+	}
+
+	/**
+	 * Write the rows of a result as an Arrow IPC stream.
+	 *
+	 * Without limit the schema is written first and the batches follow as they
+	 * are filled. With a limit, the query status is only known once the row
+	 * following the limit has been read or the result ends: the full batches
+	 * read until then are spooled to a temporary file and copied after the schema.
+	 *
+	 * @param result rows of the result
+	 * @param columns columns of the result
+	 * @param annotations MIVOT block stored in the schema metadata
+	 * @param maxRec maximum number of rows to write, 0 or less for none
+	 * @param output stream receiving the Arrow stream, left open
+	 * @param thread thread of the job, checked for interruption between rows
+	 * @return the number of rows written
+	 */
+	public static long writeStream(TableIterator result, DBColumn[] columns, String annotations, long maxRec,
+			OutputStream output, Thread thread) throws TAPException, IOException, InterruptedException {
+
+		List<Field> fields = getFields(columns);
+		Map<String, String> metadata = new LinkedHashMap<String, String>();
+		metadata.put(MIVOT_METADATA_KEY, annotations);
+		// Not closed: closing the channel would close the VOLLT stream
+		WriteChannel channel = new WriteChannel(Channels.newChannel(output));
+		boolean schemaWritten = false;
+		if (maxRec <= 0) {
+			writeSchema(channel, fields, metadata, false);
+			schemaWritten = true;
+		}
+
+		long nbRows = 0;
+		File spoolFile = null;
+		OutputStream spoolOutput = null;
+		try (BufferAllocator allocator = ROOT_ALLOCATOR.newChildAllocator("mivot-arrow", 0, Long.MAX_VALUE);
+				VectorSchemaRoot root = VectorSchemaRoot.create(new Schema(fields), allocator)) {
+			VectorUnloader unloader = new VectorUnloader(root);
+			WriteChannel spool = null;
+			boolean overflow = false;
+			root.allocateNew();
+			int batchRow = 0;
+			while (result.nextRow()) {
+				if (thread.isInterrupted()) {
+					throw new InterruptedException();
+				}
+				if (maxRec > 0 && nbRows >= maxRec) {
+					overflow = true;
+					break;
+				}
+				int col = 0;
+				while (result.hasNextCol()) {
+					setValue(root.getVector(col), batchRow, result.nextCol());
+					col++;
+				}
+				batchRow++;
+				nbRows++;
+				if (batchRow == BATCH_SIZE) {
+					root.setRowCount(batchRow);
+					if (schemaWritten == false && spool == null) {
+						spoolFile = File.createTempFile("mivot-arrow-", ".arrows");
+						spoolOutput = new BufferedOutputStream(new FileOutputStream(spoolFile));
+						spool = new WriteChannel(Channels.newChannel(spoolOutput));
+					}
+					writeBatch(schemaWritten ? channel : spool, unloader);
+					root.allocateNew();
+					batchRow = 0;
+				}
+			}
+			if (schemaWritten == false) {
+				writeSchema(channel, fields, metadata, overflow);
+				if (spoolOutput != null) {
+					spoolOutput.close();
+					spoolOutput = null;
+					copy(spoolFile, channel);
+				}
+			}
+			// Always send the last (possibly empty) batch so readers get at least one
+			root.setRowCount(batchRow);
+			writeBatch(channel, unloader);
+			ArrowStreamWriter.writeEndOfStream(channel, IpcOption.DEFAULT);
+		} finally {
+			if (spoolOutput != null) {
+				spoolOutput.close();
+			}
+			if (spoolFile != null) {
+				spoolFile.delete();
+			}
+		}
+		return nbRows;
+	}
+
+	/**
+	 * Write the schema message, with the MIVOT block and the query status in its metadata.
+	 *
+	 * @param channel Arrow stream
+	 * @param fields fields of the columns
+	 * @param metadata schema metadata without the query status
+	 * @param overflow true if the result has been truncated at MAXREC
+	 */
+	private static void writeSchema(WriteChannel channel, List<Field> fields, Map<String, String> metadata,
+			boolean overflow) throws IOException {
+		metadata.put(QUERY_STATUS_METADATA_KEY, overflow ? "OVERFLOW" : "OK");
+		MessageSerializer.serialize(channel, new Schema(fields, metadata));
+	}
+
+	/**
+	 * Write the rows currently held by the vectors as one record batch.
+	 *
+	 * @param channel Arrow stream or spool file
+	 * @param unloader unloader of the vectors
+	 */
+	private static void writeBatch(WriteChannel channel, VectorUnloader unloader) throws IOException {
+		try (ArrowRecordBatch batch = unloader.getRecordBatch()) {
+			MessageSerializer.serialize(channel, batch);
+		}
+	}
+
+	/**
+	 * Copy the spooled batches after the schema. The messages are aligned on
+	 * 8 bytes in the spool file as in the stream.
+	 *
+	 * @param spoolFile file of the spooled batches
+	 * @param channel Arrow stream
+	 */
+	private static void copy(File spoolFile, WriteChannel channel) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream input = new FileInputStream(spoolFile)) {
+			int n;
+			while ((n = input.read(buffer)) > 0) {
+				channel.write(ByteBuffer.wrap(buffer, 0, n));
+			}
+		}
+	}
+
+	/**
+	 * Build the Arrow fields matching the ADQL types of the resulting columns.
+	 *
+	 * @param columns columns of the query result
+	 * @return one nullable field per column
+	 */
+	private static List<Field> getFields(DBColumn[] columns) {
+		List<Field> fields = new ArrayList<Field>();
+		for (DBColumn column : columns) {
+			fields.add(new Field(column.getADQLName(),
+					FieldType.nullable(getArrowType(column.getDatatype())),
+					null));
+		}
+		return fields;
+	}
+
+	/**
+	 * Map an ADQL datatype onto an Arrow type.
+	 * Unknown or geometric types are serialized as strings.
+	 *
+	 * @param dbType ADQL datatype (may be null)
+	 * @return Arrow type used for the column
+	 */
+	private static ArrowType getArrowType(DBType dbType) {
+		if (dbType == null) {
+			return ArrowType.Utf8.INSTANCE;
+		}
+		switch (dbType.type) {
+		case SMALLINT:
+			return new ArrowType.Int(16, true);
+		case INTEGER:
+			return new ArrowType.Int(32, true);
+		case BIGINT:
+			return new ArrowType.Int(64, true);
+		case REAL:
+			return new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE);
+		case DOUBLE:
+		case UNKNOWN_NUMERIC:
+			return new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+		case BINARY:
+		case VARBINARY:
+		case BLOB:
+			return ArrowType.Binary.INSTANCE;
+		default:
+			return ArrowType.Utf8.INSTANCE;
+		}
+	}
+
+	/**
+	 * Store one cell value into the vector of its column.
+	 *
+	 * @param vector column vector
+	 * @param index row index within the current batch
+	 * @param value value read from the TableIterator (may be null)
+	 */
+	private static void setValue(FieldVector vector, int index, Object value) {
+		if (value == null) {
+			vector.setNull(index);
+		} else if (vector instanceof SmallIntVector) {
+			((SmallIntVector) vector).setSafe(index, ((Number) value).shortValue());
+		} else if (vector instanceof IntVector) {
+			((IntVector) vector).setSafe(index, ((Number) value).intValue());
+		} else if (vector instanceof BigIntVector) {
+			((BigIntVector) vector).setSafe(index, ((Number) value).longValue());
+		} else if (vector instanceof Float4Vector) {
+			((Float4Vector) vector).setSafe(index, ((Number) value).floatValue());
+		} else if (vector instanceof Float8Vector) {
+			((Float8Vector) vector).setSafe(index, ((Number) value).doubleValue());
+		} else if (vector instanceof VarBinaryVector) {
+			((VarBinaryVector) vector).setSafe(index, (value instanceof byte[]) ? (byte[]) value
+					: value.toString().getBytes(StandardCharsets.UTF_8));
+		} else {
+			((VarCharVector) vector).setSafe(index, value.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package main.vollt_tuning;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.annoter.cache.Cache;
+import main.annoter.cache.SlabStore;
+import main.annoter.mivot.MivotAnnotations;
+
+/**
+ * Annotation dry run: return the MIVOT block of an ADQL query without executing it.
+ *
+ * GET or POST with the TAP parameter QUERY. The selected columns are resolved
+ * with the ADQL parser and the metadata of the TAP service (no database
+ * access) and the response is the <RESOURCE type="meta"> block the
+ * annotated formats would embed.
+ *
+ * Responses:
+ * - 200 with the block, an ETag (see {@link MivotAnnotationProducer#getEntityTag(Map)})
+ *   and a Cache-Control header: clients and proxies can cache it and revalidate
+ *   with If-None-Match,
+ * - 304 when If-None-Match matches; the block is then not built,
+ * - blocks found in the off-heap store (see {@link Cache#getBlockStore()}) are
+ *   written from their slab to the response without being decoded,
+ * - 400 with a VODML block holding a FAILED report when the query cannot be
+ *   parsed or annotated, 503 while the TAP service is not initialized.
+ * Failed and partial annotations are not cacheable.
+ *
+ * The TAP service must declare tap_factory = {main.vollt_tuning.MivotTAPFactory}
+ * and be loaded at startup (load-on-startup in web.xml). The init parameter
+ * maxAge sets the Cache-Control max-age in seconds (default 3600).
+ */
+public class MivotDryRunServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	private static final String CONTENT_TYPE = "text/xml;charset=UTF-8";
+	private static final String QUERY_PARAMETER = "QUERY";
+
+	private int maxAge = 3600;
+
+	@Override
+	public void init() throws ServletException {
+		String value = this.getInitParameter("maxAge");
+		if (value != null) {
+			try {
+				this.maxAge = Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				throw new ServletException("Invalid maxAge init parameter: " + value);
+			}
+		}
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		this.processRequest(request, response);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		this.processRequest(request, response);
+	}
+
+	private void processRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		MivotAnnotationProducer annotationProducer = MivotTAPFactory.getSharedAnnotationProducer();
+		if (annotationProducer == null) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The TAP service is not initialized");
+			return;
+		}
+		String query = getQuery(request);
+		if (query == null || query.trim().isEmpty()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing parameter " + QUERY_PARAMETER);
+			return;
+		}
+
+		StringBuffer message = new StringBuffer();
+		Map<String, Set<String>> columns = annotationProducer.resolveColumns(query, message);
+		if (columns == null) {
+			this.write(response, HttpServletResponse.SC_BAD_REQUEST, annotationProducer.getMappingError(message.toString()));
+			return;
+		}
+
+		String entityTag = annotationProducer.getEntityTag(columns);
+		if (matches(request.getHeader("If-None-Match"), entityTag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			this.setCacheHeaders(response, entityTag);
+			return;
+		}
+		SlabStore blockStore = Cache.getBlockStore();
+		ByteBuffer storedBlock = (blockStore == null) ? null : blockStore.getBuffer(entityTag);
+		if (storedBlock != null) {
+			// Straight from the off-heap slab to the response
+			this.setCacheHeaders(response, entityTag);
+			this.write(response, storedBlock);
+			return;
+		}
+		String annotations = annotationProducer.mapColumns(columns);
+		// mapMango returns an empty RESOURCE when the annotation fails;
+		// partial blocks are completed once the remote frames are cached
+		if (annotations.contains("<VODML") && annotations.contains(MivotAnnotations.PARTIAL_MESSAGE) == false) {
+			this.setCacheHeaders(response, entityTag);
+		} else {
+			response.setHeader("Cache-Control", "no-store");
+		}
+		this.write(response, HttpServletResponse.SC_OK, annotations);
+	}
+
+	private void setCacheHeaders(HttpServletResponse response, String entityTag) {
+		response.setHeader("ETag", entityTag);
+		response.setHeader("Cache-Control", "public, max-age=" + this.maxAge);
+	}
+
+	private void write(HttpServletResponse response, int status, String content) throws IOException {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		response.setStatus(status);
+		response.setContentType(CONTENT_TYPE);
+		response.setContentLength(bytes.length);
+		try (OutputStream os = response.getOutputStream()) {
+			os.write(bytes);
+		}
+	}
+
+	private void write(HttpServletResponse response, ByteBuffer content) throws IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(CONTENT_TYPE);
+		response.setContentLength(content.remaining());
+		try (WritableByteChannel channel = Channels.newChannel(response.getOutputStream())) {
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+		}
+	}
+
+	/**
+	 * TAP parameter names are case-insensitive.
+	 */
+	private static String getQuery(HttpServletRequest request) {
+		for (String name : request.getParameterMap().keySet()) {
+			if (QUERY_PARAMETER.equalsIgnoreCase(name)) {
+				return request.getParameter(name);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param ifNoneMatch If-None-Match header (list of tags, weak or not, or *)
+	 * @return true if the header matches the entity tag
+	 */
+	private static boolean matches(String ifNoneMatch, String entityTag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(entityTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
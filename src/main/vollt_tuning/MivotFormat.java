@@ -44,11 +44,28 @@ public class MivotFormat implements OutputFormat {
 		return votFmt.getFileExtension();
 	}
 
+	/**
+	 * Write the annotated VOTable, or replay it from the {@link MivotResponseCache}
+	 * when enabled; a complete response of a cacheable query is recorded in it.
+	 */
 	@Override
 	public void writeResult(TableIterator result, OutputStream output, TAPExecutionReport execReport, Thread thread)
 			throws TAPException, IOException, InterruptedException {
-		// TODO Auto-generated method stub
-		votFmt.writeResult(result, output, execReport, thread);
+		MivotResponseCache responseCache = MivotResponseCache.getShared();
+		if (responseCache == null) {
+			votFmt.writeResult(result, output, execReport, thread);
+			return;
+		}
+		if (responseCache.replay(execReport, output)) {
+			return;
+		}
+		boolean complete = false;
+		try {
+			votFmt.writeResult(result, responseCache.startRecording(execReport, output), execReport, thread);
+			complete = true;
+		} finally {
+			responseCache.endRecording(execReport, complete);
+		}
 	}
 
 }
@@ -0,0 +1,62 @@
+package main.vollt_tuning;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.annoter.mivot.FrameWarmer;
+
+/**
+ * Readiness probe of the annotation: tells the load balancer (or the
+ * orchestrator) whether the node can take queries without building frames.
+ *
+ * Responses (text/plain):
+ * - 200 once the frames referenced by the mapping are warmed (see
+ *   {@link FrameWarmer}), or once the warm timeout is passed, or when no warm
+ *   has been started,
+ * - 503 while the TAP service is not initialized, the mapping snapshot is not
+ *   loaded yet or the frames are being warmed.
+ * The body gives the progress of the warm.
+ *
+ * The TAP service must declare tap_factory = {main.vollt_tuning.MivotTAPFactory}
+ * and be loaded at startup (load-on-startup in web.xml).
+ */
+public class MivotReadinessServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	private static final String CONTENT_TYPE = "text/plain;charset=UTF-8";
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.setContentType(CONTENT_TYPE);
+		response.setHeader("Cache-Control", "no-store");
+		if (MivotTAPFactory.getSharedAnnotationProducer() == null) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.getWriter().println("not ready: the TAP service is not initialized");
+			return;
+		}
+		if (MivotTAPFactory.isInitializing()) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.getWriter().println("not ready: the mapping snapshot waits for the TAP metadata");
+			return;
+		}
+		FrameWarmer frameWarmer = FrameWarmer.getCurrent();
+		if (frameWarmer == null) {
+			response.getWriter().println("ready: no frame warm");
+			return;
+		}
+		String progress = frameWarmer.getDone() + "/" + frameWarmer.getFrames().size() + " frames warmed, "
+				+ frameWarmer.getFailed() + " failed";
+		if (frameWarmer.isComplete()) {
+			response.getWriter().println("ready: " + progress);
+		} else if (frameWarmer.isReady()) {
+			response.getWriter().println("ready: " + progress + ", warm timeout passed");
+		} else {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.getWriter().println("not ready: " + progress);
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package main.vollt_tuning;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adql.db.DBType;
+import adql.query.ADQLQuery;
+import adql.query.from.ADQLTable;
+import main.annoter.cache.Cache;
+import tap.TAPExecutionReport;
+import tap.data.TableIterator;
+import tap.metadata.TAPColumn;
+
+/**
+ * Opt-in disk cache of complete annotated responses, for clients re-running
+ * identical queries.
+ *
+ * Key: SHA-256 of the normalized ADQL (the query serialized back by the ADQL
+ * parser, so that spacing and keyword case do not matter), the MIME type of
+ * the output format and MAXREC. Queries on uploaded tables are not cached.
+ *
+ * Flow of a job (see {@link MivotADQLExecutor} and {@link MivotFormat}):
+ * - at parse time, {@link #lookup} looks the key up; on a hit the cached file
+ *   is opened (it stays readable if evicted meanwhile), the annotations are
+ *   not started and {@link #isHit} makes the executor skip the database,
+ * - the output format then either replays the file ({@link #replay}), or
+ *   records what it writes ({@link #startRecording}); the recording is
+ *   published once the response is complete ({@link #endRecording}), unless
+ *   it exceeded the entry size or was discarded because its annotations were
+ *   partial or failed ({@link #discardRecording}),
+ * - a job aborted or failed before its output is forgotten ({@link #release}).
+ *
+ * Entries expire after the TTL (the cached rows are not refreshed before) and
+ * the oldest ones are evicted beyond the total size. Entries are written in a
+ * temporary file and renamed, so several webapps can share the directory.
+ */
+public class MivotResponseCache {
+	private static final String SUFFIX = ".response";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	/** Cache of the TAP service, null when disabled */
+	private static volatile MivotResponseCache shared = null;
+
+	/** Size and creation time of a cached response */
+	private static class Entry {
+		final long size;
+		final long created;
+
+		Entry(long size, long created) {
+			this.size = size;
+			this.created = created;
+		}
+	}
+
+	private final File directory;
+	private final long maxSize;
+	private final long maxEntrySize;
+	private final long ttl;
+	// key -> cached response
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong totalSize = new AtomicLong();
+	// Key of the cacheable jobs, and open cached file of the hits. Weak keys: abandoned jobs do not leak
+	private final Map<TAPExecutionReport, String> jobKeys =
+			Collections.synchronizedMap(new WeakHashMap<TAPExecutionReport, String>());
+	private final Map<TAPExecutionReport, FileChannel> hits =
+			Collections.synchronizedMap(new WeakHashMap<TAPExecutionReport, FileChannel>());
+	private final Map<TAPExecutionReport, Recording> recordings =
+			Collections.synchronizedMap(new WeakHashMap<TAPExecutionReport, Recording>());
+
+	/**
+	 * Open the cache, indexing the responses already in the directory.
+	 *
+	 * @param directory cache directory, created if needed
+	 * @param maxSize total size of the cached responses in bytes
+	 * @param maxEntrySize size above which a response is not cached, in bytes
+	 * @param ttl lifetime of a cached response in ms
+	 * @throws IOException if the directory cannot be created or listed
+	 */
+	public MivotResponseCache(File directory, long maxSize, long maxEntrySize, long ttl) throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+		this.ttl = ttl;
+		Files.createDirectories(directory.toPath());
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Cannot list " + directory);
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(SUFFIX)) {
+				this.entries.put(name.substring(0, name.length() - SUFFIX.length()),
+						new Entry(file.length(), file.lastModified()));
+				this.totalSize.addAndGet(file.length());
+			} else if (name.endsWith(TEMPORARY_SUFFIX)) {
+				// Recording interrupted by a shutdown
+				file.delete();
+			}
+		}
+		this.evict();
+	}
+
+	public static void setShared(MivotResponseCache responseCache) {
+		shared = responseCache;
+	}
+
+	/**
+	 * @return the cache of the TAP service, null when disabled
+	 */
+	public static MivotResponseCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * Compute the key of a job and look it up. Must be called once per job, at parse time.
+	 *
+	 * @param report report of the job, used to find the lookup result afterwards
+	 * @param parsedQuery parsed ADQL query
+	 * @param mimeType MIME type of the output format
+	 * @param maxRec MAXREC of the job (null or negative when unset)
+	 * @return true on a hit: the job must be answered by {@link #replay}
+	 */
+	public boolean lookup(TAPExecutionReport report, ADQLQuery parsedQuery, String mimeType, Object maxRec) {
+		for (ADQLTable table : parsedQuery.getFrom().getTables()) {
+			if (table.getSchemaName() != null && table.getSchemaName().equalsIgnoreCase("TAP_UPLOAD")) {
+				return false;
+			}
+		}
+		String key = getKey(parsedQuery.toADQL(), mimeType, maxRec);
+		this.jobKeys.put(report, key);
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			return false;
+		}
+		if (System.currentTimeMillis() - entry.created > this.ttl) {
+			this.remove(key, entry);
+			return false;
+		}
+		try {
+			this.hits.put(report, FileChannel.open(this.getFile(key).toPath(), StandardOpenOption.READ));
+			Cache.logDebug("Response of job", report.jobID, "replayed from the response cache");
+			return true;
+		} catch (IOException e) {
+			// Removed by another webapp sharing the directory
+			this.remove(key, entry);
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the job is answered from the cache
+	 */
+	public boolean isHit(TAPExecutionReport report) {
+		return this.hits.containsKey(report);
+	}
+
+	/**
+	 * @return an empty result, returned to the executor in place of the database result of a hit
+	 */
+	public static TableIterator getEmptyResult() {
+		return new EmptyResult();
+	}
+
+	/**
+	 * Copy the cached response of a hit to the output, with FileChannel.transferTo.
+	 *
+	 * @param report report of the job
+	 * @param output response stream
+	 * @return false if the job is not a hit
+	 * @throws IOException on read or write failure
+	 */
+	public boolean replay(TAPExecutionReport report, OutputStream output) throws IOException {
+		FileChannel channel = this.hits.remove(report);
+		if (channel == null) {
+			return false;
+		}
+		try {
+			WritableByteChannel target = Channels.newChannel(output);
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				position += channel.transferTo(position, size - position, target);
+			}
+			output.flush();
+		} finally {
+			channel.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Forget a job whose response will not be written (aborted or failed
+	 * before its output): the cached file opened by {@link #lookup} is closed.
+	 *
+	 * @param report report of the job
+	 */
+	public void release(TAPExecutionReport report) {
+		this.jobKeys.remove(report);
+		FileChannel channel = this.hits.remove(report);
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Cache.logWarning("Cannot close the cached response of job", report.jobID, ":", e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Start recording the response of a cacheable job.
+	 *
+	 * @param report report of the job
+	 * @param output response stream
+	 * @return the stream to write the response in: output itself if the job is not cacheable
+	 */
+	public OutputStream startRecording(TAPExecutionReport report, OutputStream output) {
+		String key = this.jobKeys.remove(report);
+		if (key == null) {
+			return output;
+		}
+		try {
+			Recording recording = new Recording(key, output,
+					File.createTempFile("response-", TEMPORARY_SUFFIX, this.directory));
+			this.recordings.put(report, recording);
+			return recording;
+		} catch (IOException e) {
+			Cache.logWarning("Cannot record the response of job", report.jobID, ":", e.toString());
+			return output;
+		}
+	}
+
+	/**
+	 * Do not cache the response being recorded (e.g. its annotations are partial).
+	 */
+	public void discardRecording(TAPExecutionReport report) {
+		Recording recording = this.recordings.get(report);
+		if (recording != null) {
+			recording.abandon();
+		}
+	}
+
+	/**
+	 * Publish or drop the recording of a job.
+	 *
+	 * @param report report of the job
+	 * @param complete true if the response was entirely written
+	 */
+	public void endRecording(TAPExecutionReport report, boolean complete) {
+		Recording recording = this.recordings.remove(report);
+		if (recording == null) {
+			return;
+		}
+		long size = recording.finish();
+		if (complete == false || size < 0) {
+			recording.file.delete();
+			return;
+		}
+		File file = this.getFile(recording.key);
+		try {
+			try {
+				Files.move(recording.file.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(recording.file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			Cache.logWarning("Cannot store the response of job", report.jobID, ":", e.toString());
+			recording.file.delete();
+			return;
+		}
+		Entry previous = this.entries.put(recording.key, new Entry(size, System.currentTimeMillis()));
+		this.totalSize.addAndGet((previous == null) ? size : size - previous.size);
+		this.evict();
+	}
+
+	/**
+	 * Drop the oldest entries until the total size fits.
+	 */
+	private synchronized void evict() {
+		while (this.totalSize.get() > this.maxSize && this.entries.isEmpty() == false) {
+			String oldestKey = null;
+			Entry oldest = null;
+			for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+				if (oldest == null || entry.getValue().created < oldest.created) {
+					oldestKey = entry.getKey();
+					oldest = entry.getValue();
+				}
+			}
+			this.remove(oldestKey, oldest);
+		}
+	}
+
+	private void remove(String key, Entry entry) {
+		if (this.entries.remove(key, entry)) {
+			this.totalSize.addAndGet(-entry.size);
+			this.getFile(key).delete();
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(this.directory, key + SUFFIX);
+	}
+
+	/**
+	 * @return the hex SHA-256 of the key fields
+	 */
+	static String getKey(String adql, String mimeType, Object maxRec) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest((mimeType + "\n" + maxRec + "\n" + adql).getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b & 0xff));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Stream copying the response to a temporary file, as long as it fits in
+	 * an entry. Recording failures never break the response.
+	 * Used by the thread writing the response only.
+	 */
+	private class Recording extends OutputStream {
+		final String key;
+		final File file;
+		private final OutputStream output;
+		private OutputStream copy;
+		private long size = 0;
+
+		Recording(String key, OutputStream output, File file) throws IOException {
+			this.key = key;
+			this.output = output;
+			this.file = file;
+			this.copy = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.output.write(b);
+			this.record(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.output.write(b, off, len);
+			this.record(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.output.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.output.close();
+		}
+
+		private void record(byte[] b, int off, int len) {
+			if (this.copy == null) {
+				return;
+			}
+			this.size += len;
+			if (this.size > maxEntrySize) {
+				this.abandon();
+				return;
+			}
+			try {
+				this.copy.write(b, off, len);
+			} catch (IOException e) {
+				Cache.logWarning("Response recording abandoned:", e.toString());
+				this.abandon();
+			}
+		}
+
+		void abandon() {
+			if (this.copy != null) {
+				try {
+					this.copy.close();
+				} catch (IOException e) {
+					// the file is dropped anyway
+				}
+				this.copy = null;
+			}
+			this.size = -1;
+		}
+
+		/**
+		 * @return the recorded size, -1 if the recording was abandoned
+		 */
+		long finish() {
+			if (this.copy == null) {
+				return -1;
+			}
+			try {
+				this.copy.close();
+			} catch (IOException e) {
+				this.size = -1;
+			}
+			this.copy = null;
+			return this.size;
+		}
+	}
+
+	/**
+	 * Result of the jobs answered from the cache: no row, no column.
+	 */
+	private static class EmptyResult implements TableIterator {
+		public TAPColumn[] getMetadata() {
+			return new TAPColumn[0];
+		}
+
+		public boolean nextRow() {
+			return false;
+		}
+
+		public boolean isLastRow() {
+			return true;
+		}
+
+		public boolean hasNextCol() {
+			return false;
+		}
+
+		public Object nextCol() {
+			throw new NoSuchElementException("No column in a cached response");
+		}
+
+		public DBType getColType() {
+			throw new IllegalStateException("No column in a cached response");
+		}
+
+		public void rewind() {
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package main.vollt_tuning;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import main.annoter.cache.Cache;
+import main.annoter.cache.DirectoryFrameStore;
+import main.annoter.cache.FrameStore;
+import main.annoter.cache.LocalFrameStore;
+import main.annoter.cache.MappingCache;
+import main.annoter.cache.MappingSnapshot;
+import main.annoter.cache.SlabStore;
+import main.annoter.cache.TieredFrameStore;
+import main.annoter.mivot.FrameWarmer;
+import main.annoter.mivot.MappingError;
+import tap.ADQLExecutor;
+import tap.ServiceConnection;
+import tap.TAPException;
+import tap.config.ConfigurableTAPFactory;
+import uws.service.log.UWSLog.LogLevel;
+
+/**
+ * TAP factory creating {@link MivotADQLExecutor}s, so that MIVOT annotations
+ * are built while the database executes the query.
+ *
+ * Everything else is inherited from the configurable factory. To be selected
+ * with tap_factory = {main.vollt_tuning.MivotTAPFactory} in tap.properties.
+ *
+ * When the property {@value #SNAPSHOT_PROPERTY} gives the path of a mapping
+ * snapshot (see {@link MappingSnapshot}), the mapping cache is loaded from it
+ * at service init, as soon as the service metadata are loaded (VOLLT loads
+ * them after the factory): a background thread waits for them. A snapshot
+ * not matching TAP_SCHEMA, or a service without TAP_SCHEMA, is rejected with
+ * a warning.
+ *
+ * When the property {@value #BLOCK_STORE_PROPERTY} gives a size in MB, the
+ * rendered annotation blocks are kept off-heap (see {@link SlabStore}), in
+ * direct buffers or, if {@value #BLOCK_STORE_DIR_PROPERTY} is set, in
+ * memory-mapped files of that directory.
+ *
+ * The property {@value #FRAME_STORE_PROPERTY} selects where the built frames
+ * are kept (see {@link FrameStore}):
+ * - local (default): in the webapp memory,
+ * - directory: in memory, then in a directory shared by the nodes of the
+ *   cluster, {@value #FRAME_STORE_DIR_PROPERTY} or else the subdirectory
+ *   mivot_frames of file_root_path (absolute paths only); the frames are
+ *   built again after {@value #FRAME_STORE_TTL_PROPERTY} (s, default 86400),
+ * - {class name}: in memory, then in the given shared store (e.g. networked);
+ *   the class implements FrameStore and has a public constructor taking the
+ *   tap.properties, or no argument.
+ *
+ * The property {@value #RESPONSE_CACHE_PROPERTY} enables the disk cache of
+ * the complete {@link MivotFormat} responses (see {@link MivotResponseCache}),
+ * bounded by {@value #RESPONSE_CACHE_SIZE_PROPERTY} (MB, default 1024),
+ * {@value #RESPONSE_CACHE_ENTRY_PROPERTY} (MB per response, default 64) and
+ * {@value #RESPONSE_CACHE_TTL_PROPERTY} (s, default 3600).
+ *
+ * The property {@value #TIME_BUDGET_PROPERTY} sets the time budget (ms) of
+ * the annotation of a query (see {@link MivotAnnotationProducer#setTimeBudget(long)}).
+ *
+ * Once the mapping (snapshot included) is loaded and the frame store
+ * installed, all the frames referenced by the mapping are built in background
+ * (see {@link FrameWarmer}); the {@link MivotReadinessServlet} reports the node
+ * as ready when they are built or after {@value #WARM_TIMEOUT_PROPERTY} (s,
+ * default 120, 0 disables the warm), and not before the snapshot is loaded.
+ */
+public class MivotTAPFactory extends ConfigurableTAPFactory {
+	/** tap.properties key of the mapping snapshot path */
+	public static final String SNAPSHOT_PROPERTY = "mivot_snapshot";
+	/** tap.properties key of the size (MB) of the off-heap annotation block store */
+	public static final String BLOCK_STORE_PROPERTY = "mivot_block_store";
+	/** tap.properties key of the directory of the memory-mapped block store */
+	public static final String BLOCK_STORE_DIR_PROPERTY = "mivot_block_store_dir";
+	/** tap.properties key of the frame store: local, directory or {class name} */
+	public static final String FRAME_STORE_PROPERTY = "mivot_frame_store";
+	/** tap.properties key of the directory of the shared frame store */
+	public static final String FRAME_STORE_DIR_PROPERTY = "mivot_frame_store_dir";
+	/** tap.properties key of the lifetime (s) of the frames of the shared directory */
+	public static final String FRAME_STORE_TTL_PROPERTY = "mivot_frame_store_ttl";
+	/** tap.properties key of the directory of the response cache, which enables it */
+	public static final String RESPONSE_CACHE_PROPERTY = "mivot_response_cache_dir";
+	/** tap.properties key of the total size (MB) of the response cache */
+	public static final String RESPONSE_CACHE_SIZE_PROPERTY = "mivot_response_cache_size";
+	/** tap.properties key of the largest cached response (MB) */
+	public static final String RESPONSE_CACHE_ENTRY_PROPERTY = "mivot_response_cache_max_entry";
+	/** tap.properties key of the lifetime (s) of the cached responses */
+	public static final String RESPONSE_CACHE_TTL_PROPERTY = "mivot_response_cache_ttl";
+	/** tap.properties key of the annotation time budget (ms) */
+	public static final String TIME_BUDGET_PROPERTY = "mivot_time_budget";
+	/** tap.properties key of the time (s) after which a node is ready even if its frames are not all warmed */
+	public static final String WARM_TIMEOUT_PROPERTY = "mivot_warm_timeout";
+	/** Size of the block store slabs */
+	private static final int SLAB_SIZE = 4 * 1024 * 1024;
+	/** Longest wait for the service metadata, after which the snapshot is rejected */
+	private static final long METADATA_WAIT_MS = 5 * 60 * 1000;
+
+	/** Producer of the last factory created, used by the {@link MivotDryRunServlet} */
+	private static volatile MivotAnnotationProducer sharedAnnotationProducer = null;
+
+	/** True until the snapshot is loaded and the warm started */
+	private static volatile boolean initializing = false;
+
+	private final MivotAnnotationProducer annotationProducer;
+
+	public MivotTAPFactory(final ServiceConnection service, final Properties tapConfig) throws NullPointerException, TAPException {
+		super(service, tapConfig);
+		this.annotationProducer = new MivotAnnotationProducer(service);
+		String frameStore = tapConfig.getProperty(FRAME_STORE_PROPERTY);
+		if (frameStore != null && frameStore.trim().isEmpty() == false) {
+			this.createFrameStore(frameStore.trim(), tapConfig);
+		}
+		String responseCacheDirectory = tapConfig.getProperty(RESPONSE_CACHE_PROPERTY);
+		if (responseCacheDirectory != null && responseCacheDirectory.trim().isEmpty() == false) {
+			this.createResponseCache(new File(responseCacheDirectory.trim()), tapConfig);
+		}
+		String budget = tapConfig.getProperty(TIME_BUDGET_PROPERTY);
+		if (budget != null && budget.trim().isEmpty() == false) {
+			try {
+				MivotAnnotationProducer.setTimeBudget(Long.parseLong(budget.trim()));
+			} catch (NumberFormatException e) {
+				throw new TAPException("Invalid " + TIME_BUDGET_PROPERTY + " (time in ms expected): " + budget);
+			}
+		}
+		String blockStoreSize = tapConfig.getProperty(BLOCK_STORE_PROPERTY);
+		if (blockStoreSize != null && blockStoreSize.trim().isEmpty() == false) {
+			this.createBlockStore(blockStoreSize.trim(), tapConfig.getProperty(BLOCK_STORE_DIR_PROPERTY));
+		}
+		String warmTimeout = tapConfig.getProperty(WARM_TIMEOUT_PROPERTY);
+		final long timeout = (warmTimeout != null && warmTimeout.trim().equals("0")) ? 0
+				: getLong(tapConfig, WARM_TIMEOUT_PROPERTY, 120);
+		String snapshotPath = tapConfig.getProperty(SNAPSHOT_PROPERTY);
+		if (snapshotPath != null && snapshotPath.trim().isEmpty() == false) {
+			MappingCache.getCache().setPendingSnapshot(new File(snapshotPath.trim()));
+		}
+		this.initialize(timeout);
+		sharedAnnotationProducer = this.annotationProducer;
+	}
+
+	/**
+	 * @return the annotation producer of the TAP service, null until the service is initialized
+	 */
+	static MivotAnnotationProducer getSharedAnnotationProducer() {
+		return sharedAnnotationProducer;
+	}
+
+	/**
+	 * @return true while the mapping snapshot waits for the service metadata,
+	 *         before the frames are warmed
+	 */
+	static boolean isInitializing() {
+		return initializing;
+	}
+
+	/**
+	 * Load the pending snapshot, then warm the frames of the whole mapping.
+	 * The snapshot needs the service metadata: without them yet, both steps
+	 * are run by a thread waiting for them.
+	 *
+	 * @param timeout warm timeout in s, 0 for no warm
+	 */
+	private void initialize(final long timeout) {
+		if (MappingCache.getCache().hasPendingSnapshot() == false || this.service.getTAPMetadata() != null) {
+			this.loadSnapshot();
+			this.warmFrames(timeout);
+			return;
+		}
+		initializing = true;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				long deadline = System.currentTimeMillis() + METADATA_WAIT_MS;
+				try {
+					while (service.getTAPMetadata() == null && System.currentTimeMillis() < deadline) {
+						Thread.sleep(100);
+					}
+					loadSnapshot();
+					warmFrames(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					initializing = false;
+				}
+			}
+		}, "mivot-init");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Check the pending snapshot against TAP_SCHEMA and load it.
+	 */
+	private void loadSnapshot() {
+		try {
+			List<String> tables = MappingCache.getCache().loadPendingSnapshot(this.service.getTAPMetadata());
+			if (tables != null) {
+				this.service.getLogger().log(LogLevel.INFO, "MIVOT", "Mapping snapshot loaded: " + tables, null);
+			}
+		} catch (MappingError e) {
+			this.service.getLogger().log(LogLevel.WARNING, "MIVOT", "Mapping snapshot rejected: " + e.getMessage(), null);
+		}
+	}
+
+	/**
+	 * Start building the frames referenced by the mapping, snapshot included.
+	 *
+	 * @param timeout warm timeout in s, 0 for no warm
+	 */
+	private void warmFrames(long timeout) {
+		if (timeout == 0) {
+			return;
+		}
+		Cache.setLogger(this.service.getLogger());
+		this.annotationProducer.loadMapping();
+		FrameWarmer frameWarmer = FrameWarmer.start(MappingCache.getCache().getFrames(), timeout * 1000);
+		this.service.getLogger().log(LogLevel.INFO, "MIVOT", "Warming " + frameWarmer.getFrames().size()
+				+ " frames, ready within " + timeout + " s", null);
+	}
+
+	/**
+	 * Install the frame store declared in tap.properties.
+	 */
+	private void createFrameStore(String type, Properties tapConfig) throws TAPException {
+		FrameStore shared;
+		if (type.equalsIgnoreCase("local")) {
+			return;
+		} else if (type.equalsIgnoreCase("directory")) {
+			String path = tapConfig.getProperty(FRAME_STORE_DIR_PROPERTY);
+			File directory = (path != null && path.trim().isEmpty() == false) ? new File(path.trim())
+					: new File(tapConfig.getProperty("file_root_path", "").trim(), "mivot_frames");
+			// A relative path would be resolved against the working directory of each node
+			if (directory.isAbsolute() == false) {
+				throw new TAPException("The shared frame directory must be an absolute path (set "
+						+ FRAME_STORE_DIR_PROPERTY + " or an absolute file_root_path): " + directory);
+			}
+			try {
+				shared = new DirectoryFrameStore(directory, getLong(tapConfig, FRAME_STORE_TTL_PROPERTY,
+						DirectoryFrameStore.DEFAULT_TTL / 1000) * 1000);
+			} catch (IOException e) {
+				throw new TAPException("Cannot create the shared frame directory " + directory + ": " + e.getMessage());
+			}
+		} else if (type.startsWith("{") && type.endsWith("}")) {
+			shared = newFrameStore(type.substring(1, type.length() - 1).trim(), tapConfig);
+		} else {
+			throw new TAPException("Invalid " + FRAME_STORE_PROPERTY + " (local, directory or {class name} expected): " + type);
+		}
+		Cache.setFrameStore(new TieredFrameStore(new LocalFrameStore(), shared));
+		this.service.getLogger().log(LogLevel.INFO, "MIVOT", "Frames shared through " + shared.getClass().getName()
+				+ ((shared instanceof DirectoryFrameStore) ? " in " + ((DirectoryFrameStore) shared).getDirectory() : ""), null);
+	}
+
+	/**
+	 * Instantiate a shared frame store with its (Properties) or no-argument constructor.
+	 */
+	private static FrameStore newFrameStore(String className, Properties tapConfig) throws TAPException {
+		try {
+			Class<? extends FrameStore> storeClass = Class.forName(className).asSubclass(FrameStore.class);
+			try {
+				return storeClass.getConstructor(Properties.class).newInstance(tapConfig);
+			} catch (NoSuchMethodException e) {
+				return storeClass.getConstructor().newInstance();
+			}
+		} catch (ClassCastException e) {
+			throw new TAPException("The class " + className + " does not implement " + FrameStore.class.getName());
+		} catch (ReflectiveOperationException e) {
+			throw new TAPException("Cannot create the frame store " + className + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Enable the disk cache of the responses.
+	 */
+	private void createResponseCache(File directory, Properties tapConfig) throws TAPException {
+		long size = getLong(tapConfig, RESPONSE_CACHE_SIZE_PROPERTY, 1024);
+		long maxEntry = getLong(tapConfig, RESPONSE_CACHE_ENTRY_PROPERTY, 64);
+		long ttl = getLong(tapConfig, RESPONSE_CACHE_TTL_PROPERTY, 3600);
+		try {
+			MivotResponseCache.setShared(new MivotResponseCache(directory, size * 1024 * 1024,
+					maxEntry * 1024 * 1024, ttl * 1000));
+		} catch (IOException e) {
+			throw new TAPException("Cannot open the response cache " + directory + ": " + e.getMessage());
+		}
+		this.service.getLogger().log(LogLevel.INFO, "MIVOT", "Response cache of " + size + " MB in " + directory
+				+ ", responses up to " + maxEntry + " MB kept " + ttl + " s", null);
+	}
+
+	/**
+	 * @return the positive integer value of a property, or its default value
+	 */
+	private static long getLong(Properties tapConfig, String property, long defaultValue) throws TAPException {
+		String value = tapConfig.getProperty(property);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			long parsed = Long.parseLong(value.trim());
+			if (parsed > 0) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new TAPException("Invalid " + property + " (positive integer expected): " + value);
+	}
+
+	/**
+	 * Enable the off-heap store of the annotation blocks.
+	 */
+	private void createBlockStore(String size, String directory) throws TAPException {
+		long capacity;
+		try {
+			capacity = Long.parseLong(size) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			throw new TAPException("Invalid " + BLOCK_STORE_PROPERTY + " (size in MB expected): " + size);
+		}
+		if (capacity <= 0) {
+			Cache.setBlockStore(null);
+			return;
+		}
+		File slabDirectory = null;
+		if (directory != null && directory.trim().isEmpty() == false) {
+			slabDirectory = new File(directory.trim());
+			if (slabDirectory.isDirectory() == false) {
+				throw new TAPException("Invalid " + BLOCK_STORE_DIR_PROPERTY + " (not a directory): " + directory);
+			}
+		}
+		try {
+			Cache.setBlockStore(new SlabStore(capacity, (int) Math.min(SLAB_SIZE, capacity), slabDirectory));
+		} catch (IllegalArgumentException e) {
+			throw new TAPException("Invalid " + BLOCK_STORE_PROPERTY + ": " + e.getMessage());
+		}
+		this.service.getLogger().log(LogLevel.INFO, "MIVOT", "Off-heap annotation block store of " + size + " MB in "
+				+ ((slabDirectory == null) ? "direct buffers" : "mapped files of " + slabDirectory), null);
+	}
+
+	@Override
+	public ADQLExecutor createADQLExecutor() throws TAPException {
+		return new MivotADQLExecutor(this.service, this.annotationProducer);
+	}
+}
@@ -0,0 +1,285 @@
+package main.vollt_tuning;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the ADQL query shapes already resolved, so that queries only
+ * differing by their literals (cone centres, magnitude cuts...) are annotated
+ * without being parsed again.
+ *
+ * The shape of a query is its text with the string and numeric literals
+ * replaced by '?', comments and insignificant spaces removed and the regular
+ * identifiers and keywords upper-cased (delimited identifiers are kept as
+ * they are). The tables and columns a query selects, and whether it can be
+ * annotated, do not depend on its literals.
+ *
+ * Shapes are indexed by a 64-bit hash of that text; the text itself is kept
+ * and compared on lookup, so that a hash collision is a miss and not a wrong
+ * resolution. The index keeps the most recently used shapes only.
+ */
+public class QueryShapeIndex {
+
+	/**
+	 * Resolution of a query shape: selected columns by table, or the reason why
+	 * the shape cannot be annotated, and the last complete annotation block.
+	 */
+	public static class Shape {
+		private final String text;
+		private final Map<String, Set<String>> columns;
+		private final String message;
+		// {entity tag, annotation block}, replaced as a whole
+		private volatile String[] annotated = null;
+
+		private Shape(String text, Map<String, Set<String>> columns, String message) {
+			this.text = text;
+			this.columns = columns;
+			this.message = message;
+		}
+
+		/**
+		 * @return true if the queries of this shape can be annotated
+		 */
+		public boolean isMappable() {
+			return this.columns != null;
+		}
+
+		/**
+		 * @return table name -> selected columns (read-only), null if not mappable
+		 */
+		public Map<String, Set<String>> getColumns() {
+			return this.columns;
+		}
+
+		/**
+		 * @return the reason why the shape cannot be annotated
+		 */
+		public String getMessage() {
+			return this.message;
+		}
+
+		/**
+		 * @param entityTag entity tag of the current selection and mapping
+		 * @return the annotation block built for that tag, null if none
+		 */
+		public String getAnnotations(String entityTag) {
+			String[] cached = this.annotated;
+			return (cached != null && cached[0].equals(entityTag)) ? cached[1] : null;
+		}
+
+		/**
+		 * Keep a complete annotation block of the shape.
+		 *
+		 * @param entityTag entity tag of the selection and mapping the block was built for
+		 * @param annotations the block
+		 */
+		public void setAnnotations(String entityTag, String annotations) {
+			this.annotated = new String[] { entityTag, annotations };
+		}
+	}
+
+	private final Map<Long, Shape> shapes;
+
+	/**
+	 * @param capacity number of shapes kept (least recently used dropped first)
+	 */
+	public QueryShapeIndex(final int capacity) {
+		this.shapes = Collections.synchronizedMap(new LinkedHashMap<Long, Shape>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Shape> eldest) {
+				return this.size() > capacity;
+			}
+		});
+	}
+
+	/**
+	 * @param query ADQL query
+	 * @return the shape of the query if already resolved, null otherwise
+	 */
+	public Shape get(String query) {
+		String text = normalize(query);
+		Shape shape = this.shapes.get(fingerprint(text));
+		// A different text with the same hash is a miss
+		return (shape != null && shape.text.equals(text)) ? shape : null;
+	}
+
+	/**
+	 * Record the resolution of a query shape.
+	 *
+	 * @param query ADQL query
+	 * @param columns table name -> selected columns, null if the query cannot be annotated
+	 * @param message reason why the query cannot be annotated
+	 * @return the recorded shape
+	 */
+	public Shape put(String query, Map<String, Set<String>> columns, String message) {
+		Map<String, Set<String>> copy = null;
+		if (columns != null) {
+			copy = new LinkedHashMap<String, Set<String>>();
+			for (Map.Entry<String, Set<String>> entry : columns.entrySet()) {
+				copy.put(entry.getKey(), Collections.unmodifiableSet(new LinkedHashSet<String>(entry.getValue())));
+			}
+			copy = Collections.unmodifiableMap(copy);
+		}
+		String text = normalize(query);
+		Shape shape = new Shape(text, copy, message);
+		this.shapes.put(fingerprint(text), shape);
+		return shape;
+	}
+
+	/**
+	 * @return the number of shapes kept
+	 */
+	public int size() {
+		return this.shapes.size();
+	}
+
+	/**
+	 * Reduce an ADQL query to its shape (see the class comment).
+	 *
+	 * @param adql ADQL query
+	 * @return the shape text
+	 */
+	public static String normalize(String adql) {
+		StringBuilder shape = new StringBuilder(adql.length());
+		boolean lastIsWord = false;
+		int n = adql.length();
+		int i = 0;
+		while (i < n) {
+			char c = adql.charAt(i);
+			int start = i;
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			if (c == '-' && i + 1 < n && adql.charAt(i + 1) == '-') {
+				// Comment up to the end of the line
+				while (i < n && adql.charAt(i) != '\n') {
+					i++;
+				}
+				continue;
+			}
+			if ((c == '+' || c == '-') && isUnary(shape) && startsNumber(adql, skipSpaces(adql, i + 1))) {
+				// Sign of a numeric literal: part of the literal
+				i = skipSpaces(adql, i + 1);
+				continue;
+			}
+			String token;
+			if (c == '\'') {
+				i = skipQuoted(adql, i, '\'');
+				token = "?";
+			} else if (startsNumber(adql, i)) {
+				i = skipNumber(adql, i);
+				token = "?";
+			} else if (c == '"') {
+				i = skipQuoted(adql, i, '"');
+				token = adql.substring(start, i);
+			} else if (Character.isLetter(c) || c == '_') {
+				while (i < n && (Character.isLetterOrDigit(adql.charAt(i)) || adql.charAt(i) == '_')) {
+					i++;
+				}
+				token = adql.substring(start, i).toUpperCase(Locale.ROOT);
+			} else {
+				// Operator or punctuation: never separated by a space
+				shape.append(c);
+				i++;
+				lastIsWord = false;
+				continue;
+			}
+			// A space only separates two words
+			if (lastIsWord) {
+				shape.append(' ');
+			}
+			shape.append(token);
+			lastIsWord = true;
+		}
+		return shape.toString();
+	}
+
+	/**
+	 * @return true if a sign following the shape built so far is unary
+	 *         (start of the query, after an opening parenthesis, a comma or a comparison)
+	 */
+	private static boolean isUnary(StringBuilder shape) {
+		if (shape.length() == 0) {
+			return true;
+		}
+		char last = shape.charAt(shape.length() - 1);
+		return last == '(' || last == ',' || last == '=' || last == '<' || last == '>';
+	}
+
+	/**
+	 * @return true if a numeric literal starts at the given index
+	 */
+	private static boolean startsNumber(String adql, int i) {
+		int n = adql.length();
+		return i < n && (Character.isDigit(adql.charAt(i))
+				|| (adql.charAt(i) == '.' && i + 1 < n && Character.isDigit(adql.charAt(i + 1))));
+	}
+
+	/**
+	 * @return the index of the first non-space character from the given index
+	 */
+	private static int skipSpaces(String adql, int i) {
+		while (i < adql.length() && Character.isWhitespace(adql.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the index following the closing quote (doubled quotes are escaped quotes)
+	 */
+	private static int skipQuoted(String adql, int i, char quote) {
+		i++;
+		while (i < adql.length()) {
+			if (adql.charAt(i) == quote) {
+				if (i + 1 < adql.length() && adql.charAt(i + 1) == quote) {
+					i += 2;
+					continue;
+				}
+				return i + 1;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the index following an unsigned numeric literal (digits, dot, exponent)
+	 */
+	private static int skipNumber(String adql, int i) {
+		int n = adql.length();
+		while (i < n) {
+			char c = adql.charAt(i);
+			if (Character.isDigit(c) || c == '.') {
+				i++;
+			} else if ((c == 'e' || c == 'E') && i + 1 < n && (Character.isDigit(adql.charAt(i + 1))
+					|| ((adql.charAt(i + 1) == '+' || adql.charAt(i + 1) == '-') && i + 2 < n
+							&& Character.isDigit(adql.charAt(i + 2))))) {
+				i += 2;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * @return the FNV-1a hash of the shape text
+	 */
+	private static long fingerprint(String text) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}